@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.AsyncTaskLoader;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemProperties;
+import android.provider.Telephony;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Loader that reads the APNs for the current operator of a subscription together with the
+ * preferred APN, so that {@link ApnSettings} never queries the telephony provider on the main
+ * thread. The loader watches {@link Telephony.Carriers#CONTENT_URI} and reloads by itself when
+ * APNs are edited, added or restored.
+ */
+public class ApnListLoader extends AsyncTaskLoader<ApnListLoader.Snapshot> {
+    private static final String TAG = ApnSettings.TAG;
+
+    private static final String[] PROJECTION = new String[] {
+            "_id", "name", "apn", "type", "read_only"};
+
+    private static final int ID_INDEX = 0;
+    private static final int NAME_INDEX = 1;
+    private static final int APN_INDEX = 2;
+    private static final int TYPES_INDEX = 3;
+    private static final int RO_INDEX = 4;
+
+    /**
+     * One APN row, copied out of the cursor so the cursor window can be released on the
+     * loader thread.
+     */
+    public static final class Row {
+        public final String key;
+        public final String name;
+        public final String apn;
+        public final boolean selectable;
+        public final boolean readOnly;
+
+        Row(String key, String name, String apn, boolean selectable, boolean readOnly) {
+            this.key = key;
+            this.name = name;
+            this.apn = apn;
+            this.selectable = selectable;
+            this.readOnly = readOnly;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Row)) {
+                return false;
+            }
+            final Row other = (Row) o;
+            return TextUtils.equals(key, other.key) && TextUtils.equals(name, other.name)
+                    && TextUtils.equals(apn, other.apn) && selectable == other.selectable
+                    && readOnly == other.readOnly;
+        }
+
+        @Override
+        public int hashCode() {
+            return key != null ? key.hashCode() : 0;
+        }
+    }
+
+    public static final class Snapshot {
+        /** Selectable APNs first, then MMS-only APNs, each in provider sort order. */
+        public final ArrayList<Row> rows;
+        public final String selectedKey;
+
+        Snapshot(ArrayList<Row> rows, String selectedKey) {
+            this.rows = rows;
+            this.selectedKey = selectedKey;
+        }
+    }
+
+    private final Uri mCarriersUri;
+    private final Uri mPreferredApnUri;
+    private final int mSubId;
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    private boolean mObserverRegistered;
+    private Snapshot mSnapshot;
+
+    public ApnListLoader(Context context, Uri carriersUri, Uri preferredApnUri, int subId) {
+        super(context);
+        mCarriersUri = carriersUri;
+        mPreferredApnUri = preferredApnUri;
+        mSubId = subId;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(
+                    Telephony.Carriers.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (mSnapshot != null) {
+            deliverResult(mSnapshot);
+        }
+        if (takeContentChanged() || mSnapshot == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mSnapshot = null;
+    }
+
+    @Override
+    public void deliverResult(Snapshot snapshot) {
+        if (isReset()) {
+            return;
+        }
+        mSnapshot = snapshot;
+        if (isStarted()) {
+            super.deliverResult(snapshot);
+        }
+    }
+
+    @Override
+    public Snapshot loadInBackground() {
+        final long start = SettingsTrace.begin();
+        final ContentResolver resolver = getContext().getContentResolver();
+        final Cursor cursor = resolver.query(mCarriersUri, PROJECTION,
+                getOperatorNumericSelection(mSubId), null, Telephony.Carriers.DEFAULT_SORT_ORDER);
+        if (cursor == null) {
+            return mSnapshot;
+        }
+
+        final ArrayList<Row> rows = new ArrayList<Row>(cursor.getCount());
+        final ArrayList<Row> mmsRows = new ArrayList<Row>();
+        try {
+            while (cursor.moveToNext()) {
+                final String type = cursor.getString(TYPES_INDEX);
+                final boolean selectable = (type == null) || !type.equals("mms");
+                final Row row = new Row(cursor.getString(ID_INDEX), cursor.getString(NAME_INDEX),
+                        cursor.getString(APN_INDEX), selectable, cursor.getInt(RO_INDEX) == 1);
+                if (selectable) {
+                    rows.add(row);
+                } else {
+                    mmsRows.add(row);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        rows.addAll(mmsRows);
+
+        final Snapshot snapshot = new Snapshot(rows, getSelectedApnKey(resolver));
+        SettingsTrace.end("ApnListLoader.load", start);
+        return snapshot;
+    }
+
+    private String getSelectedApnKey(ContentResolver resolver) {
+        String key = null;
+
+        Cursor cursor = resolver.query(mPreferredApnUri, new String[] {"_id"},
+                null, null, Telephony.Carriers.DEFAULT_SORT_ORDER);
+        if (cursor == null) {
+            return null;
+        }
+        if (cursor.moveToFirst()) {
+            key = cursor.getString(ID_INDEX);
+        }
+        cursor.close();
+        return key;
+    }
+
+    private static String getOperatorNumericSelection(int subId) {
+        String[] mccmncs = getOperatorNumeric(subId);
+        String where;
+        where = (mccmncs[0] != null) ? "numeric=\"" + mccmncs[0] + "\"" : "";
+        where += (mccmncs[1] != null) ? " or numeric=\"" + mccmncs[1] + "\"" : "";
+        Log.d(TAG, "getOperatorNumericSelection: " + where);
+        return where;
+    }
+
+    static String[] getOperatorNumeric(int subId) {
+        ArrayList<String> result = new ArrayList<String>();
+        if (SystemProperties.getBoolean("persist.radio.use_nv_for_ehrpd", false)) {
+            String mccMncForEhrpd = SystemProperties.get("ro.cdma.home.operator.numeric", null);
+            if (mccMncForEhrpd != null && mccMncForEhrpd.length() > 0) {
+                result.add(mccMncForEhrpd);
+            }
+        }
+
+        String mccMncFromSim = TelephonyManager.getDefault().getIccOperatorNumeric(subId);
+        Log.d(TAG, "getOperatorNumeric: sub= " + subId +
+                    " mcc-mnc= " + mccMncFromSim);
+        if (mccMncFromSim != null && mccMncFromSim.length() > 0) {
+            result.add(mccMncFromSim);
+        }
+        return result.toArray(new String[2]);
+    }
+}
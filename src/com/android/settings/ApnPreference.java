@@ -91,7 +91,11 @@ public class ApnPreference extends Preference implements
     }
 
     public void setChecked() {
-        mSelectedKey = getKey();
+        if (!getKey().equals(mSelectedKey)) {
+            mSelectedKey = getKey();
+            // Radio buttons of the other rows read the shared key when they are rebound.
+            notifyChanged();
+        }
     }
 
     public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
@@ -127,7 +131,10 @@ public class ApnPreference extends Preference implements
     }
 
     public void setSelectable(boolean selectable) {
-        mSelectable = selectable;
+        if (mSelectable != selectable) {
+            mSelectable = selectable;
+            notifyChanged();
+        }
     }
 
     public boolean getSelectable() {
@@ -18,6 +18,7 @@ package com.android.settings;
 
 import android.app.Activity;
 import android.app.Dialog;
+import android.app.LoaderManager.LoaderCallbacks;
 import android.app.ProgressDialog;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
@@ -26,14 +27,11 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.database.Cursor;
+import android.content.Loader;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.Message;
-import android.os.SystemProperties;
 import android.os.UserManager;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
@@ -42,7 +40,7 @@ import android.preference.PreferenceScreen;
 import android.provider.Telephony;
 import android.telephony.ServiceState;
 import android.telephony.SubscriptionManager;
-import android.telephony.TelephonyManager;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -72,36 +70,32 @@ public class ApnSettings extends SettingsPreferenceFragment implements
 
     public static final String APN_ID = "apn_id";
 
-    private static final int ID_INDEX = 0;
-    private static final int NAME_INDEX = 1;
-    private static final int APN_INDEX = 2;
-    private static final int TYPES_INDEX = 3;
-    private static final int RO_INDEX = 4;
-
     private static final int MENU_NEW = Menu.FIRST;
     private static final int MENU_RESTORE = Menu.FIRST + 1;
 
-    private static final int EVENT_RESTORE_DEFAULTAPN_START = 1;
     private static final int EVENT_RESTORE_DEFAULTAPN_COMPLETE = 2;
 
     private static final int DIALOG_RESTORE_DEFAULTAPN = 1001;
 
+    private static final int LOADER_APN_LIST = 1;
+
     private static final Uri DEFAULTAPN_URI = Uri.parse(RESTORE_CARRIERS_URI);
     private static final Uri PREFERAPN_URI = Uri.parse(PREFERRED_APN_URI);
 
     private static boolean mRestoreDefaultApnMode;
 
     private RestoreApnUiHandler mRestoreApnUiHandler;
-    private RestoreApnProcessHandler mRestoreApnProcessHandler;
-    private HandlerThread mRestoreDefaultApnThread;
 
     private UserManager mUm;
     private int mSubId;
 
     private String mSelectedKey;
 
-    private boolean mUseNvOperatorForEhrpd = SystemProperties.getBoolean(
-            "persist.radio.use_nv_for_ehrpd", false);
+    /** Bound preferences and the rows they show, keyed by APN {@code _id}. */
+    private final ArrayMap<String, ApnPreference> mApnPrefs =
+            new ArrayMap<String, ApnPreference>();
+    private final ArrayMap<String, ApnListLoader.Row> mBoundRows =
+            new ArrayMap<String, ApnListLoader.Row>();
 
     private IntentFilter mMobileStateFilter;
 
@@ -116,7 +110,7 @@ public class ApnSettings extends SettingsPreferenceFragment implements
                 switch (state) {
                 case CONNECTED:
                     if (!mRestoreDefaultApnMode) {
-                        fillList();
+                        refreshList();
                     } else {
                         showDialog(DIALOG_RESTORE_DEFAULTAPN);
                     }
@@ -172,6 +166,10 @@ public class ApnSettings extends SettingsPreferenceFragment implements
         Log.d(TAG, "onCreate received subId :" + mSubId);
         mMobileStateFilter = new IntentFilter(
                 TelephonyIntents.ACTION_ANY_DATA_CONNECTION_STATE_CHANGED);
+
+        // The loader observes the carriers table, so edits made in ApnEditor while this
+        // screen is in the background are picked up when it is started again.
+        getLoaderManager().initLoader(LOADER_APN_LIST, null, mApnListCallbacks);
     }
 
     @Override
@@ -183,10 +181,6 @@ public class ApnSettings extends SettingsPreferenceFragment implements
         }
 
         getActivity().registerReceiver(mMobileStateReceiver, mMobileStateFilter);
-
-        if (!mRestoreDefaultApnMode) {
-            fillList();
-        }
     }
 
     private Uri getUri(Uri uri) {
@@ -205,66 +199,100 @@ public class ApnSettings extends SettingsPreferenceFragment implements
         getActivity().unregisterReceiver(mMobileStateReceiver);
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-
-        if (mRestoreDefaultApnThread != null) {
-            mRestoreDefaultApnThread.quit();
+    /**
+     * Asks the loader to re-read the APN list in the background. The result is bound by
+     * {@link #bindApnList} once it arrives.
+     */
+    private void refreshList() {
+        final Loader<ApnListLoader.Snapshot> loader =
+                getLoaderManager().getLoader(LOADER_APN_LIST);
+        if (loader != null) {
+            loader.onContentChanged();
         }
     }
 
-    private void fillList() {
-        String where = getOperatorNumericSelection();
-        Cursor cursor = getContentResolver().query(getUri(Telephony.Carriers.CONTENT_URI),
-                new String[] {"_id", "name", "apn", "type", "read_only"}, where, null,
-                Telephony.Carriers.DEFAULT_SORT_ORDER);
-
-        if (cursor != null) {
-            PreferenceGroup apnList = (PreferenceGroup) findPreference("apn_list");
-            apnList.removeAll();
-
-            ArrayList<Preference> mmsApnList = new ArrayList<Preference>();
-
-            mSelectedKey = getSelectedApnKey();
-            cursor.moveToFirst();
-            while (!cursor.isAfterLast()) {
-                String name = cursor.getString(NAME_INDEX);
-                String apn = cursor.getString(APN_INDEX);
-                String key = cursor.getString(ID_INDEX);
-                String type = cursor.getString(TYPES_INDEX);
-                boolean readOnly = (cursor.getInt(RO_INDEX) == 1);
-
-                ApnPreference pref = new ApnPreference(getActivity());
+    /**
+     * Updates the APN list in place: preferences are reused by APN {@code _id}, rows that
+     * did not change are left alone and only APNs that disappeared are removed.
+     */
+    private void bindApnList(ApnListLoader.Snapshot snapshot) {
+        final long start = SettingsTrace.begin();
+        PreferenceGroup apnList = (PreferenceGroup) findPreference("apn_list");
+        if (apnList == null) {
+            return;
+        }
 
-                pref.setApnReadOnly(readOnly);
+        final ArrayMap<String, ApnPreference> oldPrefs =
+                new ArrayMap<String, ApnPreference>(mApnPrefs);
+        mApnPrefs.clear();
+
+        mSelectedKey = snapshot.selectedKey;
+        final ArrayList<ApnListLoader.Row> rows = snapshot.rows;
+        for (int i = 0, N = rows.size(); i < N; i++) {
+            final ApnListLoader.Row row = rows.get(i);
+            final String key = row.key;
+            ApnPreference pref = oldPrefs.remove(key);
+            if (pref == null) {
+                pref = new ApnPreference(getActivity());
                 pref.setKey(key);
-                pref.setTitle(name);
-                pref.setSummary(apn);
                 pref.setPersistent(false);
                 pref.setOnPreferenceChangeListener(this);
-
-                boolean selectable = ((type == null) || !type.equals("mms"));
-                pref.setSelectable(selectable);
-                if (selectable) {
-                    if ((mSelectedKey != null) && mSelectedKey.equals(key)) {
-                        pref.setChecked();
-                        Log.d(TAG, "find select key = " + mSelectedKey);
-                    }
-                    apnList.addPreference(pref);
-                } else {
-                    mmsApnList.add(pref);
+                pref.setOrder(i);
+                bindRow(pref, row);
+                apnList.addPreference(pref);
+            } else {
+                if (!row.equals(mBoundRows.get(key))) {
+                    bindRow(pref, row);
                 }
-                cursor.moveToNext();
+                pref.setOrder(i);
             }
-            cursor.close();
+            mBoundRows.put(key, row);
+            mApnPrefs.put(key, pref);
 
-            for (Preference preference : mmsApnList) {
-                apnList.addPreference(preference);
+            if (row.selectable && (mSelectedKey != null) && mSelectedKey.equals(key)
+                    && !pref.isChecked()) {
+                pref.setChecked();
+                Log.d(TAG, "find select key = " + mSelectedKey);
             }
         }
+
+        for (int i = 0, N = oldPrefs.size(); i < N; i++) {
+            mBoundRows.remove(oldPrefs.keyAt(i));
+            apnList.removePreference(oldPrefs.valueAt(i));
+        }
+        SettingsTrace.end("ApnSettings.bind", start);
     }
 
+    private static void bindRow(ApnPreference pref, ApnListLoader.Row row) {
+        pref.setApnReadOnly(row.readOnly);
+        pref.setTitle(row.name);
+        pref.setSummary(row.apn);
+        pref.setSelectable(row.selectable);
+    }
+
+    private final LoaderCallbacks<ApnListLoader.Snapshot> mApnListCallbacks =
+            new LoaderCallbacks<ApnListLoader.Snapshot>() {
+        @Override
+        public Loader<ApnListLoader.Snapshot> onCreateLoader(int id, Bundle args) {
+            return new ApnListLoader(getActivity(), getUri(Telephony.Carriers.CONTENT_URI),
+                    getUri(PREFERAPN_URI), mSubId);
+        }
+
+        @Override
+        public void onLoadFinished(Loader<ApnListLoader.Snapshot> loader,
+                ApnListLoader.Snapshot data) {
+            // Restoring deletes and re-inserts every APN; the list is refreshed once the
+            // restore completes rather than for each intermediate change.
+            if (data != null && !mRestoreDefaultApnMode) {
+                bindApnList(data);
+            }
+        }
+
+        @Override
+        public void onLoaderReset(Loader<ApnListLoader.Snapshot> loader) {
+        }
+    };
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         if (!mUnavailable) {
@@ -296,7 +324,7 @@ public class ApnSettings extends SettingsPreferenceFragment implements
 
     private void addNewApn() {
         Intent intent = new Intent(Intent.ACTION_INSERT, getUri(Telephony.Carriers.CONTENT_URI));
-        intent.putExtra(OPERATOR_NUMERIC_EXTRA, getOperatorNumeric()[0]);
+        intent.putExtra(OPERATOR_NUMERIC_EXTRA, ApnListLoader.getOperatorNumeric(mSubId)[0]);
         startActivity(intent);
     }
 
@@ -328,19 +356,6 @@ public class ApnSettings extends SettingsPreferenceFragment implements
         resolver.update(getUri(PREFERAPN_URI), values, null, null);
     }
 
-    private String getSelectedApnKey() {
-        String key = null;
-
-        Cursor cursor = getContentResolver().query(getUri(PREFERAPN_URI), new String[] {"_id"},
-                null, null, Telephony.Carriers.DEFAULT_SORT_ORDER);
-        if (cursor.getCount() > 0) {
-            cursor.moveToFirst();
-            key = cursor.getString(ID_INDEX);
-        }
-        cursor.close();
-        return key;
-    }
-
     private boolean restoreDefaultApn() {
         showDialog(DIALOG_RESTORE_DEFAULTAPN);
         mRestoreDefaultApnMode = true;
@@ -349,17 +364,16 @@ public class ApnSettings extends SettingsPreferenceFragment implements
             mRestoreApnUiHandler = new RestoreApnUiHandler();
         }
 
-        if (mRestoreApnProcessHandler == null ||
-            mRestoreDefaultApnThread == null) {
-            mRestoreDefaultApnThread = new HandlerThread(
-                    "Restore default APN Handler: Process Thread");
-            mRestoreDefaultApnThread.start();
-            mRestoreApnProcessHandler = new RestoreApnProcessHandler(
-                    mRestoreDefaultApnThread.getLooper(), mRestoreApnUiHandler);
-        }
-
-        mRestoreApnProcessHandler
-                .sendEmptyMessage(EVENT_RESTORE_DEFAULTAPN_START);
+        final ContentResolver resolver = getContentResolver();
+        final Uri uri = getUri(DEFAULTAPN_URI);
+        final Handler uiHandler = mRestoreApnUiHandler;
+        SettingsExecutor.execute(SettingsExecutor.LANE_IO, new Runnable() {
+            @Override
+            public void run() {
+                resolver.delete(uri, null, null);
+                uiHandler.sendEmptyMessage(EVENT_RESTORE_DEFAULTAPN_COMPLETE);
+            }
+        });
         return true;
     }
 
@@ -373,9 +387,9 @@ public class ApnSettings extends SettingsPreferenceFragment implements
                         mRestoreDefaultApnMode = false;
                         return;
                     }
-                    fillList();
                     getPreferenceScreen().setEnabled(true);
                     mRestoreDefaultApnMode = false;
+                    refreshList();
                     removeDialog(DIALOG_RESTORE_DEFAULTAPN);
                     Toast.makeText(
                         activity,
@@ -387,27 +401,6 @@ public class ApnSettings extends SettingsPreferenceFragment implements
         }
     }
 
-    private class RestoreApnProcessHandler extends Handler {
-        private Handler mRestoreApnUiHandler;
-
-        public RestoreApnProcessHandler(Looper looper, Handler restoreApnUiHandler) {
-            super(looper);
-            this.mRestoreApnUiHandler = restoreApnUiHandler;
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case EVENT_RESTORE_DEFAULTAPN_START:
-                    ContentResolver resolver = getContentResolver();
-                    resolver.delete(getUri(DEFAULTAPN_URI), null, null);
-                    mRestoreApnUiHandler
-                        .sendEmptyMessage(EVENT_RESTORE_DEFAULTAPN_COMPLETE);
-                    break;
-            }
-        }
-    }
-
     @Override
     public Dialog onCreateDialog(int id) {
         if (id == DIALOG_RESTORE_DEFAULTAPN) {
@@ -418,31 +411,4 @@ public class ApnSettings extends SettingsPreferenceFragment implements
         }
         return null;
     }
-
-    private String getOperatorNumericSelection() {
-        String[] mccmncs = getOperatorNumeric();
-        String where;
-        where = (mccmncs[0] != null) ? "numeric=\"" + mccmncs[0] + "\"" : "";
-        where += (mccmncs[1] != null) ? " or numeric=\"" + mccmncs[1] + "\"" : "";
-        Log.d(TAG, "getOperatorNumericSelection: " + where);
-        return where;
-    }
-
-    private String[] getOperatorNumeric() {
-        ArrayList<String> result = new ArrayList<String>();
-        if (mUseNvOperatorForEhrpd) {
-            String mccMncForEhrpd = SystemProperties.get("ro.cdma.home.operator.numeric", null);
-            if (mccMncForEhrpd != null && mccMncForEhrpd.length() > 0) {
-                result.add(mccMncForEhrpd);
-            }
-        }
-
-        String mccMncFromSim = TelephonyManager.getDefault().getIccOperatorNumeric(mSubId);
-        Log.d(TAG, "getOperatorNumeric: sub= " + mSubId +
-                    " mcc-mnc= " + mccMncFromSim);
-        if (mccMncFromSim != null && mccMncFromSim.length() > 0) {
-            result.add(mccMncFromSim);
-        }
-        return result.toArray(new String[2]);
-    }
 }
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageItemInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Cache of app icons, pre-scaled to the list icon size, shared by the app lists in Settings.
+ *
+ * <p>Icons are kept in a memory LRU in front of a size-bounded directory of PNG thumbnails
+ * under the cache dir, keyed by package, component, user and density. Memory and disk entries
+ * also record the APK path and modification time they were rendered from and are ignored once
+ * they change, so an updated app never shows a stale icon even if the update was missed. Entries
+ * for a package are dropped when it is added, changed or removed.
+ *
+ * <p>{@link #getIcon} may read a file; call it off the main thread where possible. New
+ * thumbnails are written in the background.
+ */
+public final class AppIconCache {
+    private static final String TAG = "AppIconCache";
+    private static final boolean DEBUG = false;
+
+    private static final String DIR_NAME = "app_icons";
+    private static final int MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_DISK_BYTES = 8 * 1024 * 1024;
+
+    private static AppIconCache sInstance;
+
+    private final Context mContext;
+    private final PackageManager mPm;
+    private final File mDir;
+
+    private static final class MemoryEntry {
+        final Bitmap bitmap;
+        final String version;
+
+        MemoryEntry(Bitmap bitmap, String version) {
+            this.bitmap = bitmap;
+            this.version = version;
+        }
+    }
+
+    private final LruCache<String, MemoryEntry> mMemory = new LruCache<String, MemoryEntry>(
+            MAX_MEMORY_BYTES) {
+        @Override
+        protected int sizeOf(String key, MemoryEntry value) {
+            return value.bitmap.getByteCount();
+        }
+    };
+
+    private final Object mDiskLock = new Object();
+    /** Bytes used on disk, or -1 until the directory has been scanned. */
+    private long mDiskSize = -1;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final String[] packages = intent.getStringArrayExtra(
+                        Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (packages != null) {
+                    for (String packageName : packages) {
+                        invalidate(packageName);
+                    }
+                }
+            } else {
+                final Uri data = intent.getData();
+                if (data != null) {
+                    invalidate(data.getSchemeSpecificPart());
+                }
+            }
+        }
+    };
+
+    public static AppIconCache getInstance(Context context) {
+        synchronized (AppIconCache.class) {
+            if (sInstance == null) {
+                sInstance = new AppIconCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private AppIconCache(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+        mDir = new File(context.getCacheDir(), DIR_NAME);
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+        final IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(mPackageReceiver, sdFilter);
+    }
+
+    /**
+     * Returns the icon of {@code app}.
+     */
+    public Drawable getIcon(ApplicationInfo app) {
+        return getIcon(app, app);
+    }
+
+    /**
+     * Returns the icon of {@code item}, a component of {@code app} or {@code app} itself.
+     */
+    public Drawable getIcon(PackageItemInfo item, ApplicationInfo app) {
+        final Resources res = mContext.getResources();
+        final String key = getKey(item, app, res);
+        // Checked on memory hits too, as the package broadcast that invalidates the entry may
+        // not have been handled yet.
+        final String version = getVersion(app);
+        final MemoryEntry entry = mMemory.get(key);
+        Bitmap bitmap = entry != null && version.equals(entry.version) ? entry.bitmap : null;
+        if (bitmap == null) {
+            final long start = SettingsTrace.begin();
+            final File file = getFile(app.packageName, key);
+            bitmap = read(file, key, version);
+            if (bitmap == null) {
+                final Drawable icon = item.loadIcon(mPm);
+                bitmap = render(icon, res.getDimensionPixelSize(android.R.dimen.app_icon_size));
+                if (bitmap == null) {
+                    return icon;
+                }
+                writeAsync(file, key, version, bitmap);
+                SettingsTrace.end("AppIconCache.load", key, start);
+            } else {
+                SettingsTrace.end("AppIconCache.read", key, start);
+            }
+            mMemory.put(key, new MemoryEntry(bitmap, version));
+        }
+        return new BitmapDrawable(res, bitmap);
+    }
+
+    /**
+     * Drops all cached icons of {@code packageName}, for every user.
+     */
+    public void invalidate(final String packageName) {
+        if (packageName == null) {
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "invalidate " + packageName);
+        final String prefix = packageName + "/";
+        for (String key : mMemory.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mMemory.remove(key);
+            }
+        }
+        SettingsExecutor.execute(SettingsExecutor.LANE_IO, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mDiskLock) {
+                    final File[] files = mDir.listFiles();
+                    if (files == null) {
+                        return;
+                    }
+                    final String filePrefix = packageName + "-";
+                    for (File file : files) {
+                        if (file.getName().startsWith(filePrefix)) {
+                            deleteLocked(file);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static String getKey(PackageItemInfo item, ApplicationInfo app, Resources res) {
+        return app.packageName + "/" + (item == app ? "" : item.name) + "/"
+                + UserHandle.getUserId(app.uid) + "/" + res.getDisplayMetrics().densityDpi;
+    }
+
+    private static String getVersion(ApplicationInfo app) {
+        // A stat of the APK, which is much cheaper than opening it.
+        return app.sourceDir + ":" + new File(app.sourceDir).lastModified();
+    }
+
+    private File getFile(String packageName, String key) {
+        // Package names never contain '-', so the prefix identifies all files of a package.
+        return new File(mDir, packageName + "-" + Integer.toHexString(key.hashCode()));
+    }
+
+    private static Bitmap render(Drawable icon, int size) {
+        if (icon == null || size <= 0) {
+            return null;
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        final Rect oldBounds = icon.copyBounds();
+        icon.setBounds(0, 0, size, size);
+        icon.draw(canvas);
+        icon.setBounds(oldBounds);
+        canvas.setBitmap(null);
+        return bitmap;
+    }
+
+    private Bitmap read(File file, String key, String version) {
+        if (!file.exists()) {
+            return null;
+        }
+        final AtomicFile atomicFile = new AtomicFile(file);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(atomicFile.openRead());
+            // Files are named by hash, so check the full key as well as the version.
+            if (!key.equals(in.readUTF()) || !version.equals(in.readUTF())) {
+                return null;
+            }
+            return BitmapFactory.decodeStream(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves {@code bitmap} on the IO lane, so that callers on the main thread only pay for
+     * loading and rendering the icon.
+     */
+    private void writeAsync(final File file, final String key, final String version,
+            final Bitmap bitmap) {
+        SettingsExecutor.execute(SettingsExecutor.LANE_IO, new Runnable() {
+            @Override
+            public void run() {
+                write(file, key, version, bitmap);
+            }
+        });
+    }
+
+    private void write(File file, String key, String version, Bitmap bitmap) {
+        synchronized (mDiskLock) {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                return;
+            }
+            if (mDiskSize < 0) {
+                mDiskSize = 0;
+                for (File f : mDir.listFiles()) {
+                    mDiskSize += f.length();
+                }
+            }
+
+            final AtomicFile atomicFile = new AtomicFile(file);
+            final long oldLength = file.length();
+            FileOutputStream out = null;
+            try {
+                out = atomicFile.startWrite();
+                final DataOutputStream data = new DataOutputStream(out);
+                data.writeUTF(key);
+                data.writeUTF(version);
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, data);
+                data.flush();
+                atomicFile.finishWrite(out);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write " + file, e);
+                atomicFile.failWrite(out);
+                return;
+            }
+            mDiskSize += file.length() - oldLength;
+
+            if (mDiskSize > MAX_DISK_BYTES) {
+                trimLocked();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently written files until a quarter of the budget is free.
+     */
+    private void trimLocked() {
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (mDiskSize <= MAX_DISK_BYTES * 3 / 4) {
+                break;
+            }
+            deleteLocked(file);
+        }
+        if (DEBUG) Log.d(TAG, "trimmed to " + mDiskSize + " bytes");
+    }
+
+    private void deleteLocked(File file) {
+        final long length = file.length();
+        if (file.delete() && mDiskSize >= 0) {
+            mDiskSize -= length;
+        }
+    }
+}
@@ -345,10 +345,18 @@ public class DateTimeSettings extends SettingsPreferenceFragment
     }
 
     public static String getTimeZoneText(TimeZone tz, boolean includeName) {
+        // Use SimpleDateFormat to format the GMT+00:00 string.
+        return getTimeZoneText(new SimpleDateFormat("ZZZZ"), tz, includeName);
+    }
+
+    /**
+     * Like {@link #getTimeZoneText(TimeZone, boolean)}, but reuses {@code gmtFormatter}, a
+     * "ZZZZ" formatter, so that callers formatting many zones only create it once.
+     */
+    static String getTimeZoneText(SimpleDateFormat gmtFormatter, TimeZone tz,
+            boolean includeName) {
         Date now = new Date();
 
-        // Use SimpleDateFormat to format the GMT+00:00 string.
-        SimpleDateFormat gmtFormatter = new SimpleDateFormat("ZZZZ");
         gmtFormatter.setTimeZone(tz);
         String gmtString = gmtFormatter.format(now);
 
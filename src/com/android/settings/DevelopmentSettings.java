@@ -32,7 +32,9 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.hardware.usb.IUsbManager;
+import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.os.AsyncTask;
 import android.os.BatteryManager;
@@ -57,6 +59,7 @@ import android.preference.SwitchPreference;
 import android.provider.SearchIndexableResource;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.view.HardwareRenderer;
 import android.view.IWindowManager;
@@ -73,6 +76,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 
 /*
  * Displays preferences for application developers.
@@ -182,6 +186,12 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     private boolean mHaveDebugSettings;
     private boolean mDontPokeProperties;
 
+    // Snapshot being bound by updateAllOptions(OptionsSnapshot), null when reading live values
+    private OptionsSnapshot mSnapshot;
+    // Last snapshot bound, null once the user changed something on this screen
+    private OptionsSnapshot mLastSnapshot;
+    private SnapshotTask mSnapshotTask;
+
     private SwitchPreference mEnableAdb;
     private Preference mClearAdbKeys;
     private SwitchPreference mEnableTerminal;
@@ -435,11 +445,15 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void setPrefsEnabledState(boolean enabled) {
+        updatePrefsEnabledState(enabled);
+        updateAllOptions();
+    }
+
+    private void updatePrefsEnabledState(boolean enabled) {
         for (int i = 0; i < mAllPrefs.size(); i++) {
             Preference pref = mAllPrefs.get(i);
             pref.setEnabled(enabled && !mDisabledPrefs.contains(pref));
         }
-        updateAllOptions();
     }
 
     @Override
@@ -470,7 +484,32 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
         mLastEnabledState = Settings.Global.getInt(cr,
                 Settings.Global.DEVELOPMENT_SETTINGS_ENABLED, 0) != 0;
         mSwitchBar.setChecked(mLastEnabledState);
-        setPrefsEnabledState(mLastEnabledState);
+        updatePrefsEnabledState(mLastEnabledState);
+        mSwitchBar.show();
+
+        // The option values are read off the UI thread, then bound in onSnapshotLoaded()
+        if (mSnapshotTask != null) {
+            mSnapshotTask.cancel(false);
+        }
+        mSnapshotTask = new SnapshotTask();
+        mSnapshotTask.executeOnExecutor(SettingsExecutor.get(SettingsExecutor.LANE_BINDER));
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (mSnapshotTask != null) {
+            mSnapshotTask.cancel(false);
+            mSnapshotTask = null;
+        }
+    }
+
+    private void onSnapshotLoaded(OptionsSnapshot snapshot) {
+        if (snapshot == null) {
+            updateAllOptions();
+        } else if (!snapshot.equals(mLastSnapshot)) {
+            updateAllOptions(snapshot);
+        }
 
         if (mHaveDebugSettings && !mLastEnabledState) {
             // Overall debugging is disabled, but there are some debug
@@ -483,7 +522,244 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
             mSwitchBar.setChecked(mLastEnabledState);
             setPrefsEnabledState(mLastEnabledState);
         }
-        mSwitchBar.show();
+    }
+
+    private class SnapshotTask extends AsyncTask<Void, Void, OptionsSnapshot> {
+        private final Context mContext = getActivity();
+        private final boolean mHasTerminal = mEnableTerminal != null;
+        private final boolean mHasOemUnlock = mEnableOemUnlock != null;
+
+        @Override
+        protected OptionsSnapshot doInBackground(Void... params) {
+            final long start = SettingsTrace.begin();
+            try {
+                return new OptionsSnapshot(mContext, mWindowManager, mBackupManager,
+                        mWifiManager, mHasTerminal, mHasOemUnlock);
+            } catch (RuntimeException e) {
+                // Bind from live values instead
+                Log.w(TAG, "Unable to read development options", e);
+                return null;
+            } finally {
+                SettingsTrace.end("DevelopmentSettings.snapshot", start);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(OptionsSnapshot snapshot) {
+            mSnapshotTask = null;
+            onSnapshotLoaded(snapshot);
+        }
+    }
+
+    /**
+     * The values {@link #updateAllOptions()} reads over IPC, gathered in one pass off the UI
+     * thread, with settings read in one query per table. System properties are still read live
+     * while binding, as they come from shared memory, but their values are copied here too so
+     * that a property changed while the screen was paused makes the snapshot differ. Not
+     * modified once built, so two snapshots can be compared to tell whether anything needs
+     * binding.
+     */
+    private static final class OptionsSnapshot {
+        private static final String[] GLOBAL_NAMES = {
+            Settings.Global.ADB_ENABLED,
+            Settings.Global.STAY_ON_WHILE_PLUGGED_IN,
+            Settings.Global.DEBUG_VIEW_ATTRIBUTES,
+            Settings.Global.DEBUG_APP,
+            Settings.Global.WAIT_FOR_DEBUGGER,
+            Settings.Global.PACKAGE_VERIFIER_INCLUDE_ADB,
+            Settings.Global.PACKAGE_VERIFIER_ENABLE,
+            Settings.Global.SHOW_PROCESSES,
+            Settings.Global.ALWAYS_FINISH_ACTIVITIES,
+            Settings.Global.OVERLAY_DISPLAY_DEVICES,
+            Settings.Global.DEVELOPMENT_FORCE_RTL,
+            Settings.Global.WIFI_DISPLAY_CERTIFICATION_ON,
+        };
+        private static final String[] SECURE_NAMES = {
+            Settings.Secure.BUGREPORT_IN_POWER_MENU,
+            Settings.Secure.BLUETOOTH_HCI_LOG,
+            Settings.Secure.ALLOW_MOCK_LOCATION,
+            Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER_ENABLED,
+            Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER,
+            Settings.Secure.USB_AUDIO_AUTOMATIC_ROUTING_DISABLED,
+            Settings.Secure.ANR_SHOW_BACKGROUND,
+        };
+        private static final String[] SYSTEM_NAMES = {
+            ENABLE_QUICKBOOT,
+            Settings.System.POINTER_LOCATION,
+            Settings.System.SHOW_TOUCHES,
+        };
+        private static final String[] PROPERTY_NAMES = {
+            HDCP_CHECKING_PROPERTY,
+            StrictMode.VISUAL_PROPERTY,
+            HARDWARE_UI_PROPERTY,
+            MSAA_PROPERTY,
+            HardwareRenderer.PROFILE_PROPERTY,
+            HardwareRenderer.DEBUG_SHOW_NON_RECTANGULAR_CLIP_PROPERTY,
+            HardwareRenderer.DEBUG_DIRTY_REGIONS_PROPERTY,
+            HardwareRenderer.DEBUG_SHOW_LAYERS_UPDATES_PROPERTY,
+            HardwareRenderer.DEBUG_OVERDRAW_PROPERTY,
+            View.DEBUG_LAYOUT_PROPERTY,
+            OPENGL_TRACES_PROPERTY,
+            USE_AWESOMEPLAYER_PROPERTY,
+            SELECT_LOGD_SIZE_PROPERTY,
+        };
+
+        private final ArrayMap<String, String> mGlobal;
+        private final ArrayMap<String, String> mSecure;
+        private final ArrayMap<String, String> mSystem;
+        private final String[] mProperties;
+        private final int mTerminalState;
+        private final boolean mOemUnlockEnabled;
+        // null if the remote call failed
+        private final Boolean mHasBackupPassword;
+        private final String mDebugAppLabel;
+        private final boolean mHasVerifierReceivers;
+        private final int[] mFlingerOptions;
+        private final float[] mAnimationScales;
+        private final Integer mProcessLimit;
+        private final int mWifiVerboseLoggingLevel;
+        private final int mWifiAggressiveHandover;
+        private final int mWifiAllowScansWithTraffic;
+
+        OptionsSnapshot(Context context, IWindowManager windowManager,
+                IBackupManager backupManager, WifiManager wifiManager, boolean hasTerminal,
+                boolean hasOemUnlock) {
+            final ContentResolver cr = context.getContentResolver();
+            final PackageManager pm = context.getPackageManager();
+            mGlobal = readSettings(cr, Settings.Global.CONTENT_URI, GLOBAL_NAMES);
+            mSecure = readSettings(cr, Settings.Secure.CONTENT_URI, SECURE_NAMES);
+            mSystem = readSettings(cr, Settings.System.CONTENT_URI, SYSTEM_NAMES);
+            mProperties = new String[PROPERTY_NAMES.length];
+            for (int i = 0; i < PROPERTY_NAMES.length; i++) {
+                mProperties[i] = SystemProperties.get(PROPERTY_NAMES[i]);
+            }
+
+            mTerminalState = hasTerminal
+                    ? pm.getApplicationEnabledSetting(TERMINAL_APP_PACKAGE) : 0;
+            mOemUnlockEnabled = hasOemUnlock && Utils.isOemUnlockEnabled(context);
+            Boolean hasBackupPassword;
+            try {
+                hasBackupPassword = backupManager.hasBackupPassword();
+            } catch (RemoteException e) {
+                hasBackupPassword = null;
+            }
+            mHasBackupPassword = hasBackupPassword;
+            final String debugApp = mGlobal.get(Settings.Global.DEBUG_APP);
+            mDebugAppLabel = !TextUtils.isEmpty(debugApp) ? loadDebugAppLabel(pm, debugApp)
+                    : null;
+            mHasVerifierReceivers = hasVerifierReceivers(pm);
+            mFlingerOptions = readFlingerOptions();
+            float[] animationScales;
+            try {
+                animationScales = windowManager.getAnimationScales();
+            } catch (RemoteException e) {
+                animationScales = null;
+            }
+            mAnimationScales = animationScales;
+            Integer processLimit;
+            try {
+                processLimit = ActivityManagerNative.getDefault().getProcessLimit();
+            } catch (RemoteException e) {
+                processLimit = null;
+            }
+            mProcessLimit = processLimit;
+            mWifiVerboseLoggingLevel = wifiManager.getVerboseLoggingLevel();
+            mWifiAggressiveHandover = wifiManager.getAggressiveHandover();
+            mWifiAllowScansWithTraffic = wifiManager.getAllowScansWithTraffic();
+        }
+
+        private static ArrayMap<String, String> readSettings(ContentResolver cr, Uri uri,
+                String[] names) {
+            final StringBuilder selection = new StringBuilder(Settings.NameValueTable.NAME)
+                    .append(" IN (");
+            for (int i = 0; i < names.length; i++) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(')');
+            final Cursor cursor = cr.query(uri,
+                    new String[] { Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE },
+                    selection.toString(), names, null);
+            if (cursor == null) {
+                throw new IllegalStateException("Unable to query " + uri);
+            }
+            final ArrayMap<String, String> values = new ArrayMap<String, String>(names.length);
+            try {
+                while (cursor.moveToNext()) {
+                    values.put(cursor.getString(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+            return values;
+        }
+
+        static int getInt(ArrayMap<String, String> values, String name, int def) {
+            final String value = values.get(name);
+            if (value == null) {
+                return def;
+            }
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return def;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof OptionsSnapshot)) {
+                return false;
+            }
+            final OptionsSnapshot other = (OptionsSnapshot) o;
+            return mGlobal.equals(other.mGlobal)
+                    && mSecure.equals(other.mSecure)
+                    && mSystem.equals(other.mSystem)
+                    && Arrays.equals(mProperties, other.mProperties)
+                    && mTerminalState == other.mTerminalState
+                    && mOemUnlockEnabled == other.mOemUnlockEnabled
+                    && Objects.equals(mHasBackupPassword, other.mHasBackupPassword)
+                    && TextUtils.equals(mDebugAppLabel, other.mDebugAppLabel)
+                    && mHasVerifierReceivers == other.mHasVerifierReceivers
+                    && Arrays.equals(mFlingerOptions, other.mFlingerOptions)
+                    && Arrays.equals(mAnimationScales, other.mAnimationScales)
+                    && Objects.equals(mProcessLimit, other.mProcessLimit)
+                    && mWifiVerboseLoggingLevel == other.mWifiVerboseLoggingLevel
+                    && mWifiAggressiveHandover == other.mWifiAggressiveHandover
+                    && mWifiAllowScansWithTraffic == other.mWifiAllowScansWithTraffic;
+        }
+
+        @Override
+        public int hashCode() {
+            return mGlobal.hashCode() * 31 + mSecure.hashCode();
+        }
+    }
+
+    private int getGlobalInt(String name, int def) {
+        if (mSnapshot != null) {
+            return OptionsSnapshot.getInt(mSnapshot.mGlobal, name, def);
+        }
+        return Settings.Global.getInt(getActivity().getContentResolver(), name, def);
+    }
+
+    private String getGlobalString(String name) {
+        if (mSnapshot != null) {
+            return mSnapshot.mGlobal.get(name);
+        }
+        return Settings.Global.getString(getActivity().getContentResolver(), name);
+    }
+
+    private int getSecureInt(String name, int def) {
+        if (mSnapshot != null) {
+            return OptionsSnapshot.getInt(mSnapshot.mSecure, name, def);
+        }
+        return Settings.Secure.getInt(getActivity().getContentResolver(), name, def);
+    }
+
+    private int getSystemInt(String name, int def) {
+        if (mSnapshot != null) {
+            return OptionsSnapshot.getInt(mSnapshot.mSystem, name, def);
+        }
+        return Settings.System.getInt(getActivity().getContentResolver(), name, def);
     }
 
     @Override
@@ -502,31 +778,46 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
         mHaveDebugSettings |= value;
     }
 
+    /**
+     * Binds all options from {@code snapshot} rather than reading each value on the UI thread.
+     */
+    private void updateAllOptions(OptionsSnapshot snapshot) {
+        mSnapshot = snapshot;
+        try {
+            updateAllOptions();
+        } finally {
+            mSnapshot = null;
+        }
+        mLastSnapshot = snapshot;
+    }
+
     private void updateAllOptions() {
         final Context context = getActivity();
-        final ContentResolver cr = context.getContentResolver();
+        mLastSnapshot = null;
         mHaveDebugSettings = false;
-        updateSwitchPreference(mEnableAdb, Settings.Global.getInt(cr,
-                Settings.Global.ADB_ENABLED, 0) != 0);
+        updateSwitchPreference(mEnableAdb, getGlobalInt(Settings.Global.ADB_ENABLED, 0) != 0);
         if (mEnableTerminal != null) {
+            final int terminalState = mSnapshot != null ? mSnapshot.mTerminalState
+                    : context.getPackageManager().getApplicationEnabledSetting(
+                            TERMINAL_APP_PACKAGE);
             updateSwitchPreference(mEnableTerminal,
-                    context.getPackageManager().getApplicationEnabledSetting(TERMINAL_APP_PACKAGE)
-                            == PackageManager.COMPONENT_ENABLED_STATE_ENABLED);
-        }
-        updateSwitchPreference(mBugreportInPower, Settings.Secure.getInt(cr,
-                Settings.Secure.BUGREPORT_IN_POWER_MENU, 0) != 0);
-        updateSwitchPreference(mKeepScreenOn, Settings.Global.getInt(cr,
-                Settings.Global.STAY_ON_WHILE_PLUGGED_IN, 0) != 0);
-        updateSwitchPreference(mBtHciSnoopLog, Settings.Secure.getInt(cr,
-                Settings.Secure.BLUETOOTH_HCI_LOG, 0) != 0);
+                    terminalState == PackageManager.COMPONENT_ENABLED_STATE_ENABLED);
+        }
+        updateSwitchPreference(mBugreportInPower,
+                getSecureInt(Settings.Secure.BUGREPORT_IN_POWER_MENU, 0) != 0);
+        updateSwitchPreference(mKeepScreenOn,
+                getGlobalInt(Settings.Global.STAY_ON_WHILE_PLUGGED_IN, 0) != 0);
+        updateSwitchPreference(mBtHciSnoopLog,
+                getSecureInt(Settings.Secure.BLUETOOTH_HCI_LOG, 0) != 0);
         if (mEnableOemUnlock != null) {
-            updateSwitchPreference(mEnableOemUnlock, Utils.isOemUnlockEnabled(getActivity()));
-        }
-        updateSwitchPreference(mAllowMockLocation, Settings.Secure.getInt(cr,
-                Settings.Secure.ALLOW_MOCK_LOCATION, 0) != 0);
-        updateSwitchPreference(mDebugViewAttributes, Settings.Global.getInt(cr,
-                Settings.Global.DEBUG_VIEW_ATTRIBUTES, 0) != 0);
-        updateSwitchPreference(mQuickBoot, Settings.System.getInt(cr, ENABLE_QUICKBOOT, 0) != 0);
+            updateSwitchPreference(mEnableOemUnlock, mSnapshot != null
+                    ? mSnapshot.mOemUnlockEnabled : Utils.isOemUnlockEnabled(getActivity()));
+        }
+        updateSwitchPreference(mAllowMockLocation,
+                getSecureInt(Settings.Secure.ALLOW_MOCK_LOCATION, 0) != 0);
+        updateSwitchPreference(mDebugViewAttributes,
+                getGlobalInt(Settings.Global.DEBUG_VIEW_ATTRIBUTES, 0) != 0);
+        updateSwitchPreference(mQuickBoot, getSystemInt(ENABLE_QUICKBOOT, 0) != 0);
         updateHdcpValues();
         updatePasswordSummary();
         updateDebuggerOptions();
@@ -609,7 +900,16 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
 
     private void updatePasswordSummary() {
         try {
-            if (mBackupManager.hasBackupPassword()) {
+            final boolean hasBackupPassword;
+            if (mSnapshot != null) {
+                if (mSnapshot.mHasBackupPassword == null) {
+                    return;
+                }
+                hasBackupPassword = mSnapshot.mHasBackupPassword;
+            } else {
+                hasBackupPassword = mBackupManager.hasBackupPassword();
+            }
+            if (hasBackupPassword) {
                 mPassword.setSummary(R.string.local_backup_password_summary_change);
             } else {
                 mPassword.setSummary(R.string.local_backup_password_summary_none);
@@ -644,20 +944,12 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateDebuggerOptions() {
-        mDebugApp = Settings.Global.getString(
-                getActivity().getContentResolver(), Settings.Global.DEBUG_APP);
-        updateSwitchPreference(mWaitForDebugger, Settings.Global.getInt(
-                getActivity().getContentResolver(), Settings.Global.WAIT_FOR_DEBUGGER, 0) != 0);
+        mDebugApp = getGlobalString(Settings.Global.DEBUG_APP);
+        updateSwitchPreference(mWaitForDebugger,
+                getGlobalInt(Settings.Global.WAIT_FOR_DEBUGGER, 0) != 0);
         if (mDebugApp != null && mDebugApp.length() > 0) {
-            String label;
-            try {
-                ApplicationInfo ai = getActivity().getPackageManager().getApplicationInfo(mDebugApp,
-                        PackageManager.GET_DISABLED_COMPONENTS);
-                CharSequence lab = getActivity().getPackageManager().getApplicationLabel(ai);
-                label = lab != null ? lab.toString() : mDebugApp;
-            } catch (PackageManager.NameNotFoundException e) {
-                label = mDebugApp;
-            }
+            final String label = mSnapshot != null ? mSnapshot.mDebugAppLabel
+                    : loadDebugAppLabel(getActivity().getPackageManager(), mDebugApp);
             mDebugAppPref.setSummary(getResources().getString(R.string.debug_app_set, label));
             mWaitForDebugger.setEnabled(true);
             mHaveDebugSettings = true;
@@ -667,9 +959,20 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
         }
     }
 
+    private static String loadDebugAppLabel(PackageManager pm, String debugApp) {
+        try {
+            ApplicationInfo ai = pm.getApplicationInfo(debugApp,
+                    PackageManager.GET_DISABLED_COMPONENTS);
+            CharSequence lab = pm.getApplicationLabel(ai);
+            return lab != null ? lab.toString() : debugApp;
+        } catch (PackageManager.NameNotFoundException e) {
+            return debugApp;
+        }
+    }
+
     private void updateVerifyAppsOverUsbOptions() {
-        updateSwitchPreference(mVerifyAppsOverUsb, Settings.Global.getInt(getActivity().getContentResolver(),
-                Settings.Global.PACKAGE_VERIFIER_INCLUDE_ADB, 1) != 0);
+        updateSwitchPreference(mVerifyAppsOverUsb,
+                getGlobalInt(Settings.Global.PACKAGE_VERIFIER_INCLUDE_ADB, 1) != 0);
         mVerifyAppsOverUsb.setEnabled(enableVerifierSetting());
     }
 
@@ -679,23 +982,23 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private boolean enableVerifierSetting() {
-        final ContentResolver cr = getActivity().getContentResolver();
-        if (Settings.Global.getInt(cr, Settings.Global.ADB_ENABLED, 0) == 0) {
+        if (getGlobalInt(Settings.Global.ADB_ENABLED, 0) == 0) {
             return false;
         }
-        if (Settings.Global.getInt(cr, Settings.Global.PACKAGE_VERIFIER_ENABLE, 1) == 0) {
+        if (getGlobalInt(Settings.Global.PACKAGE_VERIFIER_ENABLE, 1) == 0) {
             return false;
         } else {
-            final PackageManager pm = getActivity().getPackageManager();
-            final Intent verification = new Intent(Intent.ACTION_PACKAGE_NEEDS_VERIFICATION);
-            verification.setType(PACKAGE_MIME_TYPE);
-            verification.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-            final List<ResolveInfo> receivers = pm.queryBroadcastReceivers(verification, 0);
-            if (receivers.size() == 0) {
-                return false;
-            }
+            return mSnapshot != null ? mSnapshot.mHasVerifierReceivers
+                    : hasVerifierReceivers(getActivity().getPackageManager());
         }
-        return true;
+    }
+
+    private static boolean hasVerifierReceivers(PackageManager pm) {
+        final Intent verification = new Intent(Intent.ACTION_PACKAGE_NEEDS_VERIFICATION);
+        verification.setType(PACKAGE_MIME_TYPE);
+        verification.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        final List<ResolveInfo> receivers = pm.queryBroadcastReceivers(verification, 0);
+        return receivers.size() != 0;
     }
 
     private boolean showVerifierSetting() {
@@ -710,8 +1013,7 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     private void updateBugreportOptions() {
         if ("user".equals(Build.TYPE)) {
             final ContentResolver resolver = getActivity().getContentResolver();
-            final boolean adbEnabled = Settings.Global.getInt(
-                    resolver, Settings.Global.ADB_ENABLED, 0) != 0;
+            final boolean adbEnabled = getGlobalInt(Settings.Global.ADB_ENABLED, 0) != 0;
             if (adbEnabled) {
                 mBugreport.setEnabled(true);
                 mBugreportInPower.setEnabled(true);
@@ -757,8 +1059,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updatePointerLocationOptions() {
-        updateSwitchPreference(mPointerLocation, Settings.System.getInt(getActivity().getContentResolver(),
-                Settings.System.POINTER_LOCATION, 0) != 0);
+        updateSwitchPreference(mPointerLocation,
+                getSystemInt(Settings.System.POINTER_LOCATION, 0) != 0);
     }
 
     private void writeShowTouchesOptions() {
@@ -767,11 +1069,23 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateShowTouchesOptions() {
-        updateSwitchPreference(mShowTouches, Settings.System.getInt(getActivity().getContentResolver(),
-                Settings.System.SHOW_TOUCHES, 0) != 0);
+        updateSwitchPreference(mShowTouches, getSystemInt(Settings.System.SHOW_TOUCHES, 0) != 0);
     }
 
     private void updateFlingerOptions() {
+        final int[] options = mSnapshot != null ? mSnapshot.mFlingerOptions
+                : readFlingerOptions();
+        if (options != null) {
+            updateSwitchPreference(mShowScreenUpdates, options[0] != 0);
+            updateSwitchPreference(mDisableOverlays, options[1] != 0);
+        }
+    }
+
+    /**
+     * Returns the show updates and disable overlays flags of surface flinger, or null if it
+     * can't be reached.
+     */
+    private static int[] readFlingerOptions() {
         // magic communication with surface flinger.
         try {
             IBinder flinger = ServiceManager.getService("SurfaceFlinger");
@@ -785,16 +1099,16 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
                 @SuppressWarnings("unused")
                 int enableGL = reply.readInt();
                 int showUpdates = reply.readInt();
-                updateSwitchPreference(mShowScreenUpdates, showUpdates != 0);
                 @SuppressWarnings("unused")
                 int showBackground = reply.readInt();
                 int disableOverlays = reply.readInt();
-                updateSwitchPreference(mDisableOverlays, disableOverlays != 0);
                 reply.recycle();
                 data.recycle();
+                return new int[] { showUpdates, disableOverlays };
             }
         } catch (RemoteException ex) {
         }
+        return null;
     }
 
     private void writeShowUpdatesOption() {
@@ -959,12 +1273,11 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateSimulateColorSpace() {
-        final ContentResolver cr = getContentResolver();
-        final boolean enabled = Settings.Secure.getInt(
-                cr, Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER_ENABLED, 0) != 0;
+        final boolean enabled = getSecureInt(
+                Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER_ENABLED, 0) != 0;
         if (enabled) {
-            final String mode = Integer.toString(Settings.Secure.getInt(
-                    cr, Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER,
+            final String mode = Integer.toString(getSecureInt(
+                    Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER,
                     AccessibilityManager.DALTONIZER_DISABLED));
             mSimulateColorSpace.setValue(mode);
             final int index = mSimulateColorSpace.findIndexOfValue(mode);
@@ -1025,8 +1338,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateUSBAudioOptions() {
-        updateSwitchPreference(mUSBAudio, Settings.Secure.getInt(getContentResolver(),
-                Settings.Secure.USB_AUDIO_AUTOMATIC_ROUTING_DISABLED, 0) != 0);
+        updateSwitchPreference(mUSBAudio,
+                getSecureInt(Settings.Secure.USB_AUDIO_AUTOMATIC_ROUTING_DISABLED, 0) != 0);
     }
 
     private void writeUSBAudioOptions() {
@@ -1036,8 +1349,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateForceRtlOptions() {
-        updateSwitchPreference(mForceRtlLayout, Settings.Global.getInt(getActivity().getContentResolver(),
-                Settings.Global.DEVELOPMENT_FORCE_RTL, 0) != 0);
+        updateSwitchPreference(mForceRtlLayout,
+                getGlobalInt(Settings.Global.DEVELOPMENT_FORCE_RTL, 0) != 0);
     }
 
     private void writeForceRtlOptions() {
@@ -1049,9 +1362,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateWifiDisplayCertificationOptions() {
-        updateSwitchPreference(mWifiDisplayCertification, Settings.Global.getInt(
-                getActivity().getContentResolver(),
-                Settings.Global.WIFI_DISPLAY_CERTIFICATION_ON, 0) != 0);
+        updateSwitchPreference(mWifiDisplayCertification,
+                getGlobalInt(Settings.Global.WIFI_DISPLAY_CERTIFICATION_ON, 0) != 0);
     }
 
     private void writeWifiDisplayCertificationOptions() {
@@ -1061,7 +1373,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateWifiVerboseLoggingOptions() {
-        boolean enabled = mWifiManager.getVerboseLoggingLevel() > 0;
+        boolean enabled = (mSnapshot != null ? mSnapshot.mWifiVerboseLoggingLevel
+                : mWifiManager.getVerboseLoggingLevel()) > 0;
         updateSwitchPreference(mWifiVerboseLogging, enabled);
     }
 
@@ -1070,7 +1383,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateWifiAggressiveHandoverOptions() {
-        boolean enabled = mWifiManager.getAggressiveHandover() > 0;
+        boolean enabled = (mSnapshot != null ? mSnapshot.mWifiAggressiveHandover
+                : mWifiManager.getAggressiveHandover()) > 0;
         updateSwitchPreference(mWifiAggressiveHandover, enabled);
     }
 
@@ -1079,7 +1393,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateWifiAllowScansWithTrafficOptions() {
-        boolean enabled = mWifiManager.getAllowScansWithTraffic() > 0;
+        boolean enabled = (mSnapshot != null ? mSnapshot.mWifiAllowScansWithTraffic
+                : mWifiManager.getAllowScansWithTraffic()) > 0;
         updateSwitchPreference(mWifiAllowScansWithTraffic, enabled);
     }
 
@@ -1137,8 +1452,7 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateCpuUsageOptions() {
-        updateSwitchPreference(mShowCpuUsage, Settings.Global.getInt(getActivity().getContentResolver(),
-                Settings.Global.SHOW_PROCESSES, 0) != 0);
+        updateSwitchPreference(mShowCpuUsage, getGlobalInt(Settings.Global.SHOW_PROCESSES, 0) != 0);
     }
 
     private void writeCpuUsageOptions() {
@@ -1163,35 +1477,47 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateImmediatelyDestroyActivitiesOptions() {
-        updateSwitchPreference(mImmediatelyDestroyActivities, Settings.Global.getInt(
-                getActivity().getContentResolver(), Settings.Global.ALWAYS_FINISH_ACTIVITIES, 0) != 0);
+        updateSwitchPreference(mImmediatelyDestroyActivities,
+                getGlobalInt(Settings.Global.ALWAYS_FINISH_ACTIVITIES, 0) != 0);
     }
 
     private void updateAnimationScaleValue(int which, ListPreference pref) {
         try {
-            float scale = mWindowManager.getAnimationScale(which);
-            if (scale != 1) {
-                mHaveDebugSettings = true;
-            }
-            CharSequence[] values = pref.getEntryValues();
-            for (int i=0; i<values.length; i++) {
-                float val = Float.parseFloat(values[i].toString());
-                if (scale <= val) {
-                    pref.setValueIndex(i);
-                    pref.setSummary(pref.getEntries()[i]);
-                    return;
-                }
-            }
-            pref.setValueIndex(values.length-1);
-            pref.setSummary(pref.getEntries()[0]);
+            updateAnimationScaleValue(pref, mWindowManager.getAnimationScale(which));
         } catch (RemoteException e) {
         }
     }
 
+    private void updateAnimationScaleValue(ListPreference pref, float scale) {
+        if (scale != 1) {
+            mHaveDebugSettings = true;
+        }
+        CharSequence[] values = pref.getEntryValues();
+        for (int i=0; i<values.length; i++) {
+            float val = Float.parseFloat(values[i].toString());
+            if (scale <= val) {
+                pref.setValueIndex(i);
+                pref.setSummary(pref.getEntries()[i]);
+                return;
+            }
+        }
+        pref.setValueIndex(values.length-1);
+        pref.setSummary(pref.getEntries()[0]);
+    }
+
     private void updateAnimationScaleOptions() {
-        updateAnimationScaleValue(0, mWindowAnimationScale);
-        updateAnimationScaleValue(1, mTransitionAnimationScale);
-        updateAnimationScaleValue(2, mAnimatorDurationScale);
+        if (mSnapshot == null) {
+            updateAnimationScaleValue(0, mWindowAnimationScale);
+            updateAnimationScaleValue(1, mTransitionAnimationScale);
+            updateAnimationScaleValue(2, mAnimatorDurationScale);
+            return;
+        }
+        final float[] scales = mSnapshot.mAnimationScales;
+        if (scales != null && scales.length >= 3) {
+            updateAnimationScaleValue(mWindowAnimationScale, scales[0]);
+            updateAnimationScaleValue(mTransitionAnimationScale, scales[1]);
+            updateAnimationScaleValue(mAnimatorDurationScale, scales[2]);
+        }
     }
 
     private void writeAnimationScaleOption(int which, ListPreference pref, Object newValue) {
@@ -1204,8 +1530,7 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateOverlayDisplayDevicesOptions() {
-        String value = Settings.Global.getString(getActivity().getContentResolver(),
-                Settings.Global.OVERLAY_DISPLAY_DEVICES);
+        String value = getGlobalString(Settings.Global.OVERLAY_DISPLAY_DEVICES);
         if (value == null) {
             value = "";
         }
@@ -1254,7 +1579,15 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
 
     private void updateAppProcessLimitOptions() {
         try {
-            int limit = ActivityManagerNative.getDefault().getProcessLimit();
+            final int limit;
+            if (mSnapshot != null) {
+                if (mSnapshot.mProcessLimit == null) {
+                    return;
+                }
+                limit = mSnapshot.mProcessLimit;
+            } else {
+                limit = ActivityManagerNative.getDefault().getProcessLimit();
+            }
             CharSequence[] values = mAppProcessLimit.getEntryValues();
             for (int i=0; i<values.length; i++) {
                 int val = Integer.parseInt(values[i].toString());
@@ -1289,8 +1622,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     private void updateShowAllANRsOptions() {
-        updateSwitchPreference(mShowAllANRs, Settings.Secure.getInt(
-                getActivity().getContentResolver(), Settings.Secure.ANR_SHOW_BACKGROUND, 0) != 0);
+        updateSwitchPreference(mShowAllANRs,
+                getSecureInt(Settings.Secure.ANR_SHOW_BACKGROUND, 0) != 0);
     }
 
     private void confirmEnableOemUnlock() {
@@ -1313,6 +1646,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
 
     @Override
     public void onSwitchChanged(Switch switchView, boolean isChecked) {
+        // The user is changing options, so the last snapshot may not match the UI
+        mLastSnapshot = null;
         if (switchView != mSwitchBar.getSwitch()) {
             return;
         }
@@ -1340,6 +1675,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
 
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        // The user is changing options, so the last snapshot may not match the UI
+        mLastSnapshot = null;
         if (requestCode == RESULT_DEBUG_APP) {
             if (resultCode == Activity.RESULT_OK) {
                 mDebugApp = data.getAction();
@@ -1361,6 +1698,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
 
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
+        // The user is changing options, so the last snapshot may not match the UI
+        mLastSnapshot = null;
         if (Utils.isMonkeyRunning()) {
             return false;
         }
@@ -1487,6 +1826,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
 
     @Override
     public boolean onPreferenceChange(Preference preference, Object newValue) {
+        // The user is changing options, so the last snapshot may not match the UI
+        mLastSnapshot = null;
         if (HDCP_CHECKING_KEY.equals(preference.getKey())) {
             SystemProperties.set(HDCP_CHECKING_PROPERTY, newValue.toString());
             updateHdcpValues();
@@ -1545,6 +1886,8 @@ public class DevelopmentSettings extends SettingsPreferenceFragment
     }
 
     public void onClick(DialogInterface dialog, int which) {
+        // The user is changing options, so the last snapshot may not match the UI
+        mLastSnapshot = null;
         if (dialog == mAdbDialog) {
             if (which == DialogInterface.BUTTON_POSITIVE) {
                 mDialogClicked = true;
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
+import android.content.pm.Signature;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Per-process cache of how Settings classifies packages: system or updated system app,
+ * signed with the platform key, home app or launcher app.
+ *
+ * <p>Each package is looked up at most once until it changes, and {@link #preload} fills the
+ * cache for all packages with a single PackageManager call, so list screens classify their
+ * rows with hash lookups. Entries remember the {@link PackageInfo#lastUpdateTime} they were
+ * built from. Package broadcasts drop the entry of the changed package and the home and
+ * launcher sets.
+ */
+public final class PackageClassifier {
+    private static final String TAG = "PackageClassifier";
+
+    public static final int FLAG_SYSTEM = 1 << 0;
+    public static final int FLAG_UPDATED_SYSTEM = 1 << 1;
+    public static final int FLAG_PLATFORM_SIGNED = 1 << 2;
+    public static final int FLAG_HOME = 1 << 3;
+    public static final int FLAG_LAUNCHER = 1 << 4;
+
+    private static final int PACKAGE_FLAGS = PackageManager.GET_SIGNATURES
+            | PackageManager.GET_UNINSTALLED_PACKAGES | PackageManager.GET_DISABLED_COMPONENTS;
+
+    private static PackageClassifier sInstance;
+
+    private static final class Entry {
+        final long lastUpdateTime;
+        final int flags;
+
+        Entry(long lastUpdateTime, int flags) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.flags = flags;
+        }
+    }
+
+    private final PackageManager mPm;
+
+    // All guarded by this.
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<String, Entry>();
+    private boolean mPreloaded;
+    private boolean mPreloading;
+    /** Incremented by every invalidation, so a preload can tell that its result is stale. */
+    private int mGeneration;
+    private Signature mPlatformSignature;
+    private ArraySet<String> mHomePackages;
+    private ArraySet<String> mLauncherPackages;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final String[] packages = intent.getStringArrayExtra(
+                        Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (packages != null) {
+                    for (String packageName : packages) {
+                        invalidate(packageName);
+                    }
+                }
+            } else {
+                final Uri data = intent.getData();
+                if (data != null) {
+                    invalidate(data.getSchemeSpecificPart());
+                }
+            }
+        }
+    };
+
+    public static PackageClassifier getInstance(Context context) {
+        synchronized (PackageClassifier.class) {
+            if (sInstance == null) {
+                sInstance = new PackageClassifier(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private PackageClassifier(Context context) {
+        mPm = context.getPackageManager();
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+        final IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(mPackageReceiver, sdFilter);
+    }
+
+    /**
+     * Classifies all installed packages at once. This is a large binder transaction; call it
+     * off the main thread, or use {@link #preloadAsync}.
+     */
+    public void preload() {
+        final int generation;
+        synchronized (this) {
+            if (mPreloaded) {
+                return;
+            }
+            generation = mGeneration;
+        }
+        final long start = SettingsTrace.begin();
+        final List<PackageInfo> packages = mPm.getInstalledPackages(PACKAGE_FLAGS);
+        final Signature platform = getPlatformSignature();
+        synchronized (this) {
+            if (generation != mGeneration) {
+                // A package changed while we were loading; look packages up one at a time.
+                return;
+            }
+            for (int i = 0; i < packages.size(); i++) {
+                final PackageInfo pkg = packages.get(i);
+                final Entry entry = mEntries.get(pkg.packageName);
+                if (entry == null || entry.lastUpdateTime != pkg.lastUpdateTime) {
+                    mEntries.put(pkg.packageName, createEntry(pkg, platform));
+                }
+            }
+            mPreloaded = true;
+        }
+        SettingsTrace.end("PackageClassifier.preload", start);
+    }
+
+    /**
+     * Runs {@link #preload} in the background unless it already ran.
+     */
+    public void preloadAsync() {
+        synchronized (this) {
+            if (mPreloaded || mPreloading) {
+                return;
+            }
+            mPreloading = true;
+        }
+        SettingsExecutor.execute(SettingsExecutor.LANE_BINDER, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    preload();
+                } finally {
+                    synchronized (PackageClassifier.this) {
+                        mPreloading = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the FLAG_ bits of {@code packageName}, or 0 if it isn't installed.
+     */
+    public int getFlags(String packageName) {
+        return getPackageFlags(packageName) | getComponentFlags(packageName);
+    }
+
+    /**
+     * Returns the FLAG_ bits of {@code pkg}. The cached entry is used if it is as recent as
+     * {@code pkg}; otherwise {@code pkg} is classified, with a lookup of its signatures if it
+     * was fetched without {@link PackageManager#GET_SIGNATURES}.
+     */
+    public int getFlags(PackageInfo pkg) {
+        return getPackageFlags(pkg) | getComponentFlags(pkg.packageName);
+    }
+
+    /**
+     * Returns true for packages signed with the platform key. Things like disabling the
+     * package or blocking its notifications should be disallowed for them.
+     */
+    public boolean isPlatformSigned(String packageName) {
+        return (getPackageFlags(packageName) & FLAG_PLATFORM_SIGNED) != 0;
+    }
+
+    public boolean isPlatformSigned(PackageInfo pkg) {
+        return (getPackageFlags(pkg) & FLAG_PLATFORM_SIGNED) != 0;
+    }
+
+    /**
+     * Returns true for apps on the system image, including updated ones.
+     */
+    public boolean isSystemApp(String packageName) {
+        return (getPackageFlags(packageName) & (FLAG_SYSTEM | FLAG_UPDATED_SYSTEM)) != 0;
+    }
+
+    private int getPackageFlags(String packageName) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(packageName);
+        }
+        if (entry == null) {
+            try {
+                entry = putEntry(mPm.getPackageInfo(packageName, PACKAGE_FLAGS));
+            } catch (NameNotFoundException e) {
+                return 0;
+            }
+        }
+        return entry.flags;
+    }
+
+    private int getPackageFlags(PackageInfo pkg) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(pkg.packageName);
+        }
+        if (entry == null || entry.lastUpdateTime != pkg.lastUpdateTime) {
+            if (pkg.signatures != null) {
+                entry = putEntry(pkg);
+            } else {
+                synchronized (this) {
+                    mEntries.remove(pkg.packageName);
+                }
+                return getPackageFlags(pkg.packageName);
+            }
+        }
+        return entry.flags;
+    }
+
+    /**
+     * Returns the packages with a home activity, plus the packages they declare as their
+     * {@link ActivityManager#META_HOME_ALTERNATE} if signed by the same key.
+     */
+    public Set<String> getHomePackages() {
+        synchronized (this) {
+            if (mHomePackages != null) {
+                return Collections.unmodifiableSet(mHomePackages);
+            }
+        }
+        final ArraySet<String> homePackages = new ArraySet<String>();
+        final List<ResolveInfo> homeActivities = new ArrayList<ResolveInfo>();
+        mPm.getHomeActivities(homeActivities);
+        for (int i = 0; i < homeActivities.size(); i++) {
+            final ResolveInfo ri = homeActivities.get(i);
+            final String activityPkg = ri.activityInfo.packageName;
+            homePackages.add(activityPkg);
+
+            // Also make sure to include anything proxying for the home app
+            final Bundle metadata = ri.activityInfo.metaData;
+            if (metadata != null) {
+                final String metaPkg = metadata.getString(ActivityManager.META_HOME_ALTERNATE);
+                if (signaturesMatch(metaPkg, activityPkg)) {
+                    homePackages.add(metaPkg);
+                }
+            }
+        }
+        synchronized (this) {
+            mHomePackages = homePackages;
+        }
+        return Collections.unmodifiableSet(homePackages);
+    }
+
+    public boolean isHomePackage(String packageName) {
+        return getHomePackages().contains(packageName);
+    }
+
+    public boolean isLauncherPackage(String packageName) {
+        return getLauncherPackages().contains(packageName);
+    }
+
+    /**
+     * Forgets what is known about {@code packageName}, and which packages are home or
+     * launcher apps.
+     */
+    public void invalidate(String packageName) {
+        synchronized (this) {
+            if (packageName != null) {
+                mEntries.remove(packageName);
+            }
+            mGeneration++;
+            mHomePackages = null;
+            mLauncherPackages = null;
+        }
+    }
+
+    private Set<String> getLauncherPackages() {
+        synchronized (this) {
+            if (mLauncherPackages != null) {
+                return mLauncherPackages;
+            }
+        }
+        final Intent launcherIntent = new Intent(Intent.ACTION_MAIN);
+        launcherIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+        final List<ResolveInfo> launchers = mPm.queryIntentActivities(launcherIntent,
+                PackageManager.GET_DISABLED_COMPONENTS);
+        final ArraySet<String> launcherPackages = new ArraySet<String>(launchers.size());
+        for (int i = 0; i < launchers.size(); i++) {
+            launcherPackages.add(launchers.get(i).activityInfo.packageName);
+        }
+        synchronized (this) {
+            mLauncherPackages = launcherPackages;
+        }
+        return launcherPackages;
+    }
+
+    /**
+     * Returns the flags that depend on other packages, which are kept as sets rather than in
+     * the entries.
+     */
+    private int getComponentFlags(String packageName) {
+        int flags = 0;
+        if (isHomePackage(packageName)) {
+            flags |= FLAG_HOME;
+        }
+        if (isLauncherPackage(packageName)) {
+            flags |= FLAG_LAUNCHER;
+        }
+        return flags;
+    }
+
+    private Entry putEntry(PackageInfo pkg) {
+        final Entry entry = createEntry(pkg, getPlatformSignature());
+        synchronized (this) {
+            mEntries.put(pkg.packageName, entry);
+        }
+        return entry;
+    }
+
+    private static Entry createEntry(PackageInfo pkg, Signature platform) {
+        int flags = 0;
+        final ApplicationInfo app = pkg.applicationInfo;
+        if (app != null) {
+            if ((app.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
+                flags |= FLAG_SYSTEM;
+            }
+            if ((app.flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) != 0) {
+                flags |= FLAG_UPDATED_SYSTEM;
+            }
+        }
+        if (platform != null && pkg.signatures != null && pkg.signatures.length > 0
+                && platform.equals(pkg.signatures[0])) {
+            flags |= FLAG_PLATFORM_SIGNED;
+        }
+        return new Entry(pkg.lastUpdateTime, flags);
+    }
+
+    private Signature getPlatformSignature() {
+        synchronized (this) {
+            if (mPlatformSignature != null) {
+                return mPlatformSignature;
+            }
+        }
+        Signature signature = null;
+        try {
+            final PackageInfo sys = mPm.getPackageInfo("android", PackageManager.GET_SIGNATURES);
+            if (sys.signatures != null && sys.signatures.length > 0) {
+                signature = sys.signatures[0];
+            }
+        } catch (NameNotFoundException e) {
+            Log.w(TAG, "Unable to find the platform package", e);
+        }
+        synchronized (this) {
+            mPlatformSignature = signature;
+        }
+        return signature;
+    }
+
+    private boolean signaturesMatch(String pkg1, String pkg2) {
+        if (pkg1 != null && pkg2 != null) {
+            try {
+                final int match = mPm.checkSignatures(pkg1, pkg2);
+                if (match >= PackageManager.SIGNATURE_MATCH) {
+                    return true;
+                }
+            } catch (Exception e) {
+                // e.g. named alternate package not found during lookup;
+                // this is an expected case sometimes
+            }
+        }
+        return false;
+    }
+}
@@ -118,7 +118,9 @@ import com.android.settings.wifi.p2p.WifiP2pSettings;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -752,6 +754,17 @@ public class SettingsActivity extends Activity
         outState.putInt(SAVE_KEY_HOME_ACTIVITIES_COUNT, mHomeActivitiesCount);
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (SettingsTrace.dump(prefix, writer, args)) {
+            return;
+        }
+        if (SettingsExecutor.dump(prefix, writer, args)) {
+            return;
+        }
+        super.dump(prefix, fd, writer, args);
+    }
+
     @Override
     public void onResume() {
         super.onResume();
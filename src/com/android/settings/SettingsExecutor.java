@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background threads shared by the whole Settings process, in place of threads owned by
+ * individual screens.
+ *
+ * <p>Work is split into lanes by what it waits on, so that a slow disk scan does not hold up
+ * binder calls and the other way around:
+ * <ul>
+ * <li>{@link #LANE_IO} for file system and content provider access.
+ * <li>{@link #LANE_BINDER} for calls into system services.
+ * <li>{@link #LANE_CPU} for computation such as loading and sorting app lists.
+ * </ul>
+ *
+ * <p>Each lane has a small thread pool, for use with {@link #execute} or as the executor of an
+ * {@link android.os.AsyncTask}, whose threads exit after a few seconds of idleness. Code built
+ * around a {@link android.os.Handler} instead shares the lane's looper thread through
+ * {@link #acquireLooper} and {@link #releaseLooper}; the thread is started for the first
+ * holder and quit when the last one releases it.
+ *
+ * <p>Work that belongs to a screen should go through a {@link Scope}, which the screen cancels
+ * when it is destroyed.
+ *
+ * <p>Queue depth and latency of each lane can be dumped with
+ * {@code adb shell dumpsys activity com.android.settings executor}.
+ */
+public final class SettingsExecutor {
+    public static final int LANE_IO = 0;
+    public static final int LANE_BINDER = 1;
+    public static final int LANE_CPU = 2;
+
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static final Lane[] sLanes = new Lane[] {
+            new Lane("io", 4, Process.THREAD_PRIORITY_BACKGROUND),
+            new Lane("binder", 4, Process.THREAD_PRIORITY_BACKGROUND),
+            new Lane("cpu", Math.max(2, Runtime.getRuntime().availableProcessors()),
+                    Process.THREAD_PRIORITY_BACKGROUND),
+    };
+
+    private SettingsExecutor() {
+    }
+
+    /**
+     * Returns the executor of {@code lane}, e.g. for
+     * {@link android.os.AsyncTask#executeOnExecutor}.
+     */
+    public static Executor get(int lane) {
+        return sLanes[lane];
+    }
+
+    public static void execute(int lane, Runnable runnable) {
+        sLanes[lane].execute(runnable);
+    }
+
+    /**
+     * Returns the looper of {@code lane}, starting its thread if needed. Every call must be
+     * balanced by {@link #releaseLooper}, after which handlers on the looper must not be used.
+     */
+    public static Looper acquireLooper(int lane) {
+        return sLanes[lane].acquireLooper();
+    }
+
+    public static void releaseLooper(int lane) {
+        sLanes[lane].releaseLooper();
+    }
+
+    /**
+     * Handles {@code executor [reset]} dump arguments, then prints the counters of each lane.
+     * Returns false if the arguments are not for us.
+     */
+    public static boolean dump(String prefix, PrintWriter writer, String[] args) {
+        if (args == null || args.length == 0 || !"executor".equals(args[0])) {
+            return false;
+        }
+        final boolean reset = args.length > 1 && "reset".equals(args[1]);
+        writer.print(prefix); writer.println("SettingsExecutor:");
+        for (Lane lane : sLanes) {
+            lane.dump(prefix + "  ", writer, reset);
+        }
+        return true;
+    }
+
+    /**
+     * Work started on behalf of one owner, typically a fragment, that can be cancelled as a
+     * whole once the owner goes away. Tasks are interrupted if they are running; tasks that
+     * have not started yet never run.
+     */
+    public static final class Scope {
+        private final ArrayList<Future<?>> mFutures = new ArrayList<Future<?>>();
+        private boolean mCancelled;
+
+        public Future<?> execute(int lane, Runnable runnable) {
+            return submit(lane, new FutureTask<Void>(runnable, null));
+        }
+
+        /**
+         * Runs {@code task} on {@code lane} unless the scope has been cancelled, in which case
+         * the task is cancelled right away.
+         */
+        public <T> FutureTask<T> submit(int lane, final FutureTask<T> task) {
+            synchronized (mFutures) {
+                if (mCancelled) {
+                    task.cancel(false);
+                    return task;
+                }
+                mFutures.add(task);
+            }
+            sLanes[lane].execute(new Runnable() {
+                @Override
+                public void run() {
+                    task.run();
+                    synchronized (mFutures) {
+                        mFutures.remove(task);
+                    }
+                }
+            });
+            return task;
+        }
+
+        public boolean isCancelled() {
+            synchronized (mFutures) {
+                return mCancelled;
+            }
+        }
+
+        public void cancel() {
+            synchronized (mFutures) {
+                mCancelled = true;
+                for (int i = mFutures.size() - 1; i >= 0; i--) {
+                    mFutures.get(i).cancel(true);
+                }
+                mFutures.clear();
+            }
+        }
+    }
+
+    private static final class Lane extends ThreadPoolExecutor {
+        final String mName;
+        final int mPriority;
+
+        private int mLooperRefs;
+        private HandlerThread mLooperThread;
+
+        // Counters since start or the last reset, guarded by this.
+        private long mExecuted;
+        private int mMaxQueueDepth;
+        private long mTotalWaitMs;
+        private long mMaxWaitMs;
+        private long mTotalRunMs;
+        private long mMaxRunMs;
+
+        Lane(final String name, int threads, final int priority) {
+            super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            final String threadName = "Settings:" + name + "#"
+                                    + mCount.getAndIncrement();
+                            return new Thread(threadName) {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(priority);
+                                    r.run();
+                                }
+                            };
+                        }
+                    });
+            allowCoreThreadTimeOut(true);
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            final int depth = getQueue().size() + 1;
+            synchronized (this) {
+                if (depth > mMaxQueueDepth) {
+                    mMaxQueueDepth = depth;
+                }
+            }
+            super.execute(new TimedRunnable(this, command));
+        }
+
+        void record(long waitMs, long runMs) {
+            synchronized (this) {
+                mExecuted++;
+                mTotalWaitMs += waitMs;
+                mTotalRunMs += runMs;
+                if (waitMs > mMaxWaitMs) {
+                    mMaxWaitMs = waitMs;
+                }
+                if (runMs > mMaxRunMs) {
+                    mMaxRunMs = runMs;
+                }
+            }
+        }
+
+        Looper acquireLooper() {
+            synchronized (this) {
+                if (mLooperRefs++ == 0) {
+                    mLooperThread = new HandlerThread("Settings:" + mName, mPriority);
+                    mLooperThread.start();
+                }
+                return mLooperThread.getLooper();
+            }
+        }
+
+        void releaseLooper() {
+            synchronized (this) {
+                if (mLooperRefs <= 0) {
+                    throw new IllegalStateException("Looper of lane " + mName + " not held");
+                }
+                if (--mLooperRefs == 0) {
+                    mLooperThread.quitSafely();
+                    mLooperThread = null;
+                }
+            }
+        }
+
+        void dump(String prefix, PrintWriter writer, boolean reset) {
+            synchronized (this) {
+                writer.print(prefix); writer.print(mName);
+                writer.print(": threads="); writer.print(getPoolSize());
+                writer.print(" active="); writer.print(getActiveCount());
+                writer.print(" queued="); writer.print(getQueue().size());
+                writer.print(" looperRefs="); writer.println(mLooperRefs);
+                writer.print(prefix); writer.print("  executed="); writer.print(mExecuted);
+                writer.print(" maxQueued="); writer.print(mMaxQueueDepth);
+                writer.print(" wait avg/max="); writer.print(average(mTotalWaitMs));
+                writer.print("/"); writer.print(mMaxWaitMs);
+                writer.print("ms run avg/max="); writer.print(average(mTotalRunMs));
+                writer.print("/"); writer.print(mMaxRunMs); writer.println("ms");
+                if (reset) {
+                    mExecuted = 0;
+                    mMaxQueueDepth = 0;
+                    mTotalWaitMs = mMaxWaitMs = 0;
+                    mTotalRunMs = mMaxRunMs = 0;
+                }
+            }
+        }
+
+        private long average(long total) {
+            return mExecuted == 0 ? 0 : total / mExecuted;
+        }
+    }
+
+    private static final class TimedRunnable implements Runnable {
+        private final Lane mLane;
+        private final Runnable mRunnable;
+        private final long mQueuedTime = SystemClock.uptimeMillis();
+
+        TimedRunnable(Lane lane, Runnable runnable) {
+            mLane = lane;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            final long start = SystemClock.uptimeMillis();
+            try {
+                mRunnable.run();
+            } finally {
+                mLane.record(start - mQueuedTime, SystemClock.uptimeMillis() - start);
+            }
+        }
+    }
+}
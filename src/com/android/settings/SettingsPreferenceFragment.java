@@ -30,8 +30,10 @@ import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceFragment;
+import android.preference.PreferenceGroup;
 import android.preference.PreferenceGroupAdapter;
 import android.text.TextUtils;
+import android.util.ArraySet;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -43,6 +45,8 @@ import android.widget.Button;
 import android.widget.ListAdapter;
 import android.widget.ListView;
 
+import java.util.ArrayList;
+
 /**
  * Base class for Settings fragments, with some helper functions and dialog management.
  */
@@ -82,8 +86,15 @@ public class SettingsPreferenceFragment extends PreferenceFragment implements Di
 
     private ViewGroup mPinnedHeaderFrameLayout;
 
+    // Start of the span from onCreate() to the first onResume(), for SettingsTrace
+    private long mTraceCreateStart;
+
+    // Fragments of sub-screens whose classes were already loaded, see preloadSubScreens()
+    private static final ArraySet<String> sPreloadedFragments = new ArraySet<String>();
+
     @Override
     public void onCreate(Bundle icicle) {
+        mTraceCreateStart = SettingsTrace.begin();
         super.onCreate(icicle);
 
         if (icicle != null) {
@@ -122,6 +133,63 @@ public class SettingsPreferenceFragment extends PreferenceFragment implements Di
         outState.putBoolean(SAVE_HIGHLIGHTED_KEY, mPreferenceHighlighted);
     }
 
+    @Override
+    public void addPreferencesFromResource(int preferencesResId) {
+        final long start = SettingsTrace.begin();
+        super.addPreferencesFromResource(preferencesResId);
+        SettingsTrace.end("SettingsPreferenceFragment.inflate", getClass().getName(), start);
+        preloadSubScreens(getPreferenceScreen());
+    }
+
+    /**
+     * Loads the fragment classes of the sub-screens reachable from {@code group} in the
+     * background, so that opening one of them doesn't pay for class loading on the UI thread.
+     * Static initializers are left to run on the UI thread as before, so that one that fails
+     * does so where the fragment is created. Each class is loaded once per process.
+     */
+    private void preloadSubScreens(PreferenceGroup group) {
+        final ArrayList<String> fragments = new ArrayList<String>();
+        collectFragments(group, fragments);
+        if (fragments.isEmpty()) {
+            return;
+        }
+        final ClassLoader classLoader = getActivity().getClassLoader();
+        SettingsExecutor.execute(SettingsExecutor.LANE_CPU, new Runnable() {
+            @Override
+            public void run() {
+                final long start = SettingsTrace.begin();
+                for (int i = 0; i < fragments.size(); i++) {
+                    try {
+                        Class.forName(fragments.get(i), false, classLoader);
+                    } catch (ClassNotFoundException e) {
+                        Log.w(TAG, "Unable to preload " + fragments.get(i), e);
+                    } catch (LinkageError e) {
+                        Log.w(TAG, "Unable to preload " + fragments.get(i), e);
+                    }
+                }
+                SettingsTrace.end("SettingsPreferenceFragment.preload", start);
+            }
+        });
+    }
+
+    private static void collectFragments(PreferenceGroup group, ArrayList<String> out) {
+        final int count = group.getPreferenceCount();
+        for (int i = 0; i < count; i++) {
+            final Preference pref = group.getPreference(i);
+            final String fragment = pref.getFragment();
+            if (fragment != null) {
+                synchronized (sPreloadedFragments) {
+                    if (sPreloadedFragments.add(fragment)) {
+                        out.add(fragment);
+                    }
+                }
+            }
+            if (pref instanceof PreferenceGroup) {
+                collectFragments((PreferenceGroup) pref, out);
+            }
+        }
+    }
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -134,6 +202,12 @@ public class SettingsPreferenceFragment extends PreferenceFragment implements Di
     public void onResume() {
         super.onResume();
 
+        if (mTraceCreateStart != 0) {
+            SettingsTrace.end("SettingsPreferenceFragment.start", getClass().getName(),
+                    mTraceCreateStart);
+            mTraceCreateStart = 0;
+        }
+
         final Bundle args = getArguments();
         if (args != null) {
             mPreferenceKey = args.getString(SettingsActivity.EXTRA_FRAGMENT_ARG_KEY);
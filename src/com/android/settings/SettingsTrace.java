@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.TimeUtils;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the duration of hot code paths (fragment start-up, list rebuilds, loaders) into a
+ * fixed-size ring buffer that can be dumped with
+ * {@code adb shell dumpsys activity com.android.settings trace}.
+ *
+ * <p>Tracing is off unless enabled with {@code adb shell setprop log.tag.SettingsTrace DEBUG}
+ * before Settings starts, or at runtime with
+ * {@code adb shell dumpsys activity com.android.settings trace on}. When off, {@link #begin()}
+ * and {@link #end(String, long)} only read a volatile field.
+ *
+ * <p>Usage:
+ * <pre>
+ *     final long start = SettingsTrace.begin();
+ *     ...
+ *     SettingsTrace.end("RunningState.update", start);
+ * </pre>
+ */
+public final class SettingsTrace {
+    private static final String TAG = "SettingsTrace";
+
+    /** Number of spans kept. Must be a power of two. */
+    private static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+
+    private static volatile boolean sEnabled = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final AtomicInteger sNext = new AtomicInteger();
+    private static final String[] sNames = new String[CAPACITY];
+    private static final String[] sDetails = new String[CAPACITY];
+    private static final long[] sEndTimes = new long[CAPACITY];
+    private static final long[] sDurations = new long[CAPACITY];
+
+    private SettingsTrace() {
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Returns the start time to pass to {@link #end}, or 0 if tracing is off.
+     */
+    public static long begin() {
+        return sEnabled ? SystemClock.elapsedRealtimeNanos() : 0;
+    }
+
+    /**
+     * Records a span that started at {@code start}, as returned by {@link #begin()}.
+     */
+    public static void end(String name, long start) {
+        end(name, null, start);
+    }
+
+    /**
+     * Records a span that started at {@code start}, as returned by {@link #begin()}. The
+     * {@code detail} (e.g. a fragment class name) is kept separately from {@code name} so that
+     * callers don't need to build strings.
+     */
+    public static void end(String name, String detail, long start) {
+        if (start == 0 || !sEnabled) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtimeNanos();
+        // Claim a slot without locking. A dump running concurrently may see a partially
+        // written slot, which is acceptable for diagnostics.
+        final int slot = sNext.getAndIncrement() & MASK;
+        sNames[slot] = name;
+        sDetails[slot] = detail;
+        sEndTimes[slot] = now;
+        sDurations[slot] = now - start;
+    }
+
+    /**
+     * Forgets all recorded spans.
+     */
+    public static void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            sNames[i] = null;
+        }
+    }
+
+    /**
+     * Handles {@code trace [on|off|clear]} dump arguments, then prints the recorded spans,
+     * oldest first. Returns false if the arguments are not for us.
+     */
+    public static boolean dump(String prefix, PrintWriter writer, String[] args) {
+        if (args == null || args.length == 0 || !"trace".equals(args[0])) {
+            return false;
+        }
+        if (args.length > 1) {
+            if ("on".equals(args[1])) {
+                setEnabled(true);
+            } else if ("off".equals(args[1])) {
+                setEnabled(false);
+            } else if ("clear".equals(args[1])) {
+                clear();
+            }
+        }
+
+        writer.print(prefix); writer.print("SettingsTrace: enabled="); writer.println(sEnabled);
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final int next = sNext.get();
+        for (int i = 0; i < CAPACITY; i++) {
+            final int slot = (next + i) & MASK;
+            final String name = sNames[slot];
+            if (name == null) {
+                continue;
+            }
+            writer.print(prefix); writer.print("  ");
+            TimeUtils.formatDuration((sEndTimes[slot] - now) / 1000000, writer);
+            writer.print(" "); writer.print(name);
+            if (sDetails[slot] != null) {
+                writer.print(" "); writer.print(sDetails[slot]);
+            }
+            writer.print(": ");
+            writer.print(sDurations[slot] / 1000); writer.println("us");
+        }
+        return true;
+    }
+}
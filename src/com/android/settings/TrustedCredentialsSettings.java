@@ -19,8 +19,11 @@ package com.android.settings;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.Fragment;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.UserInfo;
 import android.content.res.TypedArray;
 import android.net.http.SslCertificate;
@@ -57,9 +60,13 @@ import com.android.internal.util.ParcelableString;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TrustedCredentialsSettings extends Fragment {
 
@@ -69,6 +76,31 @@ public class TrustedCredentialsSettings extends Fragment {
 
     private static final String USER_ACTION = "com.android.settings.TRUSTED_CREDENTIALS_USER";
 
+    // Most threads used to fetch and parse certificates
+    private static final int MAX_LOADER_THREADS = 4;
+    // Certificates handed to the adapter at a time while loading
+    private static final int CHUNK_SIZE = 20;
+    // Longest time loaded certificates are held back waiting for a full chunk
+    private static final long CHUNK_DELAY_MS = 100;
+
+    /**
+     * Certificates parsed by the loaders, keyed by profile id and alias. Entries are reused
+     * while the encoded certificate for the alias stays the same, so reloading a tab or
+     * re-creating the fragment doesn't parse everything again. Cleared when the KeyChain
+     * storage changes.
+     */
+    private static final HashMap<String, ParsedCert> sParsedCerts =
+            new HashMap<String, ParsedCert>();
+
+    private final BroadcastReceiver mStorageChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (sParsedCerts) {
+                sParsedCerts.clear();
+            }
+        }
+    };
+
     private enum Tab {
         SYSTEM("system",
                R.string.trusted_credentials_system_tab,
@@ -173,6 +205,8 @@ public class TrustedCredentialsSettings extends Fragment {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mUserManager = (UserManager) getActivity().getSystemService(Context.USER_SERVICE);
+        getActivity().registerReceiver(mStorageChangedReceiver,
+                new IntentFilter(KeyChain.ACTION_STORAGE_CHANGED));
     }
 
 
@@ -199,6 +233,7 @@ public class TrustedCredentialsSettings extends Fragment {
             mAliasOperation = null;
         }
         closeKeyChainConnections();
+        getActivity().unregisterReceiver(mStorageChangedReceiver);
         super.onDestroy();
     }
 
@@ -413,7 +448,12 @@ public class TrustedCredentialsSettings extends Fragment {
             mTab = tab;
         }
 
-        private class AliasLoader extends AsyncTask<Void, Integer, SparseArray<List<CertHolder>>> {
+        /**
+         * Loads the certificates of all profiles. Certificates are fetched and parsed by a few
+         * worker threads, and handed to the adapter in sorted chunks as they are ready, so the
+         * list shows up before the last certificate is parsed.
+         */
+        private class AliasLoader extends AsyncTask<Void, List<CertHolder>, List<UserHandle>> {
             private ProgressBar mProgressBar;
             private View mList;
             private Context mContext;
@@ -429,19 +469,17 @@ public class TrustedCredentialsSettings extends Fragment {
                 mList = content.findViewById(mAdapter.getListViewId(mTab));
                 mProgressBar.setVisibility(View.VISIBLE);
                 mList.setVisibility(View.GONE);
+                mCertHoldersByUserId.clear();
+                mAdapter.notifyDataSetChanged();
             }
-            @Override protected SparseArray<List<CertHolder>> doInBackground(Void... params) {
-                SparseArray<List<CertHolder>> certHoldersByProfile =
-                        new SparseArray<List<CertHolder>>();
+            @Override protected List<UserHandle> doInBackground(Void... params) {
+                List<UserHandle> profiles = mUserManager.getUserProfiles();
                 try {
-                    List<UserHandle> profiles = mUserManager.getUserProfiles();
                     final int n = profiles.size();
-                    // First we get all aliases for all profiles in order to show progress
-                    // correctly. Otherwise this could all be in a single loop.
-                    SparseArray<List<ParcelableString>> aliasesByProfileId = new SparseArray<
-                            List<ParcelableString>>(n);
-                    int max = 0;
-                    int progress = 0;
+                    // First we get all aliases for all profiles, so that the workers below can
+                    // share them out regardless of profile.
+                    final ArrayList<Integer> profileIds = new ArrayList<Integer>();
+                    final ArrayList<String> aliases = new ArrayList<String>();
                     for (int i = 0; i < n; ++i) {
                         UserHandle profile = profiles.get(i);
                         int profileId = profile.getIdentifier();
@@ -450,63 +488,114 @@ public class TrustedCredentialsSettings extends Fragment {
                         // Saving the connection for later use on the certificate dialog.
                         mKeyChainConnectionByProfileId.put(profileId, keyChainConnection);
                         IKeyChainService service = keyChainConnection.getService();
-                        List<ParcelableString> aliases = mTab.getAliases(service);
-                        if (isCancelled()) {
-                            return new SparseArray<List<CertHolder>>();
+                        for (ParcelableString alias : mTab.getAliases(service)) {
+                            profileIds.add(profileId);
+                            aliases.add(alias.string);
                         }
-                        max += aliases.size();
-                        aliasesByProfileId.put(profileId, aliases);
-                    }
-                    for (int i = 0; i < n; ++i) {
-                        UserHandle profile = profiles.get(i);
-                        int profileId = profile.getIdentifier();
-                        List<ParcelableString> aliases = aliasesByProfileId.get(profileId);
                         if (isCancelled()) {
-                            return new SparseArray<List<CertHolder>>();
-                        }
-                        IKeyChainService service = mKeyChainConnectionByProfileId.get(profileId)
-                                .getService();
-                        List<CertHolder> certHolders = new ArrayList<CertHolder>(max);
-                        final int aliasMax = aliases.size();
-                        for (int j = 0; j < aliasMax; ++j) {
-                            String alias = aliases.get(j).string;
-                            byte[] encodedCertificate = service.getEncodedCaCertificate(alias,
-                                    true);
-                            X509Certificate cert = KeyChain.toCertificate(encodedCertificate);
-                            certHolders.add(new CertHolder(service, mAdapter,
-                                    mTab, alias, cert, profileId));
-                            publishProgress(++progress, max);
+                            return profiles;
                         }
-                        Collections.sort(certHolders);
-                        certHoldersByProfile.put(profileId, certHolders);
                     }
-                    return certHoldersByProfile;
+                    loadCertHolders(profileIds, aliases);
                 } catch (RemoteException e) {
                     Log.e(TAG, "Remote exception while loading aliases.", e);
-                    return new SparseArray<List<CertHolder>>();
                 } catch (InterruptedException e) {
                     Log.e(TAG, "InterruptedException while loading aliases.", e);
-                    return new SparseArray<List<CertHolder>>();
+                }
+                return profiles;
+            }
+
+            /**
+             * Creates the {@link CertHolder}s of {@code aliases} on up to MAX_LOADER_THREADS
+             * threads, and publishes them in sorted chunks.
+             */
+            private void loadCertHolders(final List<Integer> profileIds,
+                    final List<String> aliases) throws InterruptedException {
+                final int total = aliases.size();
+                final AtomicInteger next = new AtomicInteger();
+                final AtomicInteger failed = new AtomicInteger();
+                final LinkedBlockingQueue<CertHolder> loaded =
+                        new LinkedBlockingQueue<CertHolder>();
+                final Runnable worker = new Runnable() {
+                    @Override
+                    public void run() {
+                        int i;
+                        while (!isCancelled() && (i = next.getAndIncrement()) < total) {
+                            final int profileId = profileIds.get(i);
+                            final String alias = aliases.get(i);
+                            try {
+                                IKeyChainService service = mKeyChainConnectionByProfileId
+                                        .get(profileId).getService();
+                                loaded.add(new CertHolder(service, mAdapter, mTab, alias,
+                                        getParsedCert(service, profileId, alias), profileId));
+                            } catch (RemoteException | RuntimeException e) {
+                                Log.e(TAG, "Exception while loading alias " + alias, e);
+                                failed.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+                final int threads = Math.min(total, Math.min(MAX_LOADER_THREADS,
+                        Runtime.getRuntime().availableProcessors()));
+                for (int i = 0; i < threads; i++) {
+                    SettingsExecutor.execute(SettingsExecutor.LANE_BINDER, worker);
+                }
+
+                ArrayList<CertHolder> chunk = new ArrayList<CertHolder>(CHUNK_SIZE);
+                int received = 0;
+                while (received + failed.get() < total && !isCancelled()) {
+                    final CertHolder certHolder = loaded.poll(CHUNK_DELAY_MS,
+                            TimeUnit.MILLISECONDS);
+                    if (certHolder != null) {
+                        chunk.add(certHolder);
+                        received++;
+                    }
+                    // Publish full chunks, and whatever we have when the workers are slow
+                    if (chunk.size() >= CHUNK_SIZE || (certHolder == null && !chunk.isEmpty())) {
+                        Collections.sort(chunk);
+                        publishProgress(chunk);
+                        chunk = new ArrayList<CertHolder>(CHUNK_SIZE);
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    Collections.sort(chunk);
+                    publishProgress(chunk);
                 }
             }
-            @Override protected void onProgressUpdate(Integer... progressAndMax) {
-                int progress = progressAndMax[0];
-                int max = progressAndMax[1];
-                if (max != mProgressBar.getMax()) {
-                    mProgressBar.setMax(max);
+
+            @Override protected void onProgressUpdate(List<CertHolder>... chunks) {
+                for (List<CertHolder> chunk : chunks) {
+                    for (CertHolder certHolder : chunk) {
+                        List<CertHolder> certHolders =
+                                mCertHoldersByUserId.get(certHolder.mProfileId);
+                        if (certHolders == null) {
+                            certHolders = new ArrayList<CertHolder>();
+                            mCertHoldersByUserId.put(certHolder.mProfileId, certHolders);
+                        }
+                        // The chunk is sorted, so this keeps the list sorted.
+                        int pos = Collections.binarySearch(certHolders, certHolder);
+                        if (pos < 0) {
+                            pos = -pos - 1;
+                        }
+                        certHolders.add(pos, certHolder);
+                    }
                 }
-                mProgressBar.setProgress(progress);
+                mAdapter.notifyDataSetChanged();
+                mProgressBar.setVisibility(View.GONE);
+                mList.setVisibility(View.VISIBLE);
             }
-            @Override protected void onPostExecute(SparseArray<List<CertHolder>> certHolders) {
-                mCertHoldersByUserId.clear();
-                final int n = certHolders.size();
+            @Override protected void onPostExecute(List<UserHandle> profiles) {
+                // Show a group for every profile, even those without certificates
+                final int n = profiles.size();
                 for (int i = 0; i < n; ++i) {
-                    mCertHoldersByUserId.put(certHolders.keyAt(i), certHolders.valueAt(i));
+                    final int profileId = profiles.get(i).getIdentifier();
+                    if (mCertHoldersByUserId.get(profileId) == null) {
+                        mCertHoldersByUserId.put(profileId, new ArrayList<CertHolder>());
+                    }
                 }
                 mAdapter.notifyDataSetChanged();
                 mProgressBar.setVisibility(View.GONE);
                 mList.setVisibility(View.VISIBLE);
-                mProgressBar.setProgress(0);
                 mAliasLoaders.remove(mTab);
             }
         }
@@ -521,37 +610,44 @@ public class TrustedCredentialsSettings extends Fragment {
         }
     }
 
-    private static class CertHolder implements Comparable<CertHolder> {
-        public int mProfileId;
-        private final IKeyChainService mService;
-        private final TrustedCertificateAdapterCommons mAdapter;
-        private final Tab mTab;
-        private final String mAlias;
-        private final X509Certificate mX509Cert;
+    /**
+     * Returns the parsed certificate for {@code alias}, from {@link #sParsedCerts} if the
+     * encoded certificate didn't change.
+     */
+    private static ParsedCert getParsedCert(IKeyChainService service, int profileId,
+            String alias) throws RemoteException {
+        final byte[] encodedCertificate = service.getEncodedCaCertificate(alias, true);
+        final String key = profileId + ":" + alias;
+        synchronized (sParsedCerts) {
+            final ParsedCert cached = sParsedCerts.get(key);
+            if (cached != null && Arrays.equals(cached.mEncoded, encodedCertificate)) {
+                return cached;
+            }
+        }
+        final ParsedCert parsed = new ParsedCert(encodedCertificate);
+        synchronized (sParsedCerts) {
+            sParsedCerts.put(key, parsed);
+        }
+        return parsed;
+    }
 
-        private final SslCertificate mSslCert;
+    /**
+     * The parts of a {@link CertHolder} that only depend on the certificate.
+     */
+    private static class ParsedCert {
+        private final byte[] mEncoded;
+        private final X509Certificate mX509Cert;
         private final String mSubjectPrimary;
         private final String mSubjectSecondary;
-        private boolean mDeleted;
 
-        private CertHolder(IKeyChainService service,
-                           TrustedCertificateAdapterCommons adapter,
-                           Tab tab,
-                           String alias,
-                           X509Certificate x509Cert,
-                           int profileId) {
-            mProfileId = profileId;
-            mService = service;
-            mAdapter = adapter;
-            mTab = tab;
-            mAlias = alias;
-            mX509Cert = x509Cert;
-
-            mSslCert = new SslCertificate(x509Cert);
+        private ParsedCert(byte[] encoded) {
+            mEncoded = encoded;
+            mX509Cert = KeyChain.toCertificate(encoded);
 
-            String cn = mSslCert.getIssuedTo().getCName();
-            String o = mSslCert.getIssuedTo().getOName();
-            String ou = mSslCert.getIssuedTo().getUName();
+            SslCertificate sslCert = new SslCertificate(mX509Cert);
+            String cn = sslCert.getIssuedTo().getCName();
+            String o = sslCert.getIssuedTo().getOName();
+            String ou = sslCert.getIssuedTo().getUName();
             // if we have a O, use O as primary subject, secondary prefer CN over OU
             // if we don't have an O, use CN as primary, empty secondary
             // if we don't have O or CN, use DName as primary, empty secondary
@@ -568,10 +664,40 @@ public class TrustedCredentialsSettings extends Fragment {
                     mSubjectPrimary = cn;
                     mSubjectSecondary = "";
                 } else {
-                    mSubjectPrimary = mSslCert.getIssuedTo().getDName();
+                    mSubjectPrimary = sslCert.getIssuedTo().getDName();
                     mSubjectSecondary = "";
                 }
             }
+        }
+    }
+
+    private static class CertHolder implements Comparable<CertHolder> {
+        public int mProfileId;
+        private final IKeyChainService mService;
+        private final TrustedCertificateAdapterCommons mAdapter;
+        private final Tab mTab;
+        private final String mAlias;
+        private final X509Certificate mX509Cert;
+
+        private final String mSubjectPrimary;
+        private final String mSubjectSecondary;
+        private boolean mDeleted;
+
+        private CertHolder(IKeyChainService service,
+                           TrustedCertificateAdapterCommons adapter,
+                           Tab tab,
+                           String alias,
+                           ParsedCert parsedCert,
+                           int profileId) {
+            mProfileId = profileId;
+            mService = service;
+            mAdapter = adapter;
+            mTab = tab;
+            mAlias = alias;
+            mX509Cert = parsedCert.mX509Cert;
+            mSubjectPrimary = parsedCert.mSubjectPrimary;
+            mSubjectSecondary = parsedCert.mSubjectSecondary;
+
             try {
                 mDeleted = mTab.deleted(mService, mAlias);
             } catch (RemoteException e) {
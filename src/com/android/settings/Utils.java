@@ -30,11 +30,9 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
-import android.content.pm.Signature;
 import android.content.pm.UserInfo;
 import android.content.res.Resources;
 import android.content.res.Resources.NotFoundException;
@@ -957,35 +955,6 @@ public final class Utils {
         return tm.getSimCount() > 1;
     }
 
-    /**
-     * Determine whether a package is a "system package", in which case certain things (like
-     * disabling notifications or disabling the package altogether) should be disallowed.
-     */
-    public static boolean isSystemPackage(PackageManager pm, PackageInfo pkg) {
-        if (sSystemSignature == null) {
-            sSystemSignature = new Signature[]{ getSystemSignature(pm) };
-        }
-        return sSystemSignature[0] != null && sSystemSignature[0].equals(getFirstSignature(pkg));
-    }
-
-    private static Signature[] sSystemSignature;
-
-    private static Signature getFirstSignature(PackageInfo pkg) {
-        if (pkg != null && pkg.signatures != null && pkg.signatures.length > 0) {
-            return pkg.signatures[0];
-        }
-        return null;
-    }
-
-    private static Signature getSystemSignature(PackageManager pm) {
-        try {
-            final PackageInfo sys = pm.getPackageInfo("android", PackageManager.GET_SIGNATURES);
-            return getFirstSignature(sys);
-        } catch (NameNotFoundException e) {
-        }
-        return null;
-    }
-
     /**
      * Returns elapsed time for the given millis, in the following format:
      * 2d 5h 40m 29s
@@ -36,7 +36,7 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -81,6 +81,9 @@ public class ZonePicker extends ListFragment {
 
     private ZoneSelectionListener mListener;
 
+    // Last catalogue built, see getZoneCatalogue()
+    private static ZoneCatalogue sCatalogue;
+
     /**
      * Constructs an adapter with TimeZone list. Sorted by TimeZone in default.
      *
@@ -102,11 +105,8 @@ public class ZonePicker extends ListFragment {
         final String[] from = new String[] {KEY_DISPLAYNAME, KEY_GMT};
         final int[] to = new int[] {android.R.id.text1, android.R.id.text2};
 
-        final String sortKey = (sortedByName ? KEY_DISPLAYNAME : KEY_OFFSET);
-        final MyComparator comparator = new MyComparator(sortKey);
-        ZoneGetter zoneGetter = new ZoneGetter();
-        final List<HashMap<String, Object>> sortedList = zoneGetter.getZones(context);
-        Collections.sort(sortedList, comparator);
+        final List<HashMap<String, Object>> sortedList =
+                getZoneCatalogue(context).getZones(sortedByName);
         final SimpleAdapter adapter = new SimpleAdapter(context,
                 sortedList,
                 layoutId,
@@ -224,17 +224,113 @@ public class ZonePicker extends ListFragment {
         }
     }
 
-    static class ZoneGetter {
-        private final List<HashMap<String, Object>> mZones =
-                new ArrayList<HashMap<String, Object>>();
-        private final HashSet<String> mLocalZones = new HashSet<String>();
-        private final Date mNow = Calendar.getInstance().getTime();
-        private final SimpleDateFormat mZoneNameFormatter = new SimpleDateFormat("zzzz");
+    /**
+     * Returns the zone catalogue for the current locale, building it if the cached one was
+     * made for another locale or if any zone's offset changed since, e.g. with daylight time.
+     */
+    static ZoneCatalogue getZoneCatalogue(Context context) {
+        final Locale locale = Locale.getDefault();
+        final long now = System.currentTimeMillis();
+        synchronized (ZonePicker.class) {
+            if (sCatalogue == null || !sCatalogue.isCurrent(locale, now)) {
+                sCatalogue = new ZoneCatalogue(context, locale, now);
+            }
+            return sCatalogue;
+        }
+    }
+
+    /**
+     * The time zones offered by the picker, with their display names and offsets as of when
+     * the catalogue was built, in both sort orders. Not modified once built, so the same rows
+     * are shared by every adapter until the locale or an offset changes.
+     */
+    static final class ZoneCatalogue {
+        private final Locale mLocale;
+        private final TimeZone[] mZones;
+        private final int[] mOffsets;
+        private final List<HashMap<String, Object>> mByOffset;
+        private final List<HashMap<String, Object>> mByName;
+
+        private ZoneCatalogue(Context context, Locale locale, long now) {
+            mLocale = locale;
+            final List<String> olsonIds = readZoneIds(context);
+            final int count = olsonIds.size();
+            mZones = new TimeZone[count];
+            mOffsets = new int[count];
+
+            final HashSet<String> localZones = new HashSet<String>();
+            for (String olsonId : TimeZoneNames.forLocale(locale)) {
+                localZones.add(olsonId);
+            }
+            final Date nowDate = new Date(now);
+            final SimpleDateFormat zoneNameFormatter = new SimpleDateFormat("zzzz", locale);
+            final SimpleDateFormat gmtFormatter = new SimpleDateFormat("ZZZZ", locale);
+            final String localeName = locale.toString();
+
+            final ArrayList<HashMap<String, Object>> rows =
+                    new ArrayList<HashMap<String, Object>>(count);
+            // Offset in the high half, position in the file in the low half, so that sorting
+            // these keeps zones with the same offset in file order.
+            final long[] offsetKeys = new long[count];
+            for (int i = 0; i < count; i++) {
+                final String olsonId = olsonIds.get(i);
+                final TimeZone tz = TimeZone.getTimeZone(olsonId);
+                mZones[i] = tz;
+                mOffsets[i] = tz.getOffset(now);
+                offsetKeys[i] = ((long) mOffsets[i] << 32) | i;
+
+                // For the display name, we treat time zones within the country differently
+                // from other countries' time zones. So in en_US you'd get "Pacific Daylight
+                // Time" but in de_DE you'd get "Los Angeles" for the same time zone.
+                String displayName;
+                if (localZones.contains(olsonId)) {
+                    // Within a country, we just use the local name for the time zone.
+                    zoneNameFormatter.setTimeZone(tz);
+                    displayName = zoneNameFormatter.format(nowDate);
+                } else {
+                    // For other countries' time zones, we use the exemplar location.
+                    displayName = TimeZoneNames.getExemplarLocation(localeName, olsonId);
+                }
 
-        private List<HashMap<String, Object>> getZones(Context context) {
-            for (String olsonId : TimeZoneNames.forLocale(Locale.getDefault())) {
-                mLocalZones.add(olsonId);
+                final HashMap<String, Object> map = new HashMap<String, Object>();
+                map.put(KEY_ID, olsonId);
+                map.put(KEY_DISPLAYNAME, displayName);
+                map.put(KEY_GMT, DateTimeSettings.getTimeZoneText(gmtFormatter, tz, false));
+                map.put(KEY_OFFSET, mOffsets[i]);
+                rows.add(map);
             }
+
+            Arrays.sort(offsetKeys);
+            final ArrayList<HashMap<String, Object>> byOffset =
+                    new ArrayList<HashMap<String, Object>>(count);
+            for (int i = 0; i < count; i++) {
+                byOffset.add(rows.get((int) offsetKeys[i]));
+            }
+            mByOffset = Collections.unmodifiableList(byOffset);
+
+            // Collections.sort() is stable, so zones with the same name stay in file order
+            Collections.sort(rows, NAME_COMPARATOR);
+            mByName = Collections.unmodifiableList(rows);
+        }
+
+        private boolean isCurrent(Locale locale, long now) {
+            if (!mLocale.equals(locale)) {
+                return false;
+            }
+            for (int i = 0; i < mZones.length; i++) {
+                if (mZones[i].getOffset(now) != mOffsets[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        List<HashMap<String, Object>> getZones(boolean sortedByName) {
+            return sortedByName ? mByName : mByOffset;
+        }
+
+        private static List<String> readZoneIds(Context context) {
+            final ArrayList<String> olsonIds = new ArrayList<String>();
             try {
                 XmlResourceParser xrp = context.getResources().getXml(R.xml.timezones);
                 while (xrp.next() != XmlResourceParser.START_TAG) {
@@ -244,13 +340,12 @@ public class ZonePicker extends ListFragment {
                 while (xrp.getEventType() != XmlResourceParser.END_TAG) {
                     while (xrp.getEventType() != XmlResourceParser.START_TAG) {
                         if (xrp.getEventType() == XmlResourceParser.END_DOCUMENT) {
-                            return mZones;
+                            return olsonIds;
                         }
                         xrp.next();
                     }
                     if (xrp.getName().equals(XMLTAG_TIMEZONE)) {
-                        String olsonId = xrp.getAttributeValue(0);
-                        addTimeZone(olsonId);
+                        olsonIds.add(xrp.getAttributeValue(0));
                     }
                     while (xrp.getEventType() != XmlResourceParser.END_TAG) {
                         xrp.next();
@@ -263,36 +358,25 @@ public class ZonePicker extends ListFragment {
             } catch (java.io.IOException ioe) {
                 Log.e(TAG, "Unable to read timezones.xml file");
             }
-            return mZones;
+            return olsonIds;
         }
+    }
 
-        private void addTimeZone(String olsonId) {
-            // We always need the "GMT-07:00" string.
-            final TimeZone tz = TimeZone.getTimeZone(olsonId);
-
-            // For the display name, we treat time zones within the country differently
-            // from other countries' time zones. So in en_US you'd get "Pacific Daylight Time"
-            // but in de_DE you'd get "Los Angeles" for the same time zone.
-            String displayName;
-            if (mLocalZones.contains(olsonId)) {
-                // Within a country, we just use the local name for the time zone.
-                mZoneNameFormatter.setTimeZone(tz);
-                displayName = mZoneNameFormatter.format(mNow);
-            } else {
-                // For other countries' time zones, we use the exemplar location.
-                final String localeName = Locale.getDefault().toString();
-                displayName = TimeZoneNames.getExemplarLocation(localeName, olsonId);
+    private static final Comparator<HashMap<String, Object>> NAME_COMPARATOR =
+            new Comparator<HashMap<String, Object>>() {
+        @Override
+        public int compare(HashMap<String, Object> map1, HashMap<String, Object> map2) {
+            final String name1 = (String) map1.get(KEY_DISPLAYNAME);
+            final String name2 = (String) map2.get(KEY_DISPLAYNAME);
+            // This should never happen, but just in-case, put missing names at the end.
+            if (name1 == null) {
+                return name2 == null ? 0 : 1;
+            } else if (name2 == null) {
+                return -1;
             }
-
-            final HashMap<String, Object> map = new HashMap<String, Object>();
-            map.put(KEY_ID, olsonId);
-            map.put(KEY_DISPLAYNAME, displayName);
-            map.put(KEY_GMT, DateTimeSettings.getTimeZoneText(tz, false));
-            map.put(KEY_OFFSET, tz.getOffset(mNow.getTime()));
-
-            mZones.add(map);
+            return name1.compareTo(name2);
         }
-    }
+    };
 
     @Override
     public void onListItemClick(ListView listView, View v, int position, long id) {
@@ -312,37 +396,4 @@ public class ZonePicker extends ListFragment {
             getActivity().onBackPressed();
         }
     }
-
-    private static class MyComparator implements Comparator<HashMap<?, ?>> {
-        private String mSortingKey;
-
-        public MyComparator(String sortingKey) {
-            mSortingKey = sortingKey;
-        }
-
-        public void setSortingKey(String sortingKey) {
-            mSortingKey = sortingKey;
-        }
-
-        public int compare(HashMap<?, ?> map1, HashMap<?, ?> map2) {
-            Object value1 = map1.get(mSortingKey);
-            Object value2 = map2.get(mSortingKey);
-
-            /*
-             * This should never happen, but just in-case, put non-comparable
-             * items at the end.
-             */
-            if (!isComparable(value1)) {
-                return isComparable(value2) ? 1 : 0;
-            } else if (!isComparable(value2)) {
-                return -1;
-            }
-
-            return ((Comparable) value1).compareTo(value2);
-        }
-
-        private boolean isComparable(Object value) {
-            return (value != null) && (value instanceof Comparable);
-        }
-    }
 }
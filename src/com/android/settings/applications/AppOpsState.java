@@ -30,6 +30,7 @@ import android.text.format.DateUtils;
 
 import android.util.Log;
 import android.util.SparseArray;
+import com.android.settings.AppIconCache;
 import com.android.settings.R;
 
 import java.io.File;
@@ -52,6 +53,12 @@ public class AppOpsState {
 
     List<AppOpEntry> mApps;
 
+    /**
+     * App entries from previous calls to {@link #buildState}, reused so that labels and icons
+     * don't have to be loaded again on every reload.
+     */
+    private final HashMap<String, AppEntry> mAppEntryCache = new HashMap<String, AppEntry>();
+
     public AppOpsState(Context context) {
         mContext = context;
         mAppOps = (AppOpsManager)context.getSystemService(Context.APP_OPS_SERVICE);
@@ -64,6 +71,8 @@ public class AppOpsState {
         public final int[] ops;
         public final boolean[] showPerms;
 
+        private PermissionIndex mPermissionIndex;
+
         public OpsTemplate(int[] _ops, boolean[] _showPerms) {
             ops = _ops;
             showPerms = _showPerms;
@@ -74,6 +83,17 @@ public class AppOpsState {
             showPerms = src.createBooleanArray();
         }
 
+        /**
+         * Returns the index of the permissions backing the ops of this template, building it on
+         * first use.
+         */
+        synchronized PermissionIndex getPermissionIndex() {
+            if (mPermissionIndex == null) {
+                mPermissionIndex = new PermissionIndex(this);
+            }
+            return mPermissionIndex;
+        }
+
         @Override
         public int describeContents() {
             return 0;
@@ -185,6 +205,42 @@ public class AppOpsState {
             MEDIA_TEMPLATE, DEVICE_TEMPLATE, BOOTUP_TEMPLATE
     };
 
+    /**
+     * Maps the permissions that back the ops of an {@link OpsTemplate} to those ops, so that
+     * the permissions requested by a package can be matched with one hash lookup each.
+     */
+    static final class PermissionIndex {
+        /** The permissions of the template, in template order, without duplicates. */
+        final String[] perms;
+        /** The order of each op within the template. */
+        final int[] opToOrder = new int[AppOpsManager._NUM_OP];
+        private final HashMap<String, Integer> mPermToOp = new HashMap<String, Integer>();
+
+        PermissionIndex(OpsTemplate tpl) {
+            final ArrayList<String> perms = new ArrayList<String>();
+            for (int i=0; i<tpl.ops.length; i++) {
+                if (tpl.showPerms[i]) {
+                    String perm = AppOpsManager.opToPermission(tpl.ops[i]);
+                    if (perm != null && !mPermToOp.containsKey(perm)) {
+                        perms.add(perm);
+                        mPermToOp.put(perm, tpl.ops[i]);
+                        opToOrder[tpl.ops[i]] = i;
+                    }
+                }
+            }
+            this.perms = perms.toArray(new String[perms.size()]);
+        }
+
+        /**
+         * Returns the op backed by the given permission, or -1 if the permission is not part
+         * of the template.
+         */
+        int getOpForPermission(String perm) {
+            Integer op = mPermToOp.get(perm);
+            return op != null ? op : -1;
+        }
+    }
+
     /**
      * This class holds the per-item data in our Loader.
      */
@@ -206,6 +262,20 @@ public class AppOpsState {
             mApkFile = new File(info.sourceDir);
         }
 
+        /**
+         * Makes an entry without ops for the next build from the current {@code info} of a
+         * package whose APK hasn't changed, keeping the label of {@code other}. The icon is not
+         * shared, as it may be attached to a view of the list still shown; {@link AppIconCache}
+         * hands out a new one cheaply.
+         */
+        AppEntry(AppEntry other, ApplicationInfo info) {
+            mState = other.mState;
+            mInfo = info;
+            mApkFile = new File(info.sourceDir);
+            mLabel = other.mLabel;
+            mMounted = other.mMounted;
+        }
+
         public void addOp(AppOpEntry entry, AppOpsManager.OpEntry op) {
             mOps.put(op.getOp(), op);
             mOpSwitches.put(AppOpsManager.opToSwitch(op.getOp()), entry);
@@ -230,7 +300,7 @@ public class AppOpsState {
         public Drawable getIcon() {
             if (mIcon == null) {
                 if (mApkFile.exists()) {
-                    mIcon = mInfo.loadIcon(mState.mPm);
+                    mIcon = AppIconCache.getInstance(mState.mContext).getIcon(mInfo);
                     return mIcon;
                 } else {
                     mMounted = false;
@@ -240,7 +310,7 @@ public class AppOpsState {
                 // its icon.
                 if (mApkFile.exists()) {
                     mMounted = true;
-                    mIcon = mInfo.loadIcon(mState.mPm);
+                    mIcon = AppIconCache.getInstance(mState.mContext).getIcon(mInfo);
                     return mIcon;
                 }
             } else {
@@ -458,32 +528,31 @@ public class AppOpsState {
                     return null;
                 }
             }
-            appEntry = new AppEntry(this, appInfo);
+            // Entries of a previous build may still be shown, so never modify them; only
+            // carry the label over if the package wasn't updated since.
+            final AppEntry cached = mAppEntryCache.get(packageName);
+            if (cached != null
+                    && appInfo.sourceDir.equals(cached.getApplicationInfo().sourceDir)) {
+                appEntry = new AppEntry(cached, appInfo);
+            } else {
+                appEntry = new AppEntry(this, appInfo);
+            }
             appEntry.loadLabel(context);
             appEntries.put(packageName, appEntry);
+            mAppEntryCache.put(packageName, appEntry);
         }
         return appEntry;
     }
 
-    public List<AppOpEntry> buildState(OpsTemplate tpl, int uid, String packageName) {
+    public synchronized List<AppOpEntry> buildState(OpsTemplate tpl, int uid,
+            String packageName) {
         final Context context = mContext;
 
         final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
         final List<AppOpEntry> entries = new ArrayList<AppOpEntry>();
 
-        final ArrayList<String> perms = new ArrayList<String>();
-        final ArrayList<Integer> permOps = new ArrayList<Integer>();
-        final int[] opToOrder = new int[AppOpsManager._NUM_OP];
-        for (int i=0; i<tpl.ops.length; i++) {
-            if (tpl.showPerms[i]) {
-                String perm = AppOpsManager.opToPermission(tpl.ops[i]);
-                if (perm != null && !perms.contains(perm)) {
-                    perms.add(perm);
-                    permOps.add(tpl.ops[i]);
-                    opToOrder[tpl.ops[i]] = i;
-                }
-            }
-        }
+        final PermissionIndex permIndex = tpl.getPermissionIndex();
+        final int[] opToOrder = permIndex.opToOrder;
 
         List<AppOpsManager.PackageOps> pkgs;
         if (packageName != null) {
@@ -520,20 +589,12 @@ public class AppOpsState {
             } catch (NameNotFoundException e) {
             }
         } else {
-            String[] permsArray = new String[perms.size()];
-            perms.toArray(permsArray);
-            apps = mPm.getPackagesHoldingPermissions(permsArray, 0);
+            // Ask for the requested permissions up front rather than fetching each package again.
+            apps = mPm.getPackagesHoldingPermissions(permIndex.perms,
+                    PackageManager.GET_PERMISSIONS);
         }
         for (int i=0; i<apps.size(); i++) {
             PackageInfo appInfo = apps.get(i);
-            if (packageName == null && appInfo.packageName != null) {
-                try {
-                    appInfo = mPm.getPackageInfo(appInfo.packageName, PackageManager.GET_PERMISSIONS);
-                } catch (NameNotFoundException e) {
-                    if (DEBUG) Log.w(TAG, "Exception: " + e.toString());
-                    appInfo = apps.get(i);
-                }
-            }
             AppEntry appEntry = getAppEntry(context, appEntries, appInfo.packageName,
                     appInfo.applicationInfo);
             if (appEntry == null) {
@@ -553,35 +614,35 @@ public class AppOpsState {
                     }
                     if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + ": requested perm "
                             + appInfo.requestedPermissions[j]);
-                    for (int k=0; k<perms.size(); k++) {
-                        if (!perms.get(k).equals(appInfo.requestedPermissions[j])) {
-                            continue;
-                        }
-                        if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm " + perms.get(k)
-                                + " has op " + permOps.get(k) + ": " + appEntry.hasOp(permOps.get(k)));
-                        if (appEntry.hasOp(permOps.get(k))) {
-                            continue;
-                        }
-                        if (dummyOps == null) {
-                            dummyOps = new ArrayList<AppOpsManager.OpEntry>();
-                            pkgOps = new AppOpsManager.PackageOps(
-                                    appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
+                    final int op = permIndex.getOpForPermission(appInfo.requestedPermissions[j]);
+                    if (op < 0) {
+                        continue;
+                    }
+                    if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
+                            + appInfo.requestedPermissions[j] + " has op " + op + ": "
+                            + appEntry.hasOp(op));
+                    if (appEntry.hasOp(op)) {
+                        continue;
+                    }
+                    if (dummyOps == null) {
+                        dummyOps = new ArrayList<AppOpsManager.OpEntry>();
+                        pkgOps = new AppOpsManager.PackageOps(
+                                appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
 
-                        }
-                        AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
-                                permOps.get(k), AppOpsManager.MODE_ALLOWED, 0, 0, 0);
-
-                        if (mAppOps.isControlAllowed(opEntry.getOp(),
-                                pkgOps.getPackageName())) {
-                            dummyOps.add(opEntry);
-                            addOp(entries,
-                                    pkgOps,
-                                    appEntry,
-                                    opEntry,
-                                    packageName == null,
-                                    packageName == null ? 0 : opToOrder[opEntry
-                                            .getOp()]);
-                        }
+                    }
+                    AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
+                            op, AppOpsManager.MODE_ALLOWED, 0, 0, 0);
+
+                    if (mAppOps.isControlAllowed(opEntry.getOp(),
+                            pkgOps.getPackageName())) {
+                        dummyOps.add(opEntry);
+                        addOp(entries,
+                                pkgOps,
+                                appEntry,
+                                opEntry,
+                                packageName == null,
+                                packageName == null ? 0 : opToOrder[opEntry
+                                        .getOp()]);
                     }
                 }
             }
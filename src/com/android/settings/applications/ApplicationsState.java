@@ -13,7 +13,6 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
@@ -22,7 +21,13 @@ import android.os.UserHandle;
 import android.text.format.Formatter;
 import android.util.Log;
 
+import com.android.settings.AppIconCache;
+import com.android.settings.PackageClassifier;
+import com.android.settings.SettingsExecutor;
+import com.android.settings.SettingsTrace;
+
 import java.io.File;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
@@ -31,6 +36,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.regex.Pattern;
 
 /**
@@ -68,6 +74,26 @@ public class ApplicationsState {
                 .replaceAll("").toLowerCase();
     }
 
+    // Collator for getCollationKey(), recreated when the default locale changes
+    private static final Object sCollatorLock = new Object();
+    private static Collator sCollator;
+    private static Locale sCollatorLocale;
+
+    /**
+     * Returns a key that sorts {@code label} the way a {@link Collator} for {@code locale}
+     * would, but compares as cheaply as a byte array. Keys made for different locales must
+     * not be compared with each other.
+     */
+    public static CollationKey getCollationKey(CharSequence label, Locale locale) {
+        synchronized (sCollatorLock) {
+            if (sCollator == null || !locale.equals(sCollatorLocale)) {
+                sCollator = Collator.getInstance(locale);
+                sCollatorLocale = locale;
+            }
+            return sCollator.getCollationKey(label != null ? label.toString() : "");
+        }
+    }
+
     public static class SizeInfo {
         long cacheSize;
         long codeSize;
@@ -104,6 +130,21 @@ public class ApplicationsState {
             return normalizedLabel;
         }
 
+        /**
+         * Returns the sort key of the label for the current default locale, computed once
+         * per label and locale.
+         */
+        CollationKey getLabelKey() {
+            final Locale locale = Locale.getDefault();
+            CollationKey key = labelKey;
+            if (key == null || !locale.equals(labelKeyLocale)) {
+                key = getCollationKey(label, locale);
+                labelKeyLocale = locale;
+                labelKey = key;
+            }
+            return key;
+        }
+
         // Need to synchronize on 'this' for the following.
         ApplicationInfo info;
         Drawable icon;
@@ -115,6 +156,10 @@ public class ApplicationsState {
 
         String normalizedLabel;
 
+        // Sort key for label and the locale it was made for, see getLabelKey()
+        private CollationKey labelKey;
+        private Locale labelKeyLocale;
+
         AppEntry(Context context, ApplicationInfo info, long id) {
             apkFile = new File(info.sourceDir);
             this.id = id;
@@ -134,13 +179,15 @@ public class ApplicationsState {
                     CharSequence label = info.loadLabel(context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
                 }
+                this.normalizedLabel = null;
+                this.labelKey = null;
             }
         }
         
         boolean ensureIconLocked(Context context, PackageManager pm) {
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppIconCache.getInstance(context).getIcon(this.info);
                     return true;
                 } else {
                     this.mounted = false;
@@ -152,7 +199,7 @@ public class ApplicationsState {
                 // its icon.
                 if (this.apkFile.exists()) {
                     this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = AppIconCache.getInstance(context).getIcon(this.info);
                     return true;
                 }
             }
@@ -161,7 +208,6 @@ public class ApplicationsState {
     }
 
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             final boolean normal1 = object1.info.enabled
@@ -171,40 +217,37 @@ public class ApplicationsState {
             if (normal1 != normal2) {
                 return normal1 ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getLabelKey().compareTo(object2.getLabelKey());
         }
     };
 
     public static final Comparator<AppEntry> SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.size < object2.size) return 1;
             if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getLabelKey().compareTo(object2.getLabelKey());
         }
     };
 
     public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.internalSize < object2.internalSize) return 1;
             if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getLabelKey().compareTo(object2.getLabelKey());
         }
     };
 
     public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.externalSize < object2.externalSize) return 1;
             if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return object1.getLabelKey().compareTo(object2.getLabelKey());
         }
     };
 
@@ -426,10 +469,9 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
-        mThread = new HandlerThread("ApplicationsState.Loader",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        mThread.start();
-        mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+        // The state lives as long as the process, so it never releases the looper.
+        mBackgroundHandler = new BackgroundHandler(
+                SettingsExecutor.acquireLooper(SettingsExecutor.LANE_CPU));
 
         // Only the owner can see all apps.
         if (UserHandle.myUserId() == 0) {
@@ -558,6 +600,7 @@ public class ApplicationsState {
             }
 
             Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+            final long start = SettingsTrace.begin();
 
             if (filter != null) {
                 filter.init();
@@ -585,6 +628,7 @@ public class ApplicationsState {
             }
 
             Collections.sort(filteredApps, comparator);
+            SettingsTrace.end("ApplicationsState.rebuild", start);
 
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
@@ -631,6 +675,8 @@ public class ApplicationsState {
             mPackageIntentReceiver.registerReceiver();
         }
         mApplications = mPm.getInstalledApplications(mRetrieveFlags);
+        // App details, opened from the lists, classify the package it shows.
+        PackageClassifier.getInstance(mContext).preloadAsync();
         if (mApplications == null) {
             mApplications = new ArrayList<ApplicationInfo>();
         }
@@ -865,7 +911,6 @@ public class ApplicationsState {
         return null;
     }
 
-    final HandlerThread mThread;
     final BackgroundHandler mBackgroundHandler;
     class BackgroundHandler extends Handler {
         static final int MSG_REBUILD_LIST = 1;
@@ -18,6 +18,7 @@ package com.android.settings.applications;
 
 import com.android.internal.telephony.ISms;
 import com.android.internal.telephony.SmsUsageMonitor;
+import com.android.settings.PackageClassifier;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 import com.android.settings.Utils;
@@ -103,6 +104,7 @@ public class InstalledAppDetails extends Fragment
     public static final String ARG_PACKAGE_NAME = "package";
 
     private PackageManager mPm;
+    private PackageClassifier mClassifier;
     private UserManager mUserManager;
     private IUsbManager mUsbManager;
     private AppWidgetManager mAppWidgetManager;
@@ -322,7 +324,7 @@ public class InstalledAppDetails extends Fragment
         // by not allowing disabling of apps signed with the
         // system cert and any launcher app in the system.
         if (mHomePackages.contains(mAppEntry.info.packageName)
-                || Utils.isSystemPackage(mPm, mPackageInfo)) {
+                || mClassifier.isPlatformSigned(mPackageInfo)) {
             // Disable button for core system applications.
             button.setText(R.string.disable_text);
         } else if (mAppEntry.info.enabled) {
@@ -418,7 +420,7 @@ public class InstalledAppDetails extends Fragment
             // this does not bode well
         }
         mNotificationSwitch.setChecked(enabled);
-        if (Utils.isSystemPackage(mPm, mPackageInfo)) {
+        if (mClassifier.isPlatformSigned(mPackageInfo)) {
             mNotificationSwitch.setEnabled(false);
         } else if ((mPackageInfo.applicationInfo.flags & ApplicationInfo.FLAG_INSTALLED) == 0) {
             // App is not installed on the current user
@@ -437,6 +439,7 @@ public class InstalledAppDetails extends Fragment
         mState = ApplicationsState.getInstance(getActivity().getApplication());
         mSession = mState.newSession(this);
         mPm = getActivity().getPackageManager();
+        mClassifier = PackageClassifier.getInstance(getActivity());
         mUserManager = (UserManager)getActivity().getSystemService(Context.USER_SERVICE);
         IBinder b = ServiceManager.getService(Context.USB_SERVICE);
         mUsbManager = IUsbManager.Stub.asInterface(b);
@@ -660,8 +663,7 @@ public class InstalledAppDetails extends Fragment
             try {
                 mPackageInfo = mPm.getPackageInfo(mAppEntry.info.packageName,
                         PackageManager.GET_DISABLED_COMPONENTS |
-                        PackageManager.GET_UNINSTALLED_PACKAGES |
-                        PackageManager.GET_SIGNATURES);
+                        PackageManager.GET_UNINSTALLED_PACKAGES);
             } catch (NameNotFoundException e) {
                 Log.e(TAG, "Exception when retrieving package:" + mAppEntry.info.packageName, e);
             }
@@ -673,21 +675,6 @@ public class InstalledAppDetails extends Fragment
         return packageName;
     }
 
-    private boolean signaturesMatch(String pkg1, String pkg2) {
-        if (pkg1 != null && pkg2 != null) {
-            try {
-                final int match = mPm.checkSignatures(pkg1, pkg2);
-                if (match >= PackageManager.SIGNATURE_MATCH) {
-                    return true;
-                }
-            } catch (Exception e) {
-                // e.g. named alternate package not found during lookup;
-                // this is an expected case sometimes
-            }
-        }
-        return false;
-    }
-
     private boolean refreshUi() {
         if (mMoveInProgress) {
             return true;
@@ -702,24 +689,9 @@ public class InstalledAppDetails extends Fragment
             return false; // onCreate must have failed, make sure to exit
         }
 
-        // Get list of "home" apps and trace through any meta-data references
-        List<ResolveInfo> homeActivities = new ArrayList<ResolveInfo>();
-        mPm.getHomeActivities(homeActivities);
+        // Get list of "home" apps, including anything proxying for them
         mHomePackages.clear();
-        for (int i = 0; i< homeActivities.size(); i++) {
-            ResolveInfo ri = homeActivities.get(i);
-            final String activityPkg = ri.activityInfo.packageName;
-            mHomePackages.add(activityPkg);
-
-            // Also make sure to include anything proxying for the home app
-            final Bundle metadata = ri.activityInfo.metaData;
-            if (metadata != null) {
-                final String metaPkg = metadata.getString(ActivityManager.META_HOME_ALTERNATE);
-                if (signaturesMatch(metaPkg, activityPkg)) {
-                    mHomePackages.add(metaPkg);
-                }
-            }
-        }
+        mHomePackages.addAll(mClassifier.getHomePackages());
 
         // Get list of preferred activities
         List<ComponentName> prefActList = new ArrayList<ComponentName>();
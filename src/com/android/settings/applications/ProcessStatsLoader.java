@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+import com.android.internal.app.IProcessStats;
+import com.android.internal.app.ProcessMap;
+import com.android.internal.app.ProcessStats;
+import com.android.internal.util.MemInfoReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Loader that reads {@link ProcessStats} for a duration and collates them into the entries
+ * shown by {@link ProcessStatsUi}. Parsed stats and collated snapshots are kept in a
+ * {@link Cache} so switching between views doesn't redo the work.
+ */
+public class ProcessStatsLoader extends AsyncTaskLoader<ProcessStatsLoader.Snapshot> {
+    private static final String TAG = ProcessStatsUi.TAG;
+    private static final boolean DEBUG = ProcessStatsUi.DEBUG;
+
+    private static final String KEY_DURATION = "duration";
+    private static final String KEY_PROC_STATES = "proc_states";
+    private static final String KEY_BACKGROUND = "background";
+    private static final String KEY_SHOW_SYSTEM = "show_system";
+    private static final String KEY_USE_USS = "use_uss";
+    private static final String KEY_MEM_REGION = "mem_region";
+
+    private final IProcessStats mProcessStats;
+    private final Cache mCache;
+    private final Bundle mArgs;
+
+    public static Bundle buildArgs(long duration, int[] procStates, boolean background,
+            boolean showSystem, boolean useUss, int memRegion) {
+        final Bundle args = new Bundle();
+        args.putLong(KEY_DURATION, duration);
+        args.putIntArray(KEY_PROC_STATES, procStates);
+        args.putBoolean(KEY_BACKGROUND, background);
+        args.putBoolean(KEY_SHOW_SYSTEM, showSystem);
+        args.putBoolean(KEY_USE_USS, useUss);
+        args.putInt(KEY_MEM_REGION, memRegion);
+        return args;
+    }
+
+    /**
+     * Returns the key under which the snapshot for the given arguments is cached.
+     */
+    public static String getSnapshotKey(Bundle args) {
+        return args.getLong(KEY_DURATION) + "/" + args.getBoolean(KEY_BACKGROUND) + "/"
+                + args.getBoolean(KEY_SHOW_SYSTEM) + "/" + args.getBoolean(KEY_USE_USS) + "/"
+                + args.getInt(KEY_MEM_REGION) + "/"
+                + Arrays.toString(args.getIntArray(KEY_PROC_STATES));
+    }
+
+    public ProcessStatsLoader(Context context, IProcessStats processStats, Cache cache,
+            Bundle args) {
+        super(context);
+        mProcessStats = processStats;
+        mCache = cache;
+        mArgs = args;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        forceLoad();
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+    }
+
+    @Override
+    public Snapshot loadInBackground() {
+        final String key = getSnapshotKey(mArgs);
+        Snapshot snapshot = mCache.getSnapshot(key);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        final long duration = mArgs.getLong(KEY_DURATION);
+        ProcessStats stats = mCache.getStats(duration);
+        if (stats == null) {
+            stats = readStats(duration);
+            if (stats == null) {
+                return null;
+            }
+            mCache.putStats(duration, stats);
+        }
+
+        snapshot = collate(key, stats, mArgs.getIntArray(KEY_PROC_STATES),
+                mArgs.getBoolean(KEY_BACKGROUND), mArgs.getBoolean(KEY_SHOW_SYSTEM),
+                mArgs.getBoolean(KEY_USE_USS), mArgs.getInt(KEY_MEM_REGION));
+        mCache.putSnapshot(key, snapshot);
+        return snapshot;
+    }
+
+    private ProcessStats readStats(long duration) {
+        try {
+            final int memState = mProcessStats.getCurrentMemoryState();
+            ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(duration);
+            ProcessStats stats = new ProcessStats(false);
+            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            stats.read(is);
+            try {
+                is.close();
+            } catch (IOException e) {
+            }
+            if (stats.mReadError != null) {
+                Log.w(TAG, "Failure reading process stats: " + stats.mReadError);
+            }
+            mCache.setMemState(memState);
+            return stats;
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+    }
+
+    private Snapshot collate(String key, ProcessStats stats, int[] procStates, boolean background,
+            boolean showSystem, boolean useUss, int memRegion) {
+        final Context context = getContext();
+        final PackageManager pm = context.getPackageManager();
+        final Snapshot snapshot = new Snapshot(key);
+        snapshot.memState = mCache.getMemState();
+        snapshot.elapsedTime = stats.mTimePeriodEndRealtime - stats.mTimePeriodStartRealtime;
+
+        long now = SystemClock.uptimeMillis();
+
+        snapshot.totalTime = ProcessStats.dumpSingleTime(null, null, stats.mMemFactorDurations,
+                stats.mMemFactor, stats.mStartTime, now);
+
+        final long[] memTimes = snapshot.memTimes;
+        for (int iscreen=0; iscreen<ProcessStats.ADJ_COUNT; iscreen+=ProcessStats.ADJ_SCREEN_MOD) {
+            for (int imem=0; imem<ProcessStats.ADJ_MEM_FACTOR_COUNT; imem++) {
+                int state = imem+iscreen;
+                memTimes[imem] += stats.mMemFactorDurations[state];
+            }
+        }
+
+        long memTotalTime;
+        int[] memStates;
+        switch (memRegion) {
+            case LinearColorBar.REGION_RED:
+                memTotalTime = memTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL];
+                memStates = ProcessStatsUi.RED_MEM_STATES;
+                break;
+            case LinearColorBar.REGION_YELLOW:
+                memTotalTime = memTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL]
+                        + memTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
+                        + memTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE];
+                memStates = ProcessStatsUi.YELLOW_MEM_STATES;
+                break;
+            default:
+                memTotalTime = snapshot.totalTime;
+                memStates = ProcessStats.ALL_MEM_ADJ;
+                break;
+        }
+
+        // Compute memory badness for chart color.
+        int[] badColors = com.android.settings.Utils.BADNESS_COLORS;
+        long timeGood = memTimes[ProcessStats.ADJ_MEM_FACTOR_NORMAL];
+        timeGood += (memTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE]*2)/3;
+        timeGood += memTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]/3;
+        float memBadness = ((float)timeGood)/snapshot.totalTime;
+        snapshot.badnessColor = badColors[1 + Math.round(memBadness*(badColors.length-2))];
+
+        // We are now going to scale the memTimes to match the total elapsed time.
+        // These are in uptime, so they will often be smaller than the elapsed time,
+        // but if the user taps on the bar we want to show the times to them.  It is confusing
+        // to see them be smaller than what we told them the measured duration is, so just
+        // scaling them up with make things look reasonable with them none the wiser.
+        for (int i=0; i<ProcessStats.ADJ_MEM_FACTOR_COUNT; i++) {
+            memTimes[i] = (long)((memTimes[i]*(double)snapshot.elapsedTime)/snapshot.totalTime);
+        }
+
+        ProcessStats.TotalMemoryUseCollection totalMem = new ProcessStats.TotalMemoryUseCollection(
+                ProcessStats.ALL_SCREEN_ADJ, memStates);
+        stats.computeTotalMemoryUse(totalMem, now);
+        double freeWeight = totalMem.sysMemFreeWeight + totalMem.sysMemCachedWeight;
+        double usedWeight = totalMem.sysMemKernelWeight + totalMem.sysMemNativeWeight
+                + totalMem.sysMemZRamWeight;
+        double backgroundWeight = 0, persBackgroundWeight = 0;
+        snapshot.memCachedWeight = totalMem.sysMemCachedWeight;
+        snapshot.memFreeWeight = totalMem.sysMemFreeWeight;
+        snapshot.memZRamWeight = totalMem.sysMemZRamWeight;
+        snapshot.memKernelWeight = totalMem.sysMemKernelWeight;
+        snapshot.memNativeWeight = totalMem.sysMemNativeWeight;
+        for (int i=0; i<ProcessStats.STATE_COUNT; i++) {
+            if (i == ProcessStats.STATE_SERVICE_RESTARTING) {
+                // These don't really run.
+                snapshot.memStateWeights[i] = 0;
+            } else {
+                snapshot.memStateWeights[i] = totalMem.processStateWeight[i];
+                if (i >= ProcessStats.STATE_HOME) {
+                    freeWeight += totalMem.processStateWeight[i];
+                } else {
+                    usedWeight += totalMem.processStateWeight[i];
+                }
+                if (i >= ProcessStats.STATE_IMPORTANT_FOREGROUND) {
+                    backgroundWeight += totalMem.processStateWeight[i];
+                    persBackgroundWeight += totalMem.processStateWeight[i];
+                }
+                if (i == ProcessStats.STATE_PERSISTENT) {
+                    persBackgroundWeight += totalMem.processStateWeight[i];
+                }
+            }
+        }
+        snapshot.memTotalWeight = freeWeight + usedWeight;
+
+        // For computing the ratio to show, we want to count the baseline cached RAM we
+        // need (at which point we start killing processes) as used RAM, so that if we
+        // reach the point of thrashing due to no RAM for any background processes we
+        // report that as RAM being full.  To do this, we need to first convert the weights
+        // back to actual RAM...  and since the RAM values we compute here won't exactly
+        // match the real physical RAM, scale those to the actual physical RAM.  No problem!
+        double usedRam = (usedWeight*1024)/memTotalTime;
+        double freeRam = (freeWeight*1024)/memTotalTime;
+        double totalRam = usedRam + freeRam;
+        MemInfoReader memReader = new MemInfoReader();
+        memReader.readMemInfo();
+        double realTotalRam = memReader.getTotalSize();
+        double totalScale = realTotalRam / totalRam;
+        double realUsedRam = usedRam * totalScale;
+        double realFreeRam = freeRam * totalScale;
+        ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
+        ((ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryInfo(
+                memInfo);
+        if (memInfo.hiddenAppThreshold >= realFreeRam) {
+            realUsedRam = realFreeRam;
+            realFreeRam = 0;
+        } else {
+            realUsedRam += memInfo.hiddenAppThreshold;
+            realFreeRam -= memInfo.hiddenAppThreshold;
+        }
+        snapshot.usedRatio = (float)(realUsedRam/(realFreeRam+realUsedRam));
+
+        ProcessStats.ProcessDataCollection totals = new ProcessStats.ProcessDataCollection(
+                ProcessStats.ALL_SCREEN_ADJ, memStates, procStates);
+
+        ArrayList<ProcStatsEntry> entries = new ArrayList<ProcStatsEntry>();
+
+        if (DEBUG) Log.d(TAG, "-------------------- PULLING PROCESSES");
+
+        final ProcessMap<ProcStatsEntry> entriesMap = new ProcessMap<ProcStatsEntry>();
+        for (int ipkg=0, N=stats.mPackages.getMap().size(); ipkg<N; ipkg++) {
+            final SparseArray<SparseArray<ProcessStats.PackageState>> pkgUids
+                    = stats.mPackages.getMap().valueAt(ipkg);
+            for (int iu=0; iu<pkgUids.size(); iu++) {
+                final SparseArray<ProcessStats.PackageState> vpkgs = pkgUids.valueAt(iu);
+                for (int iv=0; iv<vpkgs.size(); iv++) {
+                    final ProcessStats.PackageState st = vpkgs.valueAt(iv);
+                    for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
+                        final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
+                        final ProcessStats.ProcessState proc = stats.mProcesses.get(pkgProc.mName,
+                                pkgProc.mUid);
+                        if (proc == null) {
+                            Log.w(TAG, "No process found for pkg " + st.mPackageName
+                                    + "/" + st.mUid + " proc name " + pkgProc.mName);
+                            continue;
+                        }
+                        ProcStatsEntry ent = entriesMap.get(proc.mName, proc.mUid);
+                        if (ent == null) {
+                            ent = new ProcStatsEntry(proc, st.mPackageName, totals, useUss,
+                                    background);
+                            if (ent.mDuration > 0) {
+                                if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
+                                        + proc.mUid + ": time=" + ent.mDuration + " ("
+                                        + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)"
+                                        + " pss=" + ent.mAvgPss);
+                                entriesMap.put(proc.mName, proc.mUid, ent);
+                                entries.add(ent);
+                            }
+                        }  else {
+                            ent.addPackage(st.mPackageName);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (DEBUG) Log.d(TAG, "-------------------- MAPPING SERVICES");
+
+        // Add in service info.
+        if (background) {
+            for (int ip=0, N=stats.mPackages.getMap().size(); ip<N; ip++) {
+                SparseArray<SparseArray<ProcessStats.PackageState>> uids
+                        = stats.mPackages.getMap().valueAt(ip);
+                for (int iu=0; iu<uids.size(); iu++) {
+                    SparseArray<ProcessStats.PackageState> vpkgs = uids.valueAt(iu);
+                    for (int iv=0; iv<vpkgs.size(); iv++) {
+                        ProcessStats.PackageState ps = vpkgs.valueAt(iv);
+                        for (int is=0, NS=ps.mServices.size(); is<NS; is++) {
+                            ProcessStats.ServiceState ss = ps.mServices.valueAt(is);
+                            if (ss.mProcessName != null) {
+                                ProcStatsEntry ent = entriesMap.get(ss.mProcessName, uids.keyAt(iu));
+                                if (ent != null) {
+                                    if (DEBUG) Log.d(TAG, "Adding service " + ps.mPackageName
+                                            + "/" + ss.mName + "/" + uids.keyAt(iu) + " to proc "
+                                            + ss.mProcessName);
+                                    ent.addService(ss);
+                                } else {
+                                    Log.w(TAG, "No process " + ss.mProcessName + "/" + uids.keyAt(iu)
+                                            + " for service " + ss.mName);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        Collections.sort(entries, ProcessStatsUi.sEntryCompare);
+
+        long maxWeight = 1;
+        for (int i=0, N=entries.size(); i<N; i++) {
+            ProcStatsEntry proc = entries.get(i);
+            if (maxWeight < proc.mWeight) {
+                maxWeight = proc.mWeight;
+            }
+        }
+        if (background) {
+            snapshot.maxWeight = (long)(showSystem ? persBackgroundWeight : backgroundWeight);
+            if (snapshot.maxWeight < maxWeight) {
+                snapshot.maxWeight = maxWeight;
+            }
+        } else {
+            snapshot.maxWeight = maxWeight;
+        }
+
+        // Find where we should stop.  Because we have two properties we are looking at,
+        // we need to go from the back looking for the first place either holds.
+        int end = entries.size()-1;
+        while (end >= 0) {
+            ProcStatsEntry proc = entries.get(end);
+            final double percentOfWeight = (((double)proc.mWeight) / snapshot.maxWeight) * 100;
+            final double percentOfTime = (((double)proc.mDuration) / memTotalTime) * 100;
+            if (percentOfWeight >= 1 || percentOfTime >= 25) {
+                break;
+            }
+            end--;
+        }
+        for (int i=0; i<=end && i<ProcessStatsUi.MAX_ITEMS_TO_LIST; i++) {
+            ProcStatsEntry proc = entries.get(i);
+            proc.evaluateTargetPackage(pm, stats, totals, ProcessStatsUi.sEntryCompare, useUss,
+                    background);
+            proc.retrieveUiData(pm);
+            Row row = new Row(proc);
+            row.percentOfWeight = (((double)proc.mWeight) / snapshot.maxWeight) * 100;
+            row.percentOfTime = (((double)proc.mDuration) / memTotalTime) * 100;
+            if (proc.mUiTargetApp != null) {
+                row.icon = proc.mUiTargetApp.loadIcon(pm);
+            }
+            snapshot.rows.add(row);
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * A process row of a {@link Snapshot}, ready to be bound to a
+     * {@link ProcessStatsPreference}.
+     */
+    public static final class Row {
+        public final ProcStatsEntry entry;
+        /** Identifies the process across snapshots. */
+        public final String key;
+        public Drawable icon;
+        public double percentOfWeight;
+        public double percentOfTime;
+
+        Row(ProcStatsEntry entry) {
+            this.entry = entry;
+            this.key = entry.mName + "/" + entry.mUid;
+        }
+    }
+
+    /**
+     * Everything {@link ProcessStatsUi} shows for one combination of view options.
+     */
+    public static final class Snapshot {
+        public final String key;
+        public int memState;
+        public long elapsedTime;
+        public long totalTime;
+        public final long[] memTimes = new long[ProcessStats.ADJ_MEM_FACTOR_COUNT];
+        public final double[] memStateWeights = new double[ProcessStats.STATE_COUNT];
+        public double memCachedWeight;
+        public double memFreeWeight;
+        public double memZRamWeight;
+        public double memKernelWeight;
+        public double memNativeWeight;
+        public double memTotalWeight;
+        public long maxWeight;
+        public int badnessColor;
+        public float usedRatio;
+        public final ArrayList<Row> rows = new ArrayList<Row>();
+
+        Snapshot(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Parsed stats per duration and collated snapshots per view options. Shared between the
+     * UI thread and the loader thread.
+     */
+    public static final class Cache {
+        private final ArrayMap<Long, ProcessStats> mStats = new ArrayMap<Long, ProcessStats>();
+        private final ArrayMap<String, Snapshot> mSnapshots = new ArrayMap<String, Snapshot>();
+        private int mMemState;
+
+        public synchronized ProcessStats getStats(long duration) {
+            return mStats.get(duration);
+        }
+
+        public synchronized void putStats(long duration, ProcessStats stats) {
+            mStats.put(duration, stats);
+        }
+
+        public synchronized Snapshot getSnapshot(String key) {
+            return mSnapshots.get(key);
+        }
+
+        public synchronized void putSnapshot(String key, Snapshot snapshot) {
+            mSnapshots.put(key, snapshot);
+        }
+
+        public synchronized int getMemState() {
+            return mMemState;
+        }
+
+        public synchronized void setMemState(int memState) {
+            mMemState = memState;
+        }
+
+        /**
+         * Drops everything, so the next load reads fresh stats.
+         */
+        public synchronized void clear() {
+            mStats.clear();
+            mSnapshots.clear();
+        }
+    }
+}
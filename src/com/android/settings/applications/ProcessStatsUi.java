@@ -16,39 +16,27 @@
 
 package com.android.settings.applications;
 
-import android.app.ActivityManager;
+import android.app.LoaderManager.LoaderCallbacks;
 import android.content.Context;
-import android.content.pm.PackageManager;
+import android.content.Loader;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
-import android.os.RemoteException;
 import android.os.ServiceManager;
-import android.os.SystemClock;
 import android.os.UserManager;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
-import android.text.format.Formatter;
-import android.util.Log;
-import android.util.SparseArray;
-import android.util.TimeUtils;
+import android.util.ArrayMap;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.SubMenu;
 import com.android.internal.app.IProcessStats;
-import com.android.internal.app.ProcessMap;
 import com.android.internal.app.ProcessStats;
-import com.android.internal.util.MemInfoReader;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 import com.android.settings.Utils;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 
 public class ProcessStatsUi extends PreferenceFragment
@@ -88,15 +76,21 @@ public class ProcessStatsUi extends PreferenceFragment
         }
     };
 
-    private static ProcessStats sStatsXfer;
+    private static final int LOADER_STATS = 1;
+
+    private static ProcessStatsLoader.Cache sCacheXfer;
 
     IProcessStats mProcessStats;
     UserManager mUm;
-    ProcessStats mStats;
     int mMemState;
 
+    private ProcessStatsLoader.Cache mCache;
+    private ProcessStatsLoader.Snapshot mBoundSnapshot;
+    private ArrayMap<String, ProcessStatsPreference> mProcPrefs =
+            new ArrayMap<String, ProcessStatsPreference>();
+    private LinearColorPreference mColorsPref;
+
     private long mDuration;
-    private long mLastDuration;
     private boolean mShowSystem;
     private boolean mUseUss;
     private int mStatsType;
@@ -143,9 +137,12 @@ public class ProcessStatsUi extends PreferenceFragment
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
-        if (icicle != null) {
-            mStats = sStatsXfer;
+        if (icicle != null && sCacheXfer != null) {
+            mCache = sCacheXfer;
+        } else {
+            mCache = new ProcessStatsLoader.Cache();
         }
+        sCacheXfer = null;
 
         addPreferencesFromResource(R.xml.process_stats_summary);
         mProcessStats = IProcessStats.Stub.asInterface(
@@ -188,7 +185,7 @@ public class ProcessStatsUi extends PreferenceFragment
     public void onDestroy() {
         super.onDestroy();
         if (getActivity().isChangingConfigurations()) {
-            sStatsXfer = mStats;
+            sCacheXfer = mCache;
         }
     }
 
@@ -309,7 +306,7 @@ public class ProcessStatsUi extends PreferenceFragment
         final int id = item.getItemId();
         switch (id) {
             case MENU_STATS_REFRESH:
-                mStats = null;
+                mCache.clear();
                 refreshStats();
                 return true;
             case MENU_SHOW_SYSTEM:
@@ -374,41 +371,85 @@ public class ProcessStatsUi extends PreferenceFragment
             ProcessStats.ADJ_MEM_FACTOR_MODERATE
     };
 
-    private String makeDuration(long time) {
-        StringBuilder sb = new StringBuilder(32);
-        TimeUtils.formatDuration(time, sb);
-        return sb.toString();
-    }
-
     private void refreshStats() {
         updateMenus();
 
-        if (mStats == null || mLastDuration != mDuration) {
-            load();
+        final Bundle args = ProcessStatsLoader.buildArgs(mDuration, getProcStates(),
+                mStatsType == MENU_TYPE_BACKGROUND, mShowSystem, mUseUss, mMemRegion);
+        final ProcessStatsLoader.Snapshot snapshot =
+                mCache.getSnapshot(ProcessStatsLoader.getSnapshotKey(args));
+        if (snapshot != null) {
+            // Already collated for these options; no need to go through the loader.
+            getLoaderManager().destroyLoader(LOADER_STATS);
+            bindSnapshot(snapshot);
+            return;
+        }
+        getLoaderManager().restartLoader(LOADER_STATS, args, mStatsCallbacks);
+    }
+
+    private int[] getProcStates() {
+        if (mStatsType == MENU_TYPE_FOREGROUND) {
+            return FOREGROUND_PROC_STATES;
+        } else if (mStatsType == MENU_TYPE_CACHED) {
+            return CACHED_PROC_STATES;
         }
+        return mShowSystem ? BACKGROUND_AND_SYSTEM_PROC_STATES
+                : ProcessStats.BACKGROUND_PROC_STATES;
+    }
 
-        int[] stats;
-        int statsLabel;
+    private int getStatsLabel() {
         if (mStatsType == MENU_TYPE_FOREGROUND) {
-            stats = FOREGROUND_PROC_STATES;
-            statsLabel = R.string.process_stats_type_foreground;
+            return R.string.process_stats_type_foreground;
         } else if (mStatsType == MENU_TYPE_CACHED) {
-            stats = CACHED_PROC_STATES;
-            statsLabel = R.string.process_stats_type_cached;
-        } else {
-            stats = mShowSystem ? BACKGROUND_AND_SYSTEM_PROC_STATES
-                    : ProcessStats.BACKGROUND_PROC_STATES;
-            statsLabel = R.string.process_stats_type_background;
+            return R.string.process_stats_type_cached;
         }
+        return R.string.process_stats_type_background;
+    }
 
-        mAppListGroup.removeAll();
+    /**
+     * Shows the given snapshot, updating the preferences of processes that were already shown
+     * instead of recreating them.
+     */
+    private void bindSnapshot(ProcessStatsLoader.Snapshot snapshot) {
+        if (snapshot == null) {
+            mAppListGroup.removeAll();
+            mProcPrefs.clear();
+            mColorsPref = null;
+            addNotAvailableMessage();
+            mBoundSnapshot = null;
+            return;
+        }
+        if (snapshot == mBoundSnapshot) {
+            return;
+        }
+        if (mBoundSnapshot == null) {
+            // Start over, in case the not available message is showing.
+            mAppListGroup.removeAll();
+            mProcPrefs.clear();
+            mColorsPref = null;
+        }
+        mBoundSnapshot = snapshot;
         mAppListGroup.setOrderingAsAdded(false);
 
-        final long elapsedTime = mStats.mTimePeriodEndRealtime-mStats.mTimePeriodStartRealtime;
-
-        mMemStatusPref.setOrder(-2);
-        mAppListGroup.addPreference(mMemStatusPref);
-        String durationString = Utils.formatElapsedTime(getActivity(), elapsedTime, false);
+        mMemState = snapshot.memState;
+        mTotalTime = snapshot.totalTime;
+        mMaxWeight = snapshot.maxWeight;
+        System.arraycopy(snapshot.memTimes, 0, mMemTimes, 0, mMemTimes.length);
+        System.arraycopy(snapshot.memStateWeights, 0, mMemStateWeights, 0,
+                mMemStateWeights.length);
+        mMemCachedWeight = snapshot.memCachedWeight;
+        mMemFreeWeight = snapshot.memFreeWeight;
+        mMemZRamWeight = snapshot.memZRamWeight;
+        mMemKernelWeight = snapshot.memKernelWeight;
+        mMemNativeWeight = snapshot.memNativeWeight;
+        mMemTotalWeight = snapshot.memTotalWeight;
+
+        if (mAppListGroup.findPreference(KEY_MEM_STATUS) == null) {
+            mMemStatusPref.setOrder(-2);
+            mAppListGroup.addPreference(mMemStatusPref);
+        }
+        String durationString = Utils.formatElapsedTime(getActivity(), snapshot.elapsedTime,
+                false);
         CharSequence memString;
         CharSequence[] memStatesStr = getResources().getTextArray(R.array.ram_states);
         if (mMemState >= 0 && mMemState < memStatesStr.length) {
@@ -417,389 +458,58 @@ public class ProcessStatsUi extends PreferenceFragment
             memString = "?";
         }
         mMemStatusPref.setTitle(getActivity().getString(R.string.process_stats_total_duration,
-                getActivity().getString(statsLabel), durationString));
+                getActivity().getString(getStatsLabel()), durationString));
         mMemStatusPref.setSummary(getActivity().getString(R.string.process_stats_memory_status,
                         memString));
-        /*
-        mMemStatusPref.setTitle(DateFormat.format(DateFormat.getBestDateTimePattern(
-                getActivity().getResources().getConfiguration().locale,
-                "MMMM dd, yyyy h:mm a"), mStats.mTimePeriodStartClock));
-        */
-        /*
-        BatteryHistoryPreference hist = new BatteryHistoryPreference(getActivity(), mStats);
-        hist.setOrder(-1);
-        mAppListGroup.addPreference(hist);
-        */
-
-        long now = SystemClock.uptimeMillis();
-
-        final PackageManager pm = getActivity().getPackageManager();
-
-        mTotalTime = ProcessStats.dumpSingleTime(null, null, mStats.mMemFactorDurations,
-                mStats.mMemFactor, mStats.mStartTime, now);
-        if (DEBUG) Log.d(TAG, "Total time of stats: " + makeDuration(mTotalTime));
-
-        for (int i=0; i<mMemTimes.length; i++) {
-            mMemTimes[i] = 0;
-        }
-        for (int iscreen=0; iscreen<ProcessStats.ADJ_COUNT; iscreen+=ProcessStats.ADJ_SCREEN_MOD) {
-            for (int imem=0; imem<ProcessStats.ADJ_MEM_FACTOR_COUNT; imem++) {
-                int state = imem+iscreen;
-                mMemTimes[imem] += mStats.mMemFactorDurations[state];
-            }
-        }
-
-        long memTotalTime;
-        int[] memStates;
-
-        LinearColorPreference colors = new LinearColorPreference(getActivity());
-        colors.setOrder(-1);
-        switch (mMemRegion) {
-            case LinearColorBar.REGION_RED:
-                memTotalTime = mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL];
-                memStates = RED_MEM_STATES;
-                break;
-            case LinearColorBar.REGION_YELLOW:
-                memTotalTime = mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL]
-                        + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
-                        + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE];
-                memStates = YELLOW_MEM_STATES;
-                break;
-            default:
-                memTotalTime = mTotalTime;
-                memStates = ProcessStats.ALL_MEM_ADJ;
-                break;
-        }
-        colors.setColoredRegions(LinearColorBar.REGION_RED);
-
-        // Compute memory badness for chart color.
-        int[] badColors = com.android.settings.Utils.BADNESS_COLORS;
-        long timeGood = mMemTimes[ProcessStats.ADJ_MEM_FACTOR_NORMAL];
-        timeGood += (mMemTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE]*2)/3;
-        timeGood += mMemTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]/3;
-        float memBadness = ((float)timeGood)/mTotalTime;
-        int badnessColor = badColors[1 + Math.round(memBadness*(badColors.length-2))];
-        colors.setColors(badnessColor, badnessColor, badnessColor);
-
-        // We are now going to scale the mMemTimes to match the total elapsed time.
-        // These are in uptime, so they will often be smaller than the elapsed time,
-        // but if the user taps on the bar we want to show the times to them.  It is confusing
-        // to see them be smaller than what we told them the measured duration is, so just
-        // scaling them up with make things look reasonable with them none the wiser.
-        for (int i=0; i<ProcessStats.ADJ_MEM_FACTOR_COUNT; i++) {
-            mMemTimes[i] = (long)((mMemTimes[i]*(double)elapsedTime)/mTotalTime);
-        }
-
-        ProcessStats.TotalMemoryUseCollection totalMem = new ProcessStats.TotalMemoryUseCollection(
-                ProcessStats.ALL_SCREEN_ADJ, memStates);
-        mStats.computeTotalMemoryUse(totalMem, now);
-        double freeWeight = totalMem.sysMemFreeWeight + totalMem.sysMemCachedWeight;
-        double usedWeight = totalMem.sysMemKernelWeight + totalMem.sysMemNativeWeight
-                + totalMem.sysMemZRamWeight;
-        double backgroundWeight = 0, persBackgroundWeight = 0;
-        mMemCachedWeight = totalMem.sysMemCachedWeight;
-        mMemFreeWeight = totalMem.sysMemFreeWeight;
-        mMemZRamWeight = totalMem.sysMemZRamWeight;
-        mMemKernelWeight = totalMem.sysMemKernelWeight;
-        mMemNativeWeight = totalMem.sysMemNativeWeight;
-        for (int i=0; i<ProcessStats.STATE_COUNT; i++) {
-            if (i == ProcessStats.STATE_SERVICE_RESTARTING) {
-                // These don't really run.
-                mMemStateWeights[i] = 0;
-            } else {
-                mMemStateWeights[i] = totalMem.processStateWeight[i];
-                if (i >= ProcessStats.STATE_HOME) {
-                    freeWeight += totalMem.processStateWeight[i];
-                } else {
-                    usedWeight += totalMem.processStateWeight[i];
-                }
-                if (i >= ProcessStats.STATE_IMPORTANT_FOREGROUND) {
-                    backgroundWeight += totalMem.processStateWeight[i];
-                    persBackgroundWeight += totalMem.processStateWeight[i];
-                }
-                if (i == ProcessStats.STATE_PERSISTENT) {
-                    persBackgroundWeight += totalMem.processStateWeight[i];
-                }
-            }
-        }
-        if (DEBUG) {
-            Log.i(TAG, "Used RAM: " + Formatter.formatShortFileSize(getActivity(),
-                    (long)((usedWeight * 1024) / memTotalTime)));
-            Log.i(TAG, "Free RAM: " + Formatter.formatShortFileSize(getActivity(),
-                    (long)((freeWeight * 1024) / memTotalTime)));
-            Log.i(TAG, "Total RAM: " + Formatter.formatShortFileSize(getActivity(),
-                    (long)(((freeWeight+usedWeight) * 1024) / memTotalTime)));
-            Log.i(TAG, "Background+Cached RAM: " + Formatter.formatShortFileSize(getActivity(),
-                    (long)((backgroundWeight * 1024) / memTotalTime)));
-        }
-        mMemTotalWeight = freeWeight + usedWeight;
-
-        // For computing the ratio to show, we want to count the baseline cached RAM we
-        // need (at which point we start killing processes) as used RAM, so that if we
-        // reach the point of thrashing due to no RAM for any background processes we
-        // report that as RAM being full.  To do this, we need to first convert the weights
-        // back to actual RAM...  and since the RAM values we compute here won't exactly
-        // match the real physical RAM, scale those to the actual physical RAM.  No problem!
-        double usedRam = (usedWeight*1024)/memTotalTime;
-        double freeRam = (freeWeight*1024)/memTotalTime;
-        double totalRam = usedRam + freeRam;
-        MemInfoReader memReader = new MemInfoReader();
-        memReader.readMemInfo();
-        double realTotalRam = memReader.getTotalSize();
-        double totalScale = realTotalRam / totalRam;
-        double realUsedRam = usedRam * totalScale;
-        double realFreeRam = freeRam * totalScale;
-        if (DEBUG) {
-            Log.i(TAG, "Scaled Used RAM: " + Formatter.formatShortFileSize(getActivity(),
-                    (long)realUsedRam));
-            Log.i(TAG, "Scaled Free RAM: " + Formatter.formatShortFileSize(getActivity(),
-                    (long)realFreeRam));
-        }
-        ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
-        ((ActivityManager)getActivity().getSystemService(Context.ACTIVITY_SERVICE)).getMemoryInfo(
-                memInfo);
-        if (memInfo.hiddenAppThreshold >= realFreeRam) {
-            realUsedRam = realFreeRam;
-            realFreeRam = 0;
-        } else {
-            realUsedRam += memInfo.hiddenAppThreshold;
-            realFreeRam -= memInfo.hiddenAppThreshold;
-        }
-        if (DEBUG) {
-            Log.i(TAG, "Adj Scaled Used RAM: " + Formatter.formatShortFileSize(getActivity(),
-                    (long)realUsedRam));
-            Log.i(TAG, "Adj Scaled Free RAM: " + Formatter.formatShortFileSize(getActivity(),
-                    (long)realFreeRam));
-        }
-
-        float usedRatio = (float)(realUsedRam/(realFreeRam+realUsedRam));
-        colors.setRatios(usedRatio, 0, 1-usedRatio);
-
-        if (false) {
-            colors.setOnRegionTappedListener(this);
-            switch (mMemRegion) {
-                case LinearColorBar.REGION_RED:
-                    colors.setColoredRegions(LinearColorBar.REGION_RED);
-                    memTotalTime = mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL];
-                    memStates = RED_MEM_STATES;
-                    break;
-                case LinearColorBar.REGION_YELLOW:
-                    colors.setColoredRegions(LinearColorBar.REGION_RED
-                            | LinearColorBar.REGION_YELLOW);
-                    memTotalTime = mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL]
-                            + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
-                            + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE];
-                    memStates = YELLOW_MEM_STATES;
-                    break;
-                default:
-                    colors.setColoredRegions(LinearColorBar.REGION_ALL);
-                    memTotalTime = mTotalTime;
-                    memStates = ProcessStats.ALL_MEM_ADJ;
-                    break;
-            }
-            colors.setRatios(mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL] / (float)mTotalTime,
-                    (mMemTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
-                            + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE]) / (float)mTotalTime,
-                    mMemTimes[ProcessStats.ADJ_MEM_FACTOR_NORMAL] / (float)mTotalTime);
-        }
-
-        mAppListGroup.addPreference(colors);
-
-        ProcessStats.ProcessDataCollection totals = new ProcessStats.ProcessDataCollection(
-                ProcessStats.ALL_SCREEN_ADJ, memStates, stats);
 
-        ArrayList<ProcStatsEntry> entries = new ArrayList<ProcStatsEntry>();
-
-        /*
-        ArrayList<ProcessStats.ProcessState> rawProcs = mStats.collectProcessesLocked(
-                ProcessStats.ALL_SCREEN_ADJ, ProcessStats.ALL_MEM_ADJ,
-                ProcessStats.BACKGROUND_PROC_STATES, now, null);
-        for (int i=0, N=(rawProcs != null ? rawProcs.size() : 0); i<N; i++) {
-            procs.add(new ProcStatsEntry(rawProcs.get(i), totals));
-        }
-        */
-
-        if (DEBUG) Log.d(TAG, "-------------------- PULLING PROCESSES");
-
-        final ProcessMap<ProcStatsEntry> entriesMap = new ProcessMap<ProcStatsEntry>();
-        for (int ipkg=0, N=mStats.mPackages.getMap().size(); ipkg<N; ipkg++) {
-            final SparseArray<SparseArray<ProcessStats.PackageState>> pkgUids
-                    = mStats.mPackages.getMap().valueAt(ipkg);
-            for (int iu=0; iu<pkgUids.size(); iu++) {
-                final SparseArray<ProcessStats.PackageState> vpkgs = pkgUids.valueAt(iu);
-                for (int iv=0; iv<vpkgs.size(); iv++) {
-                    final ProcessStats.PackageState st = vpkgs.valueAt(iv);
-                    for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
-                        final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
-                        final ProcessStats.ProcessState proc = mStats.mProcesses.get(pkgProc.mName,
-                                pkgProc.mUid);
-                        if (proc == null) {
-                            Log.w(TAG, "No process found for pkg " + st.mPackageName
-                                    + "/" + st.mUid + " proc name " + pkgProc.mName);
-                            continue;
-                        }
-                        ProcStatsEntry ent = entriesMap.get(proc.mName, proc.mUid);
-                        if (ent == null) {
-                            ent = new ProcStatsEntry(proc, st.mPackageName, totals, mUseUss,
-                                    mStatsType == MENU_TYPE_BACKGROUND);
-                            if (ent.mDuration > 0) {
-                                if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
-                                        + proc.mUid + ": time=" + makeDuration(ent.mDuration) + " ("
-                                        + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)"
-                                        + " pss=" + ent.mAvgPss);
-                                entriesMap.put(proc.mName, proc.mUid, ent);
-                                entries.add(ent);
-                            }
-                        }  else {
-                            ent.addPackage(st.mPackageName);
-                        }
-                    }
-                }
+        if (mColorsPref == null) {
+            mColorsPref = new LinearColorPreference(getActivity());
+            mColorsPref.setOrder(-1);
+            mColorsPref.setColoredRegions(LinearColorBar.REGION_RED);
+            mAppListGroup.addPreference(mColorsPref);
+        }
+        mColorsPref.setColors(snapshot.badnessColor, snapshot.badnessColor,
+                snapshot.badnessColor);
+        mColorsPref.setRatios(snapshot.usedRatio, 0, 1-snapshot.usedRatio);
+
+        final ArrayMap<String, ProcessStatsPreference> oldPrefs = mProcPrefs;
+        mProcPrefs = new ArrayMap<String, ProcessStatsPreference>();
+        for (int i=0, N=snapshot.rows.size(); i<N; i++) {
+            final ProcessStatsLoader.Row row = snapshot.rows.get(i);
+            ProcessStatsPreference pref = oldPrefs.remove(row.key);
+            final boolean isNew = pref == null;
+            if (isNew) {
+                pref = new ProcessStatsPreference(getActivity());
             }
-        }
-
-        if (DEBUG) Log.d(TAG, "-------------------- MAPPING SERVICES");
-
-        // Add in service info.
-        if (mStatsType == MENU_TYPE_BACKGROUND) {
-            for (int ip=0, N=mStats.mPackages.getMap().size(); ip<N; ip++) {
-                SparseArray<SparseArray<ProcessStats.PackageState>> uids
-                        = mStats.mPackages.getMap().valueAt(ip);
-                for (int iu=0; iu<uids.size(); iu++) {
-                    SparseArray<ProcessStats.PackageState> vpkgs = uids.valueAt(iu);
-                    for (int iv=0; iv<vpkgs.size(); iv++) {
-                        ProcessStats.PackageState ps = vpkgs.valueAt(iv);
-                        for (int is=0, NS=ps.mServices.size(); is<NS; is++) {
-                            ProcessStats.ServiceState ss = ps.mServices.valueAt(is);
-                            if (ss.mProcessName != null) {
-                                ProcStatsEntry ent = entriesMap.get(ss.mProcessName, uids.keyAt(iu));
-                                if (ent != null) {
-                                    if (DEBUG) Log.d(TAG, "Adding service " + ps.mPackageName
-                                            + "/" + ss.mName + "/" + uids.keyAt(iu) + " to proc "
-                                            + ss.mProcessName);
-                                    ent.addService(ss);
-                                } else {
-                                    Log.w(TAG, "No process " + ss.mProcessName + "/" + uids.keyAt(iu)
-                                            + " for service " + ss.mName);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        }
-
-        /*
-        SparseArray<ArrayMap<String, ProcStatsEntry>> processes
-                = new SparseArray<ArrayMap<String, ProcStatsEntry>>();
-        for (int ip=0, N=mStats.mProcesses.getMap().size(); ip<N; ip++) {
-            SparseArray<ProcessStats.ProcessState> uids = mStats.mProcesses.getMap().valueAt(ip);
-            for (int iu=0; iu<uids.size(); iu++) {
-                ProcessStats.ProcessState st = uids.valueAt(iu);
-                ProcStatsEntry ent = new ProcStatsEntry(st, totals, mUseUss,
-                        mStatsType == MENU_TYPE_BACKGROUND);
-                if (ent.mDuration > 0) {
-                    if (DEBUG) Log.d(TAG, "Adding proc " + st.mName + "/" + st.mUid + ": time="
-                            + makeDuration(ent.mDuration) + " ("
-                            + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)");
-                    procs.add(ent);
-                    ArrayMap<String, ProcStatsEntry> uidProcs = processes.get(ent.mUid);
-                    if (uidProcs == null) {
-                        uidProcs = new ArrayMap<String, ProcStatsEntry>();
-                        processes.put(ent.mUid, uidProcs);
-                    }
-                    uidProcs.put(ent.mName, ent);
-                }
-            }
-        }
-        */
-
-        Collections.sort(entries, sEntryCompare);
-
-        long maxWeight = 1;
-        for (int i=0, N=(entries != null ? entries.size() : 0); i<N; i++) {
-            ProcStatsEntry proc = entries.get(i);
-            if (maxWeight < proc.mWeight) {
-                maxWeight = proc.mWeight;
+            pref.init(row.icon, row.entry);
+            pref.setTitle(row.entry.mUiLabel);
+            pref.setOrder(i);
+            pref.setPercent(row.percentOfWeight, row.percentOfTime);
+            if (isNew) {
+                mAppListGroup.addPreference(pref);
             }
+            mProcPrefs.put(row.key, pref);
         }
-        if (mStatsType == MENU_TYPE_BACKGROUND) {
-            mMaxWeight = (long)(mShowSystem ? persBackgroundWeight : backgroundWeight);
-            if (mMaxWeight < maxWeight) {
-                mMaxWeight = maxWeight;
-            }
-            if (DEBUG) {
-                Log.i(TAG, "Bar max RAM: " + Formatter.formatShortFileSize(getActivity(),
-                        (mMaxWeight * 1024) / memTotalTime));
-            }
-        } else {
-            mMaxWeight = maxWeight;
+        for (int i=0, N=oldPrefs.size(); i<N; i++) {
+            mAppListGroup.removePreference(oldPrefs.valueAt(i));
         }
+    }
 
-        if (DEBUG) Log.d(TAG, "-------------------- BUILDING UI");
-
-        // Find where we should stop.  Because we have two properties we are looking at,
-        // we need to go from the back looking for the first place either holds.
-        int end = entries != null ? entries.size()-1 : -1;
-        while (end >= 0) {
-            ProcStatsEntry proc = entries.get(end);
-            final double percentOfWeight = (((double)proc.mWeight) / mMaxWeight) * 100;
-            final double percentOfTime = (((double)proc.mDuration) / memTotalTime) * 100;
-            if (percentOfWeight >= 1 || percentOfTime >= 25) {
-                break;
-            }
-            end--;
+    private final LoaderCallbacks<ProcessStatsLoader.Snapshot> mStatsCallbacks =
+            new LoaderCallbacks<ProcessStatsLoader.Snapshot>() {
+        @Override
+        public Loader<ProcessStatsLoader.Snapshot> onCreateLoader(int id, Bundle args) {
+            return new ProcessStatsLoader(getActivity(), mProcessStats, mCache, args);
         }
-        for (int i=0; i<=end; i++) {
-            ProcStatsEntry proc = entries.get(i);
-            final double percentOfWeight = (((double)proc.mWeight) / mMaxWeight) * 100;
-            final double percentOfTime = (((double)proc.mDuration) / memTotalTime) * 100;
-            ProcessStatsPreference pref = new ProcessStatsPreference(getActivity());
-            pref.init(null, proc);
-            proc.evaluateTargetPackage(pm, mStats, totals, sEntryCompare, mUseUss,
-                    mStatsType == MENU_TYPE_BACKGROUND);
-            proc.retrieveUiData(pm);
-            pref.setTitle(proc.mUiLabel);
-            if (proc.mUiTargetApp != null) {
-                pref.setIcon(proc.mUiTargetApp.loadIcon(pm));
-            }
-            pref.setOrder(i);
-            pref.setPercent(percentOfWeight, percentOfTime);
-            mAppListGroup.addPreference(pref);
-            if (mStatsType == MENU_TYPE_BACKGROUND) {
-                if (DEBUG) {
-                    Log.i(TAG, "App " + proc.mUiLabel + ": weightedRam="
-                            + Formatter.formatShortFileSize(getActivity(),
-                                    (proc.mWeight * 1024) / memTotalTime)
-                            + ", avgRam=" + Formatter.formatShortFileSize(getActivity(),
-                                    (proc.mAvgPss*1024)));
-                }
 
-            }
-            if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST+1)) {
-                if (DEBUG) Log.d(TAG, "Done with UI, hit item limit!");
-                break;
-            }
+        @Override
+        public void onLoadFinished(Loader<ProcessStatsLoader.Snapshot> loader,
+                ProcessStatsLoader.Snapshot data) {
+            bindSnapshot(data);
         }
-    }
 
-    private void load() {
-        try {
-            mLastDuration = mDuration;
-            mMemState = mProcessStats.getCurrentMemoryState();
-            ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(mDuration);
-            mStats = new ProcessStats(false);
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-            mStats.read(is);
-            try {
-                is.close();
-            } catch (IOException e) {
-            }
-            if (mStats.mReadError != null) {
-                Log.w(TAG, "Failure reading process stats: " + mStats.mReadError);
-            }
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException:", e);
+        @Override
+        public void onLoaderReset(Loader<ProcessStatsLoader.Snapshot> loader) {
         }
-    }
+    };
 }
@@ -18,6 +18,7 @@ package com.android.settings.applications;
 
 import android.content.res.Resources;
 import android.text.BidiFormatter;
+import android.text.TextUtils;
 import com.android.internal.util.MemInfoReader;
 import com.android.settings.R;
 
@@ -31,6 +32,7 @@ import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
+import android.util.ArrayMap;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -44,10 +46,10 @@ import android.widget.TextView;
 import android.widget.AbsListView.RecyclerListener;
 import com.android.settings.SettingsActivity;
 
+import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Locale;
 
 public class RunningProcessesView extends FrameLayout
         implements AdapterView.OnItemClickListener, RecyclerListener,
@@ -57,7 +59,7 @@ public class RunningProcessesView extends FrameLayout
 
     long SECONDARY_SERVER_MEM;
     
-    final HashMap<View, ActiveItem> mActiveItems = new HashMap<View, ActiveItem>();
+    final ArrayMap<View, ActiveItem> mActiveItems = new ArrayMap<View, ActiveItem>();
 
     ActivityManager mAm;
     
@@ -67,7 +69,7 @@ public class RunningProcessesView extends FrameLayout
     
     Runnable mDataAvail;
 
-    StringBuilder mBuilder = new StringBuilder(128);
+    final ElapsedTimeFormatter mTimeFormatter = new ElapsedTimeFormatter();
     
     RunningState.BaseItem mCurSelected;
     
@@ -93,6 +95,11 @@ public class RunningProcessesView extends FrameLayout
     MemInfoReader mMemInfoReader = new MemInfoReader();
 
     public static class ActiveItem {
+        // Values of mShownUptime other than an elapsed number of seconds.
+        static final long UPTIME_UNSET = Long.MIN_VALUE;
+        static final long UPTIME_EMPTY = -1;
+        static final long UPTIME_RESTARTING = -2;
+
         View mRootView;
         RunningState.BaseItem mItem;
         ActivityManager.RunningServiceInfo mService;
@@ -100,7 +107,14 @@ public class RunningProcessesView extends FrameLayout
         long mFirstRunTime;
         boolean mSetBackground;
 
-        void updateTime(Context context, StringBuilder builder) {
+        // What the uptime view currently shows, so that a tick only touches it once the
+        // displayed second changes.  The chars are handed to the view, so each view that
+        // shows an uptime gets its own buffer.
+        TextView mUptimeView;
+        char[] mUptimeChars;
+        long mShownUptime = UPTIME_UNSET;
+
+        void updateTime(Context context, ElapsedTimeFormatter formatter) {
             TextView uptimeView = null;
             
             if (mItem instanceof RunningState.ServiceItem) {
@@ -109,17 +123,14 @@ public class RunningProcessesView extends FrameLayout
                 uptimeView = mHolder.size;
                 
             } else {
-                String size = mItem.mSizeStr != null ? mItem.mSizeStr : "";
-                if (!size.equals(mItem.mCurSizeStr)) {
-                    mItem.mCurSizeStr = size;
-                    mHolder.size.setText(size);
-                }
+                setTextIfChanged(mHolder.size, mItem.mSizeStr);
                 
                 if (mItem.mBackground) {
                     // This is a background process; no uptime.
                     if (!mSetBackground) {
                         mSetBackground = true;
                         mHolder.uptime.setText("");
+                        mShownUptime = UPTIME_UNSET;
                     }
                 } else if (mItem instanceof RunningState.MergedItem) {
                     // This item represents both services and processes,
@@ -130,21 +141,37 @@ public class RunningProcessesView extends FrameLayout
 
             if (uptimeView != null) {
                 mSetBackground = false;
+                if (mUptimeView != uptimeView) {
+                    mUptimeView = uptimeView;
+                    mUptimeChars = new char[ElapsedTimeFormatter.MAX_LENGTH];
+                    mShownUptime = UPTIME_UNSET;
+                }
                 if (mFirstRunTime >= 0) {
-                    //Log.i("foo", "Time for " + mItem.mDisplayLabel
-                    //        + ": " + (SystemClock.uptimeMillis()-mFirstRunTime));
-                    uptimeView.setText(DateUtils.formatElapsedTime(builder,
-                            (SystemClock.elapsedRealtime()-mFirstRunTime)/1000));
+                    final long seconds = Math.max(0,
+                            (SystemClock.elapsedRealtime()-mFirstRunTime)/1000);
+                    if (mShownUptime != seconds) {
+                        mShownUptime = seconds;
+                        final int length = formatter.format(seconds, mUptimeChars);
+                        if (length >= 0) {
+                            uptimeView.setText(mUptimeChars, 0, length);
+                        } else {
+                            uptimeView.setText(DateUtils.formatElapsedTime(seconds));
+                        }
+                    }
                 } else {
                     boolean isService = false;
                     if (mItem instanceof RunningState.MergedItem) {
                         isService = ((RunningState.MergedItem)mItem).mServices.size() > 0;
                     }
-                    if (isService) {
-                        uptimeView.setText(context.getResources().getText(
-                                R.string.service_restarting));
-                    } else {
-                        uptimeView.setText("");
+                    final long shown = isService ? UPTIME_RESTARTING : UPTIME_EMPTY;
+                    if (mShownUptime != shown) {
+                        mShownUptime = shown;
+                        if (isService) {
+                            uptimeView.setText(context.getResources().getText(
+                                    R.string.service_restarting));
+                        } else {
+                            uptimeView.setText("");
+                        }
                     }
                 }
             }
@@ -158,6 +185,9 @@ public class RunningProcessesView extends FrameLayout
         public TextView description;
         public TextView size;
         public TextView uptime;
+
+        // Reused for every item bound to this view.
+        ActiveItem mActiveItem;
         
         public ViewHolder(View v) {
             rootView = v;
@@ -169,8 +199,12 @@ public class RunningProcessesView extends FrameLayout
             v.setTag(this);
         }
         
+        /**
+         * Shows {@code item} in this view.  Rebinding the item that is already shown only
+         * touches the views whose content changed.
+         */
         public ActiveItem bind(RunningState state, RunningState.BaseItem item,
-                StringBuilder builder) {
+                ElapsedTimeFormatter formatter) {
             synchronized (state.mLock) {
                 PackageManager pm = rootView.getContext().getPackageManager();
                 if (item.mPackageInfo == null && item instanceof RunningState.MergedItem) {
@@ -183,25 +217,105 @@ public class RunningProcessesView extends FrameLayout
                         item.mDisplayLabel = ((RunningState.MergedItem)item).mProcess.mDisplayLabel;
                     }
                 }
-                name.setText(item.mDisplayLabel);
-                ActiveItem ai = new ActiveItem();
-                ai.mRootView = rootView;
-                ai.mItem = item;
-                ai.mHolder = this;
+                ActiveItem ai = mActiveItem;
+                if (ai == null) {
+                    ai = mActiveItem = new ActiveItem();
+                    ai.mRootView = rootView;
+                    ai.mHolder = this;
+                }
+                final boolean newItem = ai.mItem != item;
+                if (newItem) {
+                    ai.mItem = item;
+                    ai.mSetBackground = false;
+                    ai.mShownUptime = ActiveItem.UPTIME_UNSET;
+                }
                 ai.mFirstRunTime = item.mActiveSince;
+                setTextIfChanged(name, item.mDisplayLabel);
                 if (item.mBackground) {
-                    description.setText(rootView.getContext().getText(R.string.cached));
+                    setTextIfChanged(description, rootView.getContext().getText(R.string.cached));
                 } else {
-                    description.setText(item.mDescription);
+                    setTextIfChanged(description, item.mDescription);
+                }
+                if (newItem || icon.getDrawable() == null) {
+                    icon.setImageDrawable(item.loadIcon(rootView.getContext(), state));
                 }
-                item.mCurSizeStr = null;
-                icon.setImageDrawable(item.loadIcon(rootView.getContext(), state));
                 icon.setVisibility(View.VISIBLE);
-                ai.updateTime(rootView.getContext(), builder);
+                ai.updateTime(rootView.getContext(), formatter);
                 return ai;
             }
         }
     }
+
+    static void setTextIfChanged(TextView view, CharSequence text) {
+        if (text == null) {
+            text = "";
+        }
+        if (!TextUtils.equals(view.getText(), text)) {
+            view.setText(text);
+        }
+    }
+
+    /**
+     * Formats elapsed times the way {@link DateUtils#formatElapsedTime} does, but into a
+     * buffer owned by the caller, so that ticking uptimes do not create a string per row
+     * every second.
+     */
+    public static class ElapsedTimeFormatter {
+        static final int MAX_LENGTH = 32;
+
+        private final StringBuilder mBuilder = new StringBuilder(MAX_LENGTH);
+        private Locale mLocale;
+        private char mZeroDigit;
+        private boolean mSupported;
+
+        /**
+         * Writes {@code elapsedSeconds} into {@code out}, which must hold at least
+         * {@link #MAX_LENGTH} chars, and returns the number of chars written.  Returns -1 if
+         * the current locale uses a format other than [h:]mm:ss, in which case the caller
+         * should use {@link DateUtils#formatElapsedTime} instead.
+         */
+        public int format(long elapsedSeconds, char[] out) {
+            final Locale locale = Locale.getDefault();
+            if (!locale.equals(mLocale)) {
+                mLocale = locale;
+                mZeroDigit = DecimalFormatSymbols.getInstance(locale).getZeroDigit();
+                // Compare against the framework once, with and without hours.
+                mSupported = matchesFramework(10 * 3600 + 11 * 60 + 12, out)
+                        && matchesFramework(11 * 60 + 12, out);
+            }
+            return mSupported ? write(elapsedSeconds, out) : -1;
+        }
+
+        private boolean matchesFramework(long elapsedSeconds, char[] out) {
+            final int length = write(elapsedSeconds, out);
+            return new String(out, 0, length).equals(
+                    DateUtils.formatElapsedTime(mBuilder, elapsedSeconds));
+        }
+
+        private int write(long elapsedSeconds, char[] out) {
+            final long hours = elapsedSeconds / 3600;
+            final int minutes = (int) (elapsedSeconds % 3600 / 60);
+            final int seconds = (int) (elapsedSeconds % 60);
+            int pos = 0;
+            if (hours > 0) {
+                int digits = 1;
+                for (long n = hours / 10; n > 0; n /= 10) {
+                    digits++;
+                }
+                pos = digits;
+                for (long n = hours; digits > 0; n /= 10) {
+                    out[--digits] = (char) (mZeroDigit + n % 10);
+                }
+                out[pos++] = ':';
+            }
+            out[pos++] = (char) (mZeroDigit + minutes / 10);
+            out[pos++] = (char) (mZeroDigit + minutes % 10);
+            out[pos++] = ':';
+            out[pos++] = (char) (mZeroDigit + seconds / 10);
+            out[pos++] = (char) (mZeroDigit + seconds % 10);
+            return pos;
+        }
+    }
     
     static class TimeTicker extends TextView {
         public TimeTicker(Context context, AttributeSet attrs) {
@@ -214,7 +328,9 @@ public class RunningProcessesView extends FrameLayout
         final LayoutInflater mInflater;
         boolean mShowBackground;
         ArrayList<RunningState.MergedItem> mOrigItems;
-        final ArrayList<RunningState.MergedItem> mItems
+        ArrayList<RunningState.MergedItem> mItems
+                = new ArrayList<RunningState.MergedItem>();
+        ArrayList<RunningState.MergedItem> mNewItems
                 = new ArrayList<RunningState.MergedItem>();
         
         ServiceListAdapter(RunningState state) {
@@ -228,7 +344,6 @@ public class RunningProcessesView extends FrameLayout
             if (mShowBackground != showBackground) {
                 mShowBackground = showBackground;
                 mState.setWatchingBackgroundItems(showBackground);
-                refreshItems();
                 refreshUi(true);
             }
         }
@@ -237,22 +352,35 @@ public class RunningProcessesView extends FrameLayout
             return mShowBackground;
         }
 
-        void refreshItems() {
+        /**
+         * Picks up the current items of the state.  Returns true if rows were added, removed
+         * or moved, or the state got its first data; otherwise the items keep their positions
+         * and only their content may need to be rebound.
+         */
+        boolean refreshItems() {
             ArrayList<RunningState.MergedItem> newItems =
                 mShowBackground ? mState.getCurrentBackgroundItems()
                         : mState.getCurrentMergedItems();
-            if (mOrigItems != newItems) {
-                mOrigItems = newItems;
-                if (newItems == null) {
-                    mItems.clear();
-                } else {
-                    mItems.clear();
-                    mItems.addAll(newItems);
-                    if (mShowBackground) {
-                        Collections.sort(mItems, mState.mBackgroundComparator);
-                    }
+            if (mOrigItems == newItems) {
+                return false;
+            }
+            final boolean hadData = mOrigItems != null;
+            mOrigItems = newItems;
+            mNewItems.clear();
+            if (newItems != null) {
+                for (int i = 0; i < newItems.size(); i++) {
+                    mNewItems.add(newItems.get(i));
+                }
+                if (mShowBackground) {
+                    Collections.sort(mNewItems, mState.mBackgroundComparator);
                 }
             }
+            final boolean changed = !hadData || !mNewItems.equals(mItems);
+            final ArrayList<RunningState.MergedItem> oldItems = mItems;
+            mItems = mNewItems;
+            mNewItems = oldItems;
+            mNewItems.clear();
+            return changed;
         }
         
         public boolean hasStableIds() {
@@ -311,7 +439,7 @@ public class RunningProcessesView extends FrameLayout
                 }
                 ViewHolder vh = (ViewHolder) view.getTag();
                 RunningState.MergedItem item = mItems.get(position);
-                ActiveItem ai = vh.bind(mState, item, mBuilder);
+                ActiveItem ai = vh.bind(mState, item, mTimeFormatter);
                 mActiveItems.put(view, ai);
             }
         }
@@ -320,8 +448,11 @@ public class RunningProcessesView extends FrameLayout
     void refreshUi(boolean dataChanged) {
         if (dataChanged) {
             ServiceListAdapter adapter = mAdapter;
-            adapter.refreshItems();
-            adapter.notifyDataSetChanged();
+            if (adapter.refreshItems()) {
+                adapter.notifyDataSetChanged();
+            } else {
+                rebindVisibleRows();
+            }
         }
         
         if (mDataAvail != null) {
@@ -397,6 +528,21 @@ public class RunningProcessesView extends FrameLayout
         }
     }
     
+    /**
+     * Rebinds the rows on screen in place, for when the items kept their positions.  Rows
+     * whose item did not change are left as they are.
+     */
+    void rebindVisibleRows() {
+        final int firstPosition = mListView.getFirstVisiblePosition()
+                - mListView.getHeaderViewsCount();
+        for (int i = 0; i < mListView.getChildCount(); i++) {
+            final View child = mListView.getChildAt(i);
+            if (firstPosition + i >= 0 && child.getTag() instanceof ViewHolder) {
+                mAdapter.bindView(child, firstPosition + i);
+            }
+        }
+    }
+
     public void onItemClick(AdapterView<?> parent, View v, int position, long id) {
         ListView l = (ListView)parent;
         RunningState.MergedItem mi = (RunningState.MergedItem)l.getAdapter().getItem(position);
@@ -485,15 +631,14 @@ public class RunningProcessesView extends FrameLayout
     }
 
     void updateTimes() {
-        Iterator<ActiveItem> it = mActiveItems.values().iterator();
-        while (it.hasNext()) {
-            ActiveItem ai = it.next();
+        for (int i = mActiveItems.size() - 1; i >= 0; i--) {
+            ActiveItem ai = mActiveItems.valueAt(i);
             if (ai.mRootView.getWindowToken() == null) {
                 // Clean out any dead views, just in case.
-                it.remove();
+                mActiveItems.removeAt(i);
                 continue;
             }
-            ai.updateTime(getContext(), mBuilder);
+            ai.updateTime(getContext(), mTimeFormatter);
         }
     }
 
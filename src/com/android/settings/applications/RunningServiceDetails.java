@@ -191,7 +191,8 @@ public class RunningServiceDetails extends Fragment
         }
     }
     
-    StringBuilder mBuilder = new StringBuilder(128);
+    final RunningProcessesView.ElapsedTimeFormatter mTimeFormatter =
+            new RunningProcessesView.ElapsedTimeFormatter();
     
     boolean findMergedItem() {
         RunningState.MergedItem item = null;
@@ -262,7 +263,7 @@ public class RunningServiceDetails extends Fragment
         detail.mRootView = root;
         detail.mServiceItem = si;
         detail.mViewHolder = new RunningProcessesView.ViewHolder(root);
-        detail.mActiveItem = detail.mViewHolder.bind(mState, bi, mBuilder);
+        detail.mActiveItem = detail.mViewHolder.bind(mState, bi, mTimeFormatter);
 
         if (!inclDetails) {
             root.findViewById(R.id.service).setVisibility(View.GONE);
@@ -337,7 +338,7 @@ public class RunningServiceDetails extends Fragment
         mAllDetails.addView(root);
         detail.mRootView = root;
         detail.mViewHolder = new RunningProcessesView.ViewHolder(root);
-        detail.mActiveItem = detail.mViewHolder.bind(mState, pi, mBuilder);
+        detail.mActiveItem = detail.mViewHolder.bind(mState, pi, mTimeFormatter);
         
         TextView description = (TextView)root.findViewById(R.id.comp_description);
         if (pi.mUserId != UserHandle.myUserId()) {
@@ -465,7 +466,7 @@ public class RunningServiceDetails extends Fragment
         if (dataChanged) {
             if (mMergedItem != null) {
                 mSnippetActiveItem = mSnippetViewHolder.bind(mState,
-                        mMergedItem, mBuilder);
+                        mMergedItem, mTimeFormatter);
             } else if (mSnippetActiveItem != null) {
                 // Clear whatever is currently being shown.
                 mSnippetActiveItem.mHolder.size.setText("");
@@ -619,10 +620,10 @@ public class RunningServiceDetails extends Fragment
     
     void updateTimes() {
         if (mSnippetActiveItem != null) {
-            mSnippetActiveItem.updateTime(getActivity(), mBuilder);
+            mSnippetActiveItem.updateTime(getActivity(), mTimeFormatter);
         }
         for (int i=0; i<mActiveDetails.size(); i++) {
-            mActiveDetails.get(i).mActiveItem.updateTime(getActivity(), mBuilder);
+            mActiveDetails.get(i).mActiveItem.updateTime(getActivity(), mTimeFormatter);
         }
     }
 
@@ -33,7 +33,6 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.Drawable.ConstantState;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
@@ -43,7 +42,10 @@ import android.text.format.Formatter;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.settings.AppIconCache;
 import com.android.settings.R;
+import com.android.settings.SettingsExecutor;
+import com.android.settings.SettingsTrace;
 import com.android.settings.Utils;
 import com.android.settings.drawable.CircleFramedDrawable;
 
@@ -223,7 +225,6 @@ public class RunningState {
 
     // ----- BACKGROUND MONITORING THREAD -----
 
-    final HandlerThread mBackgroundThread;
     final class BackgroundHandler extends Handler {
         public BackgroundHandler(Looper looper) {
             super(looper);
@@ -242,7 +243,9 @@ public class RunningState {
                         }
                     }
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
+                    final long start = SettingsTrace.begin();
                     cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    SettingsTrace.end("RunningState.update", start);
                     mHandler.sendMessage(cmd);
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
@@ -316,7 +319,6 @@ public class RunningState {
         long mActiveSince;
         long mSize;
         String mSizeStr;
-        String mCurSizeStr;
         boolean mNeedDivider;
         boolean mBackground;
 
@@ -326,7 +328,9 @@ public class RunningState {
         }
 
         public Drawable loadIcon(Context context, RunningState state) {
-            if (mPackageInfo != null) {
+            if (mPackageInfo instanceof ApplicationInfo) {
+                return AppIconCache.getInstance(context).getIcon((ApplicationInfo) mPackageInfo);
+            } else if (mPackageInfo != null) {
                 return mPackageInfo.loadIcon(state.mPm);
             }
             return null;
@@ -747,9 +751,9 @@ public class RunningState {
         mMyUserId = UserHandle.myUserId();
         mHideManagedProfiles = mMyUserId != UserHandle.USER_OWNER;
         mResumed = false;
-        mBackgroundThread = new HandlerThread("RunningState:Background");
-        mBackgroundThread.start();
-        mBackgroundHandler = new BackgroundHandler(mBackgroundThread.getLooper());
+        // The state lives as long as the process, so it never releases the looper.
+        mBackgroundHandler = new BackgroundHandler(
+                SettingsExecutor.acquireLooper(SettingsExecutor.LANE_BINDER));
     }
 
     void resume(OnRefreshUiListener listener) {
@@ -34,6 +34,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
+import com.android.settings.SettingsTrace;
 
 import java.util.List;
 
@@ -103,7 +104,7 @@ public class DashboardSummary extends Fragment {
             return;
         }
 
-        long start = System.currentTimeMillis();
+        final long start = SettingsTrace.begin();
         final Resources res = getResources();
 
         mDashboard.removeAllViews();
@@ -141,8 +142,7 @@ public class DashboardSummary extends Fragment {
             // Add the category
             mDashboard.addView(categoryView);
         }
-        long delta = System.currentTimeMillis() - start;
-        Log.d(LOG_TAG, "rebuildUI took: " + delta + " ms");
+        SettingsTrace.end("DashboardSummary.rebuildUI", start);
     }
 
     private void updateTileView(Context context, Resources res, DashboardTile tile,
@@ -19,6 +19,7 @@ package com.android.settings.deviceinfo;
 import android.app.Activity;
 import android.app.ListActivity;
 import android.content.Context;
+import android.database.DataSetObserver;
 import android.os.Bundle;
 import android.os.storage.StorageVolume;
 import android.text.format.Formatter;
@@ -70,7 +71,13 @@ public class MiscFilesHandler extends ListActivity {
         lv.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
         lv.setMultiChoiceModeListener(new ModeCallback(this));
         setListAdapter(mAdapter);
-    } 
+    }
+
+    @Override
+    protected void onDestroy() {
+        mAdapter.release();
+        super.onDestroy();
+    }
 
     private class ModeCallback implements ListView.MultiChoiceModeListener {
         private int mDataCount;
@@ -78,10 +85,13 @@ public class MiscFilesHandler extends ListActivity {
 
         public ModeCallback(Context context) {
             mContext = context;
-            mDataCount = mAdapter.getCount();
         }
 
         public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            // Checked items are tracked by position, so hold back sizes that arrive from the
+            // scan until the selection is done.
+            mAdapter.setFrozen(true);
+            mDataCount = mAdapter.getCount();
             final MenuInflater inflater = getMenuInflater();
             inflater.inflate(R.menu.misc_files_menu, menu);
             return true;
@@ -158,7 +168,7 @@ public class MiscFilesHandler extends ListActivity {
         }
 
         public void onDestroyActionMode(ActionMode mode) {
-            // This block intentionally left blank
+            mAdapter.setFrozen(false);
         }
 
         public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
@@ -188,6 +198,21 @@ public class MiscFilesHandler extends ListActivity {
         private ArrayList<StorageMeasurement.FileInfo> mData = null;
         private long mDataSize = 0;
         private Context mContext;
+        private StorageMeasurement.MiscFiles mMiscFiles;
+        private boolean mFrozen;
+        private boolean mPendingUpdate;
+
+        private final DataSetObserver mMiscFilesObserver = new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                if (mFrozen) {
+                    mPendingUpdate = true;
+                } else {
+                    refresh();
+                    notifyDataSetChanged();
+                }
+            }
+        };
 
         public MemoryMearurementAdapter(Activity activity) {
             mContext = activity;
@@ -196,11 +221,28 @@ public class MiscFilesHandler extends ListActivity {
             StorageMeasurement mMeasurement = StorageMeasurement.getInstance(
                     activity, storageVolume);
             if (mMeasurement == null) return;
-            mData = (ArrayList<StorageMeasurement.FileInfo>) mMeasurement.mFileInfoForMisc;
-            if (mData != null) {
-                for (StorageMeasurement.FileInfo info : mData) {
-                    mDataSize += info.mSize;
-                }
+            // The scan may still be running; entries are added as their sizes arrive.
+            mMiscFiles = mMeasurement.mMiscFiles;
+            mMiscFiles.registerObserver(mMiscFilesObserver);
+            refresh();
+        }
+
+        private void refresh() {
+            mData = mMiscFiles.snapshot();
+            mDataSize = mMiscFiles.getTotalSize();
+        }
+
+        void setFrozen(boolean frozen) {
+            mFrozen = frozen;
+            if (!frozen && mPendingUpdate) {
+                mPendingUpdate = false;
+                mMiscFilesObserver.onChanged();
+            }
+        }
+
+        void release() {
+            if (mMiscFiles != null) {
+                mMiscFiles.unregisterObserver(mMiscFilesObserver);
             }
         }
 
@@ -232,6 +274,7 @@ public class MiscFilesHandler extends ListActivity {
             for (Object o : objs) {
                 mData.remove(o);
                 mDataSize -= ((StorageMeasurement.FileInfo) o).mSize;
+                mMiscFiles.remove((StorageMeasurement.FileInfo) o);
             }
         }
 
@@ -44,6 +44,8 @@ import android.telephony.ServiceState;
 import android.telephony.TelephonyManager;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ListAdapter;
@@ -58,6 +60,8 @@ import com.android.settings.R;
 import com.android.settings.SelectSubscription;
 import com.android.settings.Utils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 
 /**
@@ -138,8 +142,6 @@ public class Status extends PreferenceActivity {
     private static final int EVENT_SIGNAL_STRENGTH_CHANGED = 200;
     private static final int EVENT_SERVICE_STATE_CHANGED = 300;
 
-    private static final int EVENT_UPDATE_STATS = 500;
-
     private static final int EVENT_UPDATE_CONNECTIVITY = 600;
 
     private ConnectivityManager mCM;
@@ -165,6 +167,21 @@ public class Status extends PreferenceActivity {
 
     private Handler mHandler;
 
+    /**
+     * Number of times each field's summary actually changed while this screen was up, keyed
+     * by preference key. Printed by {@code adb shell dumpsys activity top} to check that an
+     * idle Status screen only touches the uptime.
+     */
+    private final ArrayMap<String, Integer> mUpdateCounts = new ArrayMap<String, Integer>();
+
+    private final Choreographer.FrameCallback mUptimeTicker = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            updateTimes();
+            scheduleUptimeTick();
+        }
+    };
+
     private static class MyHandler extends Handler {
         private WeakReference<Status> mStatus;
 
@@ -189,11 +206,6 @@ public class Status extends PreferenceActivity {
                     status.updateServiceState(serviceState);
                     break;
 
-                case EVENT_UPDATE_STATS:
-                    status.updateTimes();
-                    sendEmptyMessageDelayed(EVENT_UPDATE_STATS, 1000);
-                    break;
-
                 case EVENT_UPDATE_CONNECTIVITY:
                     status.updateConnectivity();
                     break;
@@ -207,8 +219,9 @@ public class Status extends PreferenceActivity {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (Intent.ACTION_BATTERY_CHANGED.equals(action)) {
-                mBatteryLevel.setSummary(Utils.getBatteryPercentage(intent));
-                mBatteryStatus.setSummary(Utils.getBatteryStatus(getResources(), intent));
+                // Sent for every voltage and temperature change; only rebind what moved.
+                setFieldSummary(mBatteryLevel, Utils.getBatteryPercentage(intent));
+                setFieldSummary(mBatteryStatus, Utils.getBatteryStatus(getResources(), intent));
             }
         }
     };
@@ -244,7 +257,9 @@ public class Status extends PreferenceActivity {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
-            if (ArrayUtils.contains(CONNECTIVITY_INTENTS, action)) {
+            if (ArrayUtils.contains(CONNECTIVITY_INTENTS, action)
+                    && !mHandler.hasMessages(EVENT_UPDATE_CONNECTIVITY)) {
+                // A single network change fans out into several of these broadcasts.
                 mHandler.sendEmptyMessage(EVENT_UPDATE_CONNECTIVITY);
             }
         }
@@ -439,7 +454,8 @@ public class Status extends PreferenceActivity {
         registerReceiver(mConnectivityReceiver, mConnectivityIntentFilter,
                          android.Manifest.permission.CHANGE_NETWORK_STATE, null);
         registerReceiver(mBatteryInfoReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-        mHandler.sendEmptyMessage(EVENT_UPDATE_STATS);
+        updateTimes();
+        scheduleUptimeTick();
     }
 
     @Override
@@ -455,7 +471,18 @@ public class Status extends PreferenceActivity {
         }
         unregisterReceiver(mBatteryInfoReceiver);
         unregisterReceiver(mConnectivityReceiver);
-        mHandler.removeMessages(EVENT_UPDATE_STATS);
+        mHandler.removeMessages(EVENT_UPDATE_CONNECTIVITY);
+        Choreographer.getInstance().removeFrameCallback(mUptimeTicker);
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix); writer.println("Status field updates:");
+        for (int i = 0, N = mUpdateCounts.size(); i < N; i++) {
+            writer.print(prefix); writer.print("  "); writer.print(mUpdateCounts.keyAt(i));
+            writer.print(": "); writer.println(mUpdateCounts.valueAt(i));
+        }
     }
 
     /**
@@ -484,13 +511,25 @@ public class Status extends PreferenceActivity {
     }
 
     private void setSummaryText(String preference, String text) {
-            if (TextUtils.isEmpty(text)) {
-               text = mUnknown;
-             }
-             // some preferences may be missing
-             if (findPreference(preference) != null) {
-                 findPreference(preference).setSummary(text);
-             }
+        if (TextUtils.isEmpty(text)) {
+            text = mUnknown;
+        }
+        // some preferences may be missing
+        setFieldSummary(findPreference(preference), text);
+    }
+
+    /**
+     * Sets the summary of {@code pref} if it changed and counts the update. All fields on
+     * this screen are written through here.
+     */
+    private void setFieldSummary(Preference pref, CharSequence summary) {
+        if (pref == null || TextUtils.equals(pref.getSummary(), summary)) {
+            return;
+        }
+        pref.setSummary(summary);
+        final String key = pref.getKey();
+        final Integer count = mUpdateCounts.get(key);
+        mUpdateCounts.put(key, count != null ? count + 1 : 1);
     }
 
     private String getServiceStateString(int state) {
@@ -573,7 +612,7 @@ public class Status extends PreferenceActivity {
 
             if ((ServiceState.STATE_OUT_OF_SERVICE == state) ||
                     (ServiceState.STATE_POWER_OFF == state)) {
-                mSignalStrength.setSummary("0");
+                setFieldSummary(mSignalStrength, "0");
                 return;
             }
 
@@ -585,7 +624,7 @@ public class Status extends PreferenceActivity {
 
             if (-1 == signalAsu) signalAsu = 0;
 
-            mSignalStrength.setSummary(String.valueOf(signalDbm) + " "
+            setFieldSummary(mSignalStrength, String.valueOf(signalDbm) + " "
                         + r.getString(R.string.radioInfo_display_dbm) + "   "
                         + String.valueOf(signalAsu) + " "
                         + r.getString(R.string.radioInfo_display_asu));
@@ -595,23 +634,20 @@ public class Status extends PreferenceActivity {
     private void setWimaxStatus() {
         if (mWimaxMacAddress != null) {
             String macAddress = SystemProperties.get("net.wimax.mac.address", mUnavailable);
-            mWimaxMacAddress.setSummary(macAddress);
+            setFieldSummary(mWimaxMacAddress, macAddress);
         }
     }
 
     private void setWifiStatus() {
         WifiInfo wifiInfo = mWifiManager.getConnectionInfo();
         String macAddress = wifiInfo == null ? null : wifiInfo.getMacAddress();
-        mWifiMacAddress.setSummary(!TextUtils.isEmpty(macAddress) ? macAddress : mUnavailable);
+        setFieldSummary(mWifiMacAddress,
+                !TextUtils.isEmpty(macAddress) ? macAddress : mUnavailable);
     }
 
     private void setIpAddressStatus() {
         String ipAddress = Utils.getDefaultIpAddresses(this.mCM);
-        if (ipAddress != null) {
-            mIpAddress.setSummary(ipAddress);
-        } else {
-            mIpAddress.setSummary(mUnavailable);
-        }
+        setFieldSummary(mIpAddress, ipAddress != null ? ipAddress : mUnavailable);
     }
 
     private void setBtStatus() {
@@ -620,9 +656,9 @@ public class Status extends PreferenceActivity {
             String address = bluetooth.isEnabled() ? bluetooth.getAddress() : null;
             if (!TextUtils.isEmpty(address)) {
                // Convert the address to lowercase for consistency with the wifi MAC address.
-                mBtAddress.setSummary(address.toLowerCase());
+                setFieldSummary(mBtAddress, address.toLowerCase());
             } else {
-                mBtAddress.setSummary(mUnavailable);
+                setFieldSummary(mBtAddress, mUnavailable);
             }
         }
     }
@@ -635,14 +671,22 @@ public class Status extends PreferenceActivity {
     }
 
     void updateTimes() {
-        long at = SystemClock.uptimeMillis() / 1000;
         long ut = SystemClock.elapsedRealtime() / 1000;
 
         if (ut == 0) {
             ut = 1;
         }
 
-        mUptime.setSummary(convert(ut));
+        setFieldSummary(mUptime, convert(ut));
+    }
+
+    /**
+     * Schedules the next uptime update for the first frame after the next whole second, so
+     * the text changes exactly once per wake-up and nothing runs while the screen is paused.
+     */
+    private void scheduleUptimeTick() {
+        final long delay = 1000 - SystemClock.elapsedRealtime() % 1000;
+        Choreographer.getInstance().postFrameCallbackDelayed(mUptimeTicker, delay);
     }
 
     private String pad(int n) {
@@ -26,6 +26,8 @@ import android.content.pm.IPackageStatsObserver;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageStats;
 import android.content.pm.UserInfo;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
 import android.os.Environment;
 import android.os.Environment.UserEnvironment;
 import android.os.Handler;
@@ -40,6 +42,8 @@ import android.util.Log;
 import android.util.SparseLongArray;
 
 import com.android.internal.app.IMediaContainerService;
+import com.android.settings.SettingsExecutor;
+import com.android.settings.SettingsTrace;
 import com.google.android.collect.Maps;
 import com.google.android.collect.Sets;
 
@@ -50,6 +54,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -77,6 +83,9 @@ public class StorageMeasurement {
             Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS,
             Environment.DIRECTORY_DOWNLOADS, Environment.DIRECTORY_ANDROID);
 
+    /** Maximum number of misc directories measured at the same time. */
+    private static final int MAX_MISC_SCAN_THREADS = 4;
+
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
@@ -161,14 +170,16 @@ public class StorageMeasurement {
     private long mTotalSize;
     private long mAvailSize;
 
-    List<FileInfo> mFileInfoForMisc;
+    final MiscFiles mMiscFiles = new MiscFiles();
 
     private StorageMeasurement(Context context, StorageVolume volume) {
         mVolume = volume;
         mIsInternal = volume == null;
         mIsPrimary = volume != null ? volume.isPrimary() : false;
 
-        // Start the thread that will measure the disk usage.
+        // Each volume is measured on its own thread, so volumes are measured in parallel and a
+        // long scan doesn't hold up other IO lane users. Measurements are cached for the life
+        // of the process, so the thread is never quit.
         final HandlerThread handlerThread = new HandlerThread("MemoryMeasurement");
         handlerThread.start();
         mHandler = new MeasurementHandler(context, handlerThread.getLooper());
@@ -346,8 +357,12 @@ public class StorageMeasurement {
                 }
                 case MSG_CONNECTED: {
                     IMediaContainerService imcs = (IMediaContainerService) msg.obj;
+                    final long approximateStart = SettingsTrace.begin();
                     measureApproximateStorage(imcs);
+                    SettingsTrace.end("StorageMeasurement.approximate", approximateStart);
+                    final long exactStart = SettingsTrace.begin();
                     measureExactStorage(imcs);
+                    SettingsTrace.end("StorageMeasurement.exact", exactStart);
                     break;
                 }
                 case MSG_DISCONNECT: {
@@ -470,40 +485,166 @@ public class StorageMeasurement {
         }
     }
 
-    private long measureMisc(IMediaContainerService imcs, File dir) {
-        mFileInfoForMisc = new ArrayList<FileInfo>();
+    private long measureMisc(final IMediaContainerService imcs, File dir) {
+        mMiscFiles.reset();
 
         final File[] files = dir.listFiles();
-        if (files == null) return 0;
+        if (files == null) {
+            mMiscFiles.setComplete();
+            return 0;
+        }
 
-        // Get sizes of all top level nodes except the ones already computed
+        // Get sizes of all top level nodes except the ones already computed. Plain files are
+        // sized here; every directory costs a binder call, so those are measured in parallel
+        // and each result is published to mMiscFiles as soon as it arrives.
         long counter = 0;
-        long miscSize = 0;
+        final ArrayList<File> dirs = new ArrayList<File>();
 
         for (File file : files) {
-            final String path = file.getAbsolutePath();
             final String name = file.getName();
             if (sMeasureMediaTypes.contains(name)) {
                 continue;
             }
 
             if (file.isFile()) {
-                final long fileSize = file.length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                miscSize += fileSize;
+                mMiscFiles.add(new FileInfo(file.getAbsolutePath(), file.length(), counter++));
             } else if (file.isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, file);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                miscSize += dirSize;
+                dirs.add(file);
             } else {
                 // Non directory, non file: not listed
             }
         }
 
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
+        final long firstDirId = counter;
+        final int threads = Math.min(MAX_MISC_SCAN_THREADS, dirs.size());
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            SettingsExecutor.execute(SettingsExecutor.LANE_IO, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int index;
+                        while ((index = next.getAndIncrement()) < dirs.size()) {
+                            final File file = dirs.get(index);
+                            mMiscFiles.add(new FileInfo(file.getAbsolutePath(),
+                                    getDirectorySize(imcs, file), firstDirId + index));
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while measuring misc files", e);
+            Thread.currentThread().interrupt();
+        }
+        mMiscFiles.setComplete();
+
+        return mMiscFiles.getTotalSize();
+    }
+
+    /**
+     * Top level files and directories counted as misc, kept in descending order of size
+     * while the scan is still running. Observers are notified on the main thread, at most
+     * once every {@link #NOTIFY_DELAY_MS}, so {@link MiscFilesHandler} can list the
+     * largest entries without waiting for the whole scan.
+     */
+    static class MiscFiles {
+        private static final long NOTIFY_DELAY_MS = 100;
+
+        private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+        private final DataSetObservable mObservable = new DataSetObservable();
 
-        return miscSize;
+        @GuardedBy("this")
+        private final ArrayList<FileInfo> mFiles = new ArrayList<FileInfo>();
+        @GuardedBy("this")
+        private long mTotalSize;
+        @GuardedBy("this")
+        private boolean mComplete;
+        @GuardedBy("this")
+        private boolean mNotifyPending;
+
+        private final Runnable mNotify = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MiscFiles.this) {
+                    mNotifyPending = false;
+                }
+                mObservable.notifyChanged();
+            }
+        };
+
+        public void registerObserver(DataSetObserver observer) {
+            mObservable.registerObserver(observer);
+        }
+
+        public void unregisterObserver(DataSetObserver observer) {
+            mObservable.unregisterObserver(observer);
+        }
+
+        synchronized void reset() {
+            mFiles.clear();
+            mTotalSize = 0;
+            mComplete = false;
+            scheduleNotifyLocked();
+        }
+
+        synchronized void add(FileInfo info) {
+            int index = Collections.binarySearch(mFiles, info);
+            if (index < 0) {
+                index = -index - 1;
+            } else {
+                // Keep entries of equal size in the order they arrived.
+                while (index < mFiles.size() && mFiles.get(index).compareTo(info) == 0) {
+                    index++;
+                }
+            }
+            mFiles.add(index, info);
+            mTotalSize += info.mSize;
+            scheduleNotifyLocked();
+        }
+
+        synchronized void setComplete() {
+            mComplete = true;
+            scheduleNotifyLocked();
+        }
+
+        /**
+         * Forgets an entry whose file was deleted, so that later snapshots don't bring it back.
+         */
+        public synchronized void remove(FileInfo info) {
+            if (mFiles.remove(info)) {
+                mTotalSize -= info.mSize;
+            }
+        }
+
+        /**
+         * Returns a copy of the entries measured so far, largest first.
+         */
+        public synchronized ArrayList<FileInfo> snapshot() {
+            return new ArrayList<FileInfo>(mFiles);
+        }
+
+        public synchronized long getTotalSize() {
+            return mTotalSize;
+        }
+
+        public synchronized boolean isComplete() {
+            return mComplete;
+        }
+
+        private void scheduleNotifyLocked() {
+            if (!mNotifyPending) {
+                mNotifyPending = true;
+                sMainHandler.postDelayed(mNotify, NOTIFY_DELAY_MS);
+            }
+        }
     }
 
     static class FileInfo implements Comparable<FileInfo> {
@@ -33,6 +33,7 @@ import android.util.Log;
 
 import com.android.internal.os.BatterySipper;
 import com.android.settings.R;
+import com.android.settings.SettingsExecutor;
 import com.android.settings.Utils;
 
 import java.util.ArrayList;
@@ -51,12 +52,8 @@ public class BatteryEntry {
     static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
     static Handler sHandler;
 
-    static private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
-
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
-        }
+    static private class NameAndIconLoader implements Runnable {
+        private volatile boolean mAbort = false;
 
         public void abort() {
             mAbort = true;
@@ -81,18 +78,17 @@ public class BatteryEntry {
         }
     }
 
-    private static NameAndIconLoader mRequestThread;
+    private static NameAndIconLoader mRequestLoader;
 
     public static void startRequestQueue() {
         if (sHandler != null) {
             synchronized (mRequestQueue) {
                 if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
+                    if (mRequestLoader != null) {
+                        mRequestLoader.abort();
                     }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
+                    mRequestLoader = new NameAndIconLoader();
+                    SettingsExecutor.execute(SettingsExecutor.LANE_BINDER, mRequestLoader);
                     mRequestQueue.notify();
                 }
             }
@@ -101,9 +97,9 @@ public class BatteryEntry {
 
     public static void stopRequestQueue() {
         synchronized (mRequestQueue) {
-            if (mRequestThread != null) {
-                mRequestThread.abort();
-                mRequestThread = null;
+            if (mRequestLoader != null) {
+                mRequestLoader.abort();
+                mRequestLoader = null;
                 sHandler = null;
             }
         }
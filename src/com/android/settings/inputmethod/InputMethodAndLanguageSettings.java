@@ -30,6 +30,7 @@ import android.database.ContentObserver;
 import android.hardware.input.InputDeviceIdentifier;
 import android.hardware.input.InputManager;
 import android.hardware.input.KeyboardLayout;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.preference.ListPreference;
@@ -43,6 +44,7 @@ import android.provider.Settings;
 import android.provider.Settings.System;
 import android.speech.tts.TtsEngines;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.view.InputDevice;
 import android.view.inputmethod.InputMethodInfo;
 import android.view.inputmethod.InputMethodManager;
@@ -63,6 +65,7 @@ import com.android.settings.search.BaseSearchIndexProvider;
 import com.android.settings.search.Indexable;
 import com.android.settings.search.SearchIndexableRaw;
 
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -102,6 +105,7 @@ public class InputMethodAndLanguageSettings extends SettingsPreferenceFragment
     private Intent mIntentWaitingForResult;
     private InputMethodSettingValuesWrapper mInputMethodSettingValues;
     private DevicePolicyManager mDpm;
+    private LoadInputMethodsTask mLoadInputMethodsTask;
 
     @Override
     public void onCreate(Bundle icicle) {
@@ -282,6 +286,10 @@ public class InputMethodAndLanguageSettings extends SettingsPreferenceFragment
 
         mIm.unregisterInputDeviceListener(this);
         mSettingsObserver.pause();
+        if (mLoadInputMethodsTask != null) {
+            mLoadInputMethodsTask.cancel(false);
+            mLoadInputMethodsTask = null;
+        }
 
         if (SHOW_INPUT_METHOD_SWITCHER_SETTINGS) {
             mShowInputMethodSelectorPref.setOnPreferenceChangeListener(null);
@@ -376,39 +384,60 @@ public class InputMethodAndLanguageSettings extends SettingsPreferenceFragment
     }
 
     private void updateInputMethodPreferenceViews() {
+        if (mLoadInputMethodsTask != null) {
+            mLoadInputMethodsTask.cancel(false);
+        }
+        final List<InputMethodInfo> imis = mShowsOnlyFullImeAndKeyboardList
+                ? mInputMethodSettingValues.getInputMethodList()
+                : mImm.getEnabledInputMethodList();
+        mLoadInputMethodsTask = new LoadInputMethodsTask(getActivity(), imis);
+        mLoadInputMethodsTask.execute();
+    }
+
+    /**
+     * Applies the loaded input methods to the preference list, reusing the existing
+     * "InputMethodPreference"s and only reordering the category when the order changed.
+     */
+    private void updateInputMethodPreferenceViews(final List<InputMethodEntry> entries) {
         synchronized (mInputMethodPreferenceList) {
-            // Clear existing "InputMethodPreference"s
+            final Context context = getActivity();
+            final ArrayMap<String, InputMethodPreference> oldPrefs = new ArrayMap<>();
             for (final InputMethodPreference pref : mInputMethodPreferenceList) {
-                mKeyboardSettingsCategory.removePreference(pref);
+                oldPrefs.put(pref.getKey(), pref);
             }
-            mInputMethodPreferenceList.clear();
-            List<String> permittedList = mDpm.getPermittedInputMethodsForCurrentUser();
-            final Context context = getActivity();
-            final List<InputMethodInfo> imis = mShowsOnlyFullImeAndKeyboardList
-                    ? mInputMethodSettingValues.getInputMethodList()
-                    : mImm.getEnabledInputMethodList();
-            final int N = (imis == null ? 0 : imis.size());
+            final int N = entries.size();
+            final ArrayList<InputMethodPreference> newPrefs = new ArrayList<>(N);
+            boolean orderChanged = (N != mInputMethodPreferenceList.size());
             for (int i = 0; i < N; ++i) {
-                final InputMethodInfo imi = imis.get(i);
-                final boolean isAllowedByOrganization = permittedList == null
-                        || permittedList.contains(imi.getPackageName());
-                final InputMethodPreference pref = new InputMethodPreference(
-                        context, imi, mShowsOnlyFullImeAndKeyboardList /* hasSwitch */,
-                        isAllowedByOrganization, this);
-                mInputMethodPreferenceList.add(pref);
+                final InputMethodEntry entry = entries.get(i);
+                InputMethodPreference pref = oldPrefs.get(entry.imi.getId());
+                if (pref != null && entry.canReuse(pref)) {
+                    pref.setTitle(entry.label);
+                } else {
+                    pref = new InputMethodPreference(context, entry.imi, entry.label,
+                            entry.hasPriorityInSorting, mShowsOnlyFullImeAndKeyboardList,
+                            entry.isAllowedByOrganization, this);
+                }
+                if (!orderChanged && mInputMethodPreferenceList.get(i) != pref) {
+                    orderChanged = true;
+                }
+                newPrefs.add(pref);
             }
-            final Collator collator = Collator.getInstance();
-            Collections.sort(mInputMethodPreferenceList, new Comparator<InputMethodPreference>() {
-                @Override
-                public int compare(InputMethodPreference lhs, InputMethodPreference rhs) {
-                    return lhs.compareTo(rhs, collator);
+            if (orderChanged) {
+                for (final InputMethodPreference pref : mInputMethodPreferenceList) {
+                    mKeyboardSettingsCategory.removePreference(pref);
+                }
+                for (final InputMethodPreference pref : newPrefs) {
+                    // Let the category order them as they are added again.
+                    pref.setOrder(Preference.DEFAULT_ORDER);
+                    mKeyboardSettingsCategory.addPreference(pref);
+                    InputMethodAndSubtypeUtil.removeUnnecessaryNonPersistentPreference(pref);
                 }
-            });
+                mInputMethodPreferenceList.clear();
+                mInputMethodPreferenceList.addAll(newPrefs);
+            }
             for (int i = 0; i < N; ++i) {
-                final InputMethodPreference pref = mInputMethodPreferenceList.get(i);
-                mKeyboardSettingsCategory.addPreference(pref);
-                InputMethodAndSubtypeUtil.removeUnnecessaryNonPersistentPreference(pref);
-                pref.updatePreferenceViews();
+                newPrefs.get(i).updatePreferenceViews(entries.get(i).summary);
             }
         }
         updateCurrentImeName();
@@ -421,6 +450,138 @@ public class InputMethodAndLanguageSettings extends SettingsPreferenceFragment
                 mInputMethodSettingValues.getInputMethodList(), null);
     }
 
+    /**
+     * What is shown for one input method, loaded off the UI thread by
+     * {@link LoadInputMethodsTask}.
+     */
+    private static final class InputMethodEntry {
+        final InputMethodInfo imi;
+        final CharSequence label;
+        final CollationKey collationKey;
+        final boolean hasPriorityInSorting;
+        final boolean isAllowedByOrganization;
+        final String summary;
+
+        InputMethodEntry(InputMethodInfo imi, CharSequence label, CollationKey collationKey,
+                boolean hasPriorityInSorting, boolean isAllowedByOrganization, String summary) {
+            this.imi = imi;
+            this.label = label;
+            this.collationKey = collationKey;
+            this.hasPriorityInSorting = hasPriorityInSorting;
+            this.isAllowedByOrganization = isAllowedByOrganization;
+            this.summary = summary;
+        }
+
+        boolean canReuse(InputMethodPreference pref) {
+            final InputMethodInfo oldImi = pref.getInputMethodInfo();
+            return pref.isAllowedByOrganization() == isAllowedByOrganization
+                    && TextUtils.equals(oldImi.getSettingsActivity(), imi.getSettingsActivity())
+                    && TextUtils.equals(getSourceDir(oldImi), getSourceDir(imi));
+        }
+    }
+
+    private static final Comparator<InputMethodEntry> ENTRY_COMPARATOR =
+            new Comparator<InputMethodEntry>() {
+        @Override
+        public int compare(InputMethodEntry lhs, InputMethodEntry rhs) {
+            if (lhs.hasPriorityInSorting != rhs.hasPriorityInSorting) {
+                // Prefer always checked system IMEs
+                return lhs.hasPriorityInSorting ? -1 : 1;
+            }
+            if (lhs.collationKey == null) {
+                return rhs.collationKey == null ? 0 : 1;
+            }
+            if (rhs.collationKey == null) {
+                return -1;
+            }
+            return lhs.collationKey.compareTo(rhs.collationKey);
+        }
+    };
+
+    private static String getSourceDir(InputMethodInfo imi) {
+        return imi.getServiceInfo().applicationInfo.sourceDir;
+    }
+
+    /**
+     * Label of an input method, valid as long as its package is not updated and the locale
+     * doesn't change.
+     */
+    private static final class CachedLabel {
+        String sourceDir;
+        Locale locale;
+        CharSequence label;
+    }
+
+    // Input method id -> label, shared by all the instances of this fragment
+    private static final ArrayMap<String, CachedLabel> sLabelCache = new ArrayMap<>();
+
+    private static CharSequence loadLabel(Context context, InputMethodInfo imi) {
+        final String id = imi.getId();
+        final String sourceDir = getSourceDir(imi);
+        final Locale locale = context.getResources().getConfiguration().locale;
+        synchronized (sLabelCache) {
+            final CachedLabel cached = sLabelCache.get(id);
+            if (cached != null && TextUtils.equals(cached.sourceDir, sourceDir)
+                    && locale.equals(cached.locale)) {
+                return cached.label;
+            }
+        }
+        final CachedLabel cached = new CachedLabel();
+        cached.sourceDir = sourceDir;
+        cached.locale = locale;
+        cached.label = imi.loadLabel(context.getPackageManager());
+        synchronized (sLabelCache) {
+            sLabelCache.put(id, cached);
+        }
+        return cached.label;
+    }
+
+    /**
+     * Loads the labels, summaries and device policy state of the input methods and sorts them,
+     * so that the UI thread only has to update the preferences.
+     */
+    private final class LoadInputMethodsTask extends AsyncTask<Void, Void, List<InputMethodEntry>> {
+        private final Context mContext;
+        private final List<InputMethodInfo> mImis;
+
+        LoadInputMethodsTask(Context context, List<InputMethodInfo> imis) {
+            mContext = context.getApplicationContext();
+            mImis = (imis == null) ? new ArrayList<InputMethodInfo>() : new ArrayList<>(imis);
+        }
+
+        @Override
+        protected List<InputMethodEntry> doInBackground(Void... params) {
+            final List<String> permittedList = mDpm.getPermittedInputMethodsForCurrentUser();
+            final Collator collator = Collator.getInstance();
+            final int N = mImis.size();
+            final ArrayList<InputMethodEntry> entries = new ArrayList<>(N);
+            for (int i = 0; i < N && !isCancelled(); ++i) {
+                final InputMethodInfo imi = mImis.get(i);
+                final boolean isAllowedByOrganization = permittedList == null
+                        || permittedList.contains(imi.getPackageName());
+                final CharSequence label = loadLabel(mContext, imi);
+                final CollationKey collationKey = TextUtils.isEmpty(label)
+                        ? null : collator.getCollationKey(label.toString());
+                entries.add(new InputMethodEntry(imi, label, collationKey,
+                        InputMethodPreference.hasPriorityInSorting(mContext, imi),
+                        isAllowedByOrganization,
+                        InputMethodPreference.getSummaryString(mContext, imi,
+                                isAllowedByOrganization)));
+            }
+            Collections.sort(entries, ENTRY_COMPARATOR);
+            return entries;
+        }
+
+        @Override
+        protected void onPostExecute(List<InputMethodEntry> entries) {
+            if (mLoadInputMethodsTask != this || getActivity() == null) {
+                return;
+            }
+            mLoadInputMethodsTask = null;
+            updateInputMethodPreferenceViews(entries);
+        }
+    }
+
     @Override
     public void onSaveInputMethodPreference(final InputMethodPreference pref) {
         final InputMethodInfo imi = pref.getInputMethodInfo();
@@ -87,6 +87,22 @@ class InputMethodPreference extends SwitchPreference implements OnPreferenceClic
     InputMethodPreference(final Context context, final InputMethodInfo imi,
             final boolean isImeEnabler, final boolean isAllowedByOrganization,
             final OnSavePreferenceListener onSaveListener) {
+        this(context, imi, imi.loadLabel(context.getPackageManager()),
+                hasPriorityInSorting(context, imi), isImeEnabler, isAllowedByOrganization,
+                onSaveListener);
+    }
+
+    /**
+     * A preference entry of an input method whose label and sorting priority have already been
+     * loaded, e.g. on a background thread.
+     *
+     * @param label The label of the input method.
+     * @param hasPriorityInSorting The value returned by {@link #hasPriorityInSorting}.
+     */
+    InputMethodPreference(final Context context, final InputMethodInfo imi,
+            final CharSequence label, final boolean hasPriorityInSorting,
+            final boolean isImeEnabler, final boolean isAllowedByOrganization,
+            final OnSavePreferenceListener onSaveListener) {
         super(context);
         setPersistent(false);
         mImi = imi;
@@ -100,7 +116,7 @@ class InputMethodPreference extends SwitchPreference implements OnPreferenceClic
         setSwitchTextOn(EMPTY_TEXT);
         setSwitchTextOff(EMPTY_TEXT);
         setKey(imi.getId());
-        setTitle(imi.loadLabel(context.getPackageManager()));
+        setTitle(label);
         final String settingsActivity = imi.getSettingsActivity();
         if (TextUtils.isEmpty(settingsActivity)) {
             setIntent(null);
@@ -111,12 +127,25 @@ class InputMethodPreference extends SwitchPreference implements OnPreferenceClic
             setIntent(intent);
         }
         mInputMethodSettingValues = InputMethodSettingValuesWrapper.getInstance(context);
-        mHasPriorityInSorting = InputMethodUtils.isSystemIme(imi)
-                && mInputMethodSettingValues.isValidSystemNonAuxAsciiCapableIme(imi, context);
+        mHasPriorityInSorting = hasPriorityInSorting;
         setOnPreferenceClickListener(this);
         setOnPreferenceChangeListener(this);
     }
 
+    /**
+     * Returns true if the input method is sorted before the others: a system IME that is a valid
+     * non-auxiliary ASCII capable one.
+     */
+    static boolean hasPriorityInSorting(final Context context, final InputMethodInfo imi) {
+        return InputMethodUtils.isSystemIme(imi)
+                && InputMethodSettingValuesWrapper.getInstance(context)
+                        .isValidSystemNonAuxAsciiCapableIme(imi, context);
+    }
+
+    boolean isAllowedByOrganization() {
+        return mIsAllowedByOrganization;
+    }
+
     public InputMethodInfo getInputMethodInfo() {
         return mImi;
     }
@@ -179,30 +208,39 @@ class InputMethodPreference extends SwitchPreference implements OnPreferenceClic
     }
 
     void updatePreferenceViews() {
+        updatePreferenceViews(getSummaryString(getContext(), mImi, mIsAllowedByOrganization));
+    }
+
+    /**
+     * Same as {@link #updatePreferenceViews()} with a summary built beforehand by
+     * {@link #getSummaryString(Context, InputMethodInfo, boolean)}.
+     */
+    void updatePreferenceViews(final String summary) {
         final boolean isAlwaysChecked = mInputMethodSettingValues.isAlwaysCheckedIme(
                 mImi, getContext());
         // Only when this preference has a switch and an input method should be always enabled,
         // this preference should be disabled to prevent accidentally disabling an input method.
         setEnabled(!((isAlwaysChecked && isImeEnabler()) || (!mIsAllowedByOrganization)));
         setChecked(mInputMethodSettingValues.isEnabledImi(mImi));
-        setSummary(getSummaryString());
+        setSummary(summary);
     }
 
-    private InputMethodManager getInputMethodManager() {
-        return (InputMethodManager)getContext().getSystemService(Context.INPUT_METHOD_SERVICE);
-    }
-
-    private String getSummaryString() {
-        final Context context = getContext();
-        if (!mIsAllowedByOrganization) {
+    /**
+     * Returns the summary of an input method preference: the labels of the enabled subtypes.
+     * This loads resources from the input method package and may be called off the UI thread.
+     */
+    static String getSummaryString(final Context context, final InputMethodInfo imi,
+            final boolean isAllowedByOrganization) {
+        if (!isAllowedByOrganization) {
             return context.getString(R.string.accessibility_feature_or_input_method_not_allowed);
         }
-        final InputMethodManager imm = getInputMethodManager();
-        final List<InputMethodSubtype> subtypes = imm.getEnabledInputMethodSubtypeList(mImi, true);
+        final InputMethodManager imm =
+                (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
+        final List<InputMethodSubtype> subtypes = imm.getEnabledInputMethodSubtypeList(imi, true);
         final ArrayList<CharSequence> subtypeLabels = new ArrayList<>();
         for (final InputMethodSubtype subtype : subtypes) {
             final CharSequence label = subtype.getDisplayName(
-                  context, mImi.getPackageName(), mImi.getServiceInfo().applicationInfo);
+                  context, imi.getPackageName(), imi.getServiceInfo().applicationInfo);
             subtypeLabels.add(label);
         }
         // TODO: A delimiter of subtype labels should be localized.
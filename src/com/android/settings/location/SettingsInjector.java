@@ -35,6 +35,7 @@ import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.Preference;
+import android.util.ArrayMap;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.util.Xml;
@@ -87,8 +88,26 @@ class SettingsInjector {
      */
     private static final int WHAT_TIMEOUT = 3;
 
+    /**
+     * Status values received from the services are remembered for this long, so that the
+     * preferences can be rendered with their last known state when the screen is re-entered.
+     */
+    private static final long STATUS_CACHE_MAX_AGE_MILLIS = 60 * 1000;
+
+    /**
+     * Last known status for each setting, shared across instances. Only accessed from the main
+     * thread.
+     */
+    private static final ArrayMap<InjectedSetting, CachedStatus> sStatusCache =
+            new ArrayMap<InjectedSetting, CachedStatus>();
+
     private final Context mContext;
 
+    /**
+     * The maximum number of {@link SettingInjectorService} instances that may be loading at once.
+     */
+    private final int mMaxConcurrentLoads;
+
     /**
      * The settings that were injected
      */
@@ -99,6 +118,8 @@ class SettingsInjector {
     public SettingsInjector(Context context) {
         mContext = context;
         mSettings = new HashSet<Setting>();
+        mMaxConcurrentLoads = Math.max(1, context.getResources().getInteger(
+                R.integer.config_location_injected_settings_max_concurrent_loads));
         mHandler = new StatusLoadingHandler();
     }
 
@@ -278,12 +299,44 @@ class SettingsInjector {
         pref.setTitle(info.title);
         pref.setSummary(null);
         pref.setIcon(icon);
+        CachedStatus cached = getCachedStatus(info);
+        if (cached != null) {
+            pref.setEnabled(cached.enabled);
+        }
         pref.setOnPreferenceClickListener(new ServiceSettingClickedListener(info));
 
         prefs.add(pref);
         return pref;
     }
 
+    /**
+     * Returns the last status received for the setting, or null if there is none or it is stale.
+     */
+    private static CachedStatus getCachedStatus(InjectedSetting setting) {
+        CachedStatus cached = sStatusCache.get(setting);
+        if (cached == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - cached.receivedMillis > STATUS_CACHE_MAX_AGE_MILLIS) {
+            sStatusCache.remove(setting);
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * A status value received from a {@link SettingInjectorService}.
+     */
+    private static final class CachedStatus {
+        public final boolean enabled;
+        public final long receivedMillis;
+
+        CachedStatus(boolean enabled, long receivedMillis) {
+            this.enabled = enabled;
+            this.receivedMillis = receivedMillis;
+        }
+    }
+
     private class ServiceSettingClickedListener
             implements Preference.OnPreferenceClickListener {
         private InjectedSetting mInfo;
@@ -306,9 +359,9 @@ class SettingsInjector {
     }
 
     /**
-     * Loads the setting status values one at a time. Each load starts a subclass of {@link
-     * SettingInjectorService}, so to reduce memory pressure we don't want to load too many at
-     * once.
+     * Loads the setting status values, at most {@link #mMaxConcurrentLoads} at a time. Each load
+     * starts a subclass of {@link SettingInjectorService}, so to reduce memory pressure we don't
+     * want to load too many at once.
      */
     private final class StatusLoadingHandler extends Handler {
 
@@ -318,15 +371,15 @@ class SettingsInjector {
         private Set<Setting> mSettingsToLoad = new HashSet<Setting>();
 
         /**
-         * Settings that are being loaded now and haven't timed out. In practice this should have
-         * zero or one elements.
+         * Settings that are being loaded now and haven't timed out. This has at most
+         * {@link #mMaxConcurrentLoads} elements.
          */
         private Set<Setting> mSettingsBeingLoaded = new HashSet<Setting>();
 
         /**
-         * Settings that are being loaded but have timed out. If only one setting has timed out, we
-         * will go ahead and start loading the next setting so that one slow load won't delay the
-         * load of the other settings.
+         * Settings that are being loaded but have timed out. As long as no more than
+         * {@link #mMaxConcurrentLoads} settings have timed out, we will go ahead and start loading
+         * the next settings so that slow loads won't delay the load of the other settings.
          */
         private Set<Setting> mTimedOutSettings = new HashSet<Setting>();
 
@@ -363,19 +416,6 @@ class SettingsInjector {
                     Log.wtf(TAG, "Unexpected what: " + msg);
             }
 
-            // Decide whether to load additional settings based on the new state. Start by seeing
-            // if we have headroom to load another setting.
-            if (mSettingsBeingLoaded.size() > 0 || mTimedOutSettings.size() > 1) {
-                // Don't load any more settings until one of the pending settings has completed.
-                // To reduce memory pressure, we want to be loading at most one setting (plus at
-                // most one timed-out setting) at a time. This means we'll be responsible for
-                // bringing in at most two services.
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "too many services already live for " + msg + ", " + this);
-                }
-                return;
-            }
-
             if (mReloadRequested && mSettingsToLoad.isEmpty() && mSettingsBeingLoaded.isEmpty()
                     && mTimedOutSettings.isEmpty()) {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
@@ -386,29 +426,40 @@ class SettingsInjector {
                 mReloadRequested = false;
             }
 
-            // Remove the next setting to load from the queue, if any
+            // Start as many of the queued settings as we have headroom for.
             Iterator<Setting> iter = mSettingsToLoad.iterator();
-            if (!iter.hasNext()) {
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "nothing left to do for " + msg + ", " + this);
+            while (iter.hasNext()) {
+                if (mSettingsBeingLoaded.size() >= mMaxConcurrentLoads
+                        || mTimedOutSettings.size() > mMaxConcurrentLoads) {
+                    // Don't load any more settings until one of the pending settings has
+                    // completed. To reduce memory pressure, we want to be loading at most
+                    // mMaxConcurrentLoads settings (plus as many timed-out settings) at a time.
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "too many services already live for " + msg + ", " + this);
+                    }
+                    return;
                 }
-                return;
-            }
-            Setting setting = iter.next();
-            iter.remove();
 
-            // Request the status value
-            setting.startService();
-            mSettingsBeingLoaded.add(setting);
+                Setting setting = iter.next();
+                iter.remove();
 
-            // Ensure that if receiving the status value takes too long, we start loading the
-            // next value anyway
-            Message timeoutMsg = obtainMessage(WHAT_TIMEOUT, setting);
-            sendMessageDelayed(timeoutMsg, INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS);
+                // Request the status value
+                setting.startService();
+                mSettingsBeingLoaded.add(setting);
 
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "handleMessage end " + msg + ", " + this
-                        + ", started loading " + setting);
+                // Ensure that if receiving the status value takes too long, we start loading the
+                // next value anyway
+                Message timeoutMsg = obtainMessage(WHAT_TIMEOUT, setting);
+                sendMessageDelayed(timeoutMsg, INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS);
+
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "handleMessage " + msg + ", " + this
+                            + ", started loading " + setting);
+                }
+            }
+
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "nothing left to do for " + msg + ", " + this);
             }
         }
 
@@ -474,6 +525,8 @@ class SettingsInjector {
                     }
                     preference.setSummary(null);
                     preference.setEnabled(enabled);
+                    sStatusCache.put(setting,
+                            new CachedStatus(enabled, SystemClock.elapsedRealtime()));
                     mHandler.sendMessage(
                             mHandler.obtainMessage(WHAT_RECEIVED_STATUS, Setting.this));
                 }
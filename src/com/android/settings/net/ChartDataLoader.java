@@ -32,6 +32,7 @@ import android.os.Bundle;
 import android.os.RemoteException;
 
 import com.android.settings.DataUsageSummary.AppItem;
+import com.android.settings.SettingsTrace;
 
 /**
  * Loader for historical chart data for both network and UID details.
@@ -74,12 +75,15 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         final AppItem app = mArgs.getParcelable(KEY_APP);
         final int fields = mArgs.getInt(KEY_FIELDS);
 
+        final long start = SettingsTrace.begin();
         try {
             return loadInBackground(template, app, fields);
         } catch (RemoteException e) {
             // since we can't do much without history, and we don't want to
             // leave with half-baked UI, we bail hard.
             throw new RuntimeException("problem reading network stats", e);
+        } finally {
+            SettingsTrace.end("ChartDataLoader", start);
         }
     }
 
@@ -35,6 +35,7 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.settings.AppIconCache;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
@@ -154,7 +155,8 @@ public class UidDetailProvider {
                         0 /* no flags */, userId);
                 if (info != null) {
                     detail.label = info.loadLabel(pm).toString();
-                    detail.icon = um.getBadgedIconForUser(info.loadIcon(pm),
+                    detail.icon = um.getBadgedIconForUser(
+                            AppIconCache.getInstance(mContext).getIcon(info),
                             new UserHandle(userId));
                 }
             } else if (length > 1) {
@@ -173,7 +175,9 @@ public class UidDetailProvider {
                         if (packageInfo.sharedUserLabel != 0) {
                             detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
                                     packageInfo.applicationInfo).toString();
-                            detail.icon = um.getBadgedIconForUser(appInfo.loadIcon(pm), userHandle);
+                            detail.icon = um.getBadgedIconForUser(
+                                    AppIconCache.getInstance(mContext).getIcon(appInfo),
+                                    userHandle);
                         }
                     }
                 }
@@ -37,9 +37,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.android.internal.widget.LockPatternUtils;
+import com.android.settings.PackageClassifier;
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
-import com.android.settings.Utils;
 import com.android.settings.notification.NotificationAppList.AppRow;
 import com.android.settings.notification.NotificationAppList.Backend;
 
@@ -143,7 +143,8 @@ public class AppNotificationSettings extends SettingsPreferenceFragment {
             getPreferenceScreen().removePreference(mSensitive);
         }
 
-        mAppRow = NotificationAppList.loadAppRow(pm, info.applicationInfo, mBackend);
+        mAppRow = NotificationAppList.loadAppRow(getActivity(), pm, info.applicationInfo,
+                mBackend);
         if (intent.hasExtra(EXTRA_HAS_SETTINGS_INTENT)) {
             // use settings intent from extra
             if (intent.getBooleanExtra(EXTRA_HAS_SETTINGS_INTENT, false)) {
@@ -189,7 +190,7 @@ public class AppNotificationSettings extends SettingsPreferenceFragment {
         }
 
         // Users cannot block notifications from system/signature packages
-        if (Utils.isSystemPackage(pm, info)) {
+        if (PackageClassifier.getInstance(mContext).isPlatformSigned(info)) {
             getPreferenceScreen().removePreference(mBlock);
             mPriority.setDependency(null); // don't have it depend on a preference that's gone
         }
@@ -218,7 +219,7 @@ public class AppNotificationSettings extends SettingsPreferenceFragment {
                 final String p = packages[i];
                 if (pkg.equals(p)) {
                     try {
-                        return pm.getPackageInfo(pkg, PackageManager.GET_SIGNATURES);
+                        return pm.getPackageInfo(pkg, 0);
                     } catch (NameNotFoundException e) {
                         Log.w(TAG, "Failed to load package " + pkg, e);
                     }
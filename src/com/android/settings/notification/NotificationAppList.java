@@ -22,8 +22,10 @@ import static com.android.settings.notification.AppNotificationSettings.EXTRA_SE
 import android.animation.LayoutTransition;
 import android.app.INotificationManager;
 import android.app.Notification;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.LauncherActivityInfo;
@@ -42,6 +44,7 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.service.notification.NotificationListenerService;
+import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Log;
 import android.util.TypedValue;
@@ -57,17 +60,23 @@ import android.widget.SectionIndexer;
 import android.widget.Spinner;
 import android.widget.TextView;
 
+import com.android.settings.AppIconCache;
+import com.android.settings.PackageClassifier;
 import com.android.settings.PinnedHeaderListFragment;
 import com.android.settings.R;
 import com.android.settings.Settings.NotificationAppListActivity;
+import com.android.settings.SettingsExecutor;
+import com.android.settings.SettingsTrace;
+import com.android.settings.applications.ApplicationsState;
 import com.android.settings.UserSpinnerAdapter;
 import com.android.settings.Utils;
 
-import java.text.Collator;
+import java.text.CollationKey;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
 
 /** Just a sectioned list of installed applications, nothing else to index **/
 public class NotificationAppList extends PinnedHeaderListFragment
@@ -82,6 +91,15 @@ public class NotificationAppList extends PinnedHeaderListFragment
             = new Intent(Intent.ACTION_MAIN)
                 .addCategory(Notification.INTENT_CATEGORY_NOTIFICATION_PREFERENCES);
 
+    /**
+     * Rows loaded by any instance of this fragment, kept so that reopening the list can show the
+     * last known rows immediately and so that a refresh only reloads packages that changed.
+     * Holds copies made by {@link #copyRow} that are never shown or modified, and only for
+     * {@link #sRowCacheLocale}. Guarded by itself.
+     */
+    private static final ArrayMap<String, AppRow> sRowCache = new ArrayMap<String, AppRow>();
+    private static Locale sRowCacheLocale;
+
     private final Handler mHandler = new Handler();
     private final ArrayMap<String, AppRow> mRows = new ArrayMap<String, AppRow>();
     private final ArrayList<AppRow> mSortedRows = new ArrayList<AppRow>();
@@ -100,6 +118,17 @@ public class NotificationAppList extends PinnedHeaderListFragment
     private UserManager mUM;
     private LauncherApps mLauncherApps;
 
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String pkg = intent.getData() != null
+                    ? intent.getData().getSchemeSpecificPart() : null;
+            if (pkg == null) return;
+            if (DEBUG) Log.d(TAG, "Package changed: " + intent.getAction() + " " + pkg);
+            AsyncTask.execute(new UpdatePackageRunnable(pkg));
+        }
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -141,6 +170,7 @@ public class NotificationAppList extends PinnedHeaderListFragment
     @Override
     public void onPause() {
         super.onPause();
+        mContext.unregisterReceiver(mPackageReceiver);
         if (DEBUG) Log.d(TAG, "Saving listView state");
         mListViewState = getListView().onSaveInstanceState();
     }
@@ -154,6 +184,13 @@ public class NotificationAppList extends PinnedHeaderListFragment
     @Override
     public void onResume() {
         super.onResume();
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, filter);
+        showCachedRows();
         loadAppsList();
     }
 
@@ -181,6 +218,8 @@ public class NotificationAppList extends PinnedHeaderListFragment
 
     private void loadAppsList() {
         AsyncTask.execute(mCollectAppsRunnable);
+        // AppNotificationSettings checks whether the app picked is a system package.
+        PackageClassifier.getInstance(mContext).preloadAsync();
     }
 
     private String getSection(CharSequence label) {
@@ -301,7 +340,11 @@ public class NotificationAppList extends PinnedHeaderListFragment
                 }
             });
             enableLayoutTransitions(vh.row, animate);
+            vh.icon.setTag(row);
             vh.icon.setImageDrawable(row.icon);
+            if (row.icon == null && row.info != null) {
+                loadIconAsync(vh.icon, row);
+            }
             vh.title.setText(row.label);
             final String sub = getSubtitle(row);
             vh.subtitle.setText(sub);
@@ -362,35 +405,118 @@ public class NotificationAppList extends PinnedHeaderListFragment
         public boolean priority;
         public boolean sensitive;
         public boolean first;  // first app in section
+        ApplicationInfo info;  // kept for lazy icon loading
+        String sourceDir;  // changes when the package is updated
+        CollationKey labelKey;  // sort key for label, made for labelKeyLocale
+        Locale labelKeyLocale;
+    }
+
+    /**
+     * Loads the icon for a row that was created without one, and binds it to the view if the
+     * view is still showing that row.
+     */
+    private void loadIconAsync(final ImageView view, final AppRow row) {
+        new AsyncTask<Void, Void, Drawable>() {
+            @Override
+            protected Drawable doInBackground(Void... params) {
+                synchronized (row) {
+                    if (row.icon == null) {
+                        row.icon = AppIconCache.getInstance(mContext).getIcon(row.info);
+                    }
+                    return row.icon;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Drawable icon) {
+                if (view.getTag() == row) {
+                    view.setImageDrawable(icon);
+                }
+            }
+        }.executeOnExecutor(SettingsExecutor.get(SettingsExecutor.LANE_IO));
     }
 
     private static final Comparator<AppRow> mRowComparator = new Comparator<AppRow>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppRow lhs, AppRow rhs) {
-            return sCollator.compare(lhs.label, rhs.label);
+            return lhs.labelKey.compareTo(rhs.labelKey);
         }
     };
 
 
-    public static AppRow loadAppRow(PackageManager pm, ApplicationInfo app,
+    public static AppRow loadAppRow(Context context, PackageManager pm, ApplicationInfo app,
             Backend backend) {
+        final AppRow row = loadAppRowWithoutIcon(pm, app);
+        row.icon = AppIconCache.getInstance(context).getIcon(app);
+        backend.loadNotificationState(row);
+        return row;
+    }
+
+    /**
+     * Loads the label of a row. The icon is loaded when the row is first bound, and the
+     * notification state by {@link Backend#loadNotificationState(List)}.
+     */
+    private static AppRow loadAppRowWithoutIcon(PackageManager pm, ApplicationInfo app) {
         final AppRow row = new AppRow();
         row.pkg = app.packageName;
         row.uid = app.uid;
+        row.info = app;
+        row.sourceDir = app.sourceDir;
         try {
             row.label = app.loadLabel(pm);
         } catch (Throwable t) {
             Log.e(TAG, "Error loading application label for " + row.pkg, t);
             row.label = row.pkg;
         }
-        row.icon = app.loadIcon(pm);
-        row.banned = backend.getNotificationsBanned(row.pkg, row.uid);
-        row.priority = backend.getHighPriority(row.pkg, row.uid);
-        row.sensitive = backend.getSensitive(row.pkg, row.uid);
         return row;
     }
 
+    /**
+     * Returns a new row with the label of {@code src}, and its notification state and settings
+     * intent if {@code withState} is true. The icon is never copied: it may be attached to a
+     * view, and {@link AppIconCache} hands out a new drawable cheaply.
+     */
+    private static AppRow copyRow(AppRow src, boolean withState) {
+        final AppRow row = new AppRow();
+        row.pkg = src.pkg;
+        row.uid = src.uid;
+        row.info = src.info;
+        row.sourceDir = src.sourceDir;
+        row.label = src.label;
+        row.labelKey = src.labelKey;
+        row.labelKeyLocale = src.labelKeyLocale;
+        if (withState) {
+            row.settingsIntent = src.settingsIntent;
+            row.banned = src.banned;
+            row.priority = src.priority;
+            row.sensitive = src.sensitive;
+        }
+        return row;
+    }
+
+    /**
+     * Returns the cached row of {@code pkg}, or null if there is none for the current locale.
+     * Must be called with {@link #sRowCache} held.
+     */
+    private static AppRow getCachedRowLocked(String pkg) {
+        if (!Locale.getDefault().equals(sRowCacheLocale)) {
+            return null;
+        }
+        return sRowCache.get(pkg);
+    }
+
+    /**
+     * Caches a copy of {@code row}. Must be called with {@link #sRowCache} held.
+     */
+    private static void putCachedRowLocked(AppRow row) {
+        final Locale locale = Locale.getDefault();
+        if (!locale.equals(sRowCacheLocale)) {
+            sRowCache.clear();
+            sRowCacheLocale = locale;
+        }
+        sRowCache.put(row.pkg, copyRow(row, true));
+    }
+
     public static List<ResolveInfo> queryNotificationConfigActivities(PackageManager pm) {
         if (DEBUG) Log.d(TAG, "APP_NOTIFICATION_PREFS_CATEGORY_INTENT is "
                 + APP_NOTIFICATION_PREFS_CATEGORY_INTENT);
@@ -430,14 +556,134 @@ public class NotificationAppList extends PinnedHeaderListFragment
         }
     }
 
+    /**
+     * Publishes the rows left over from the last time the list was shown, if any, so that the
+     * list is populated while {@link #mCollectAppsRunnable} refreshes it.
+     *
+     * Runs on the UI thread, so it stays clear of the {@link #mRows} lock, which the
+     * background runnables hold across binder calls. The rows are copied and sorted without
+     * locks and only swapped into {@link #mSortedRows} under its own, briefly held lock.
+     */
+    private void showCachedRows() {
+        final ArrayList<AppRow> rows;
+        synchronized (sRowCache) {
+            if (sRowCache.isEmpty() || !Locale.getDefault().equals(sRowCacheLocale)) return;
+            final int N = sRowCache.size();
+            rows = new ArrayList<AppRow>(N);
+            for (int i = 0; i < N; i++) {
+                rows.add(copyRow(sRowCache.valueAt(i), true));
+            }
+        }
+        final ArrayList<String> sections = new ArrayList<String>();
+        sortRows(rows, sections);
+        synchronized (mSortedRows) {
+            // Rows already shown, or published by the collector, are at least as recent.
+            if (!mSortedRows.isEmpty()) return;
+            mSortedRows.addAll(rows);
+            mSections.addAll(sections);
+        }
+        refreshDisplayedItems();
+    }
+
+    /**
+     * Rebuilds {@link #mSortedRows} and {@link #mSections} from {@link #mRows}. Must be called
+     * with {@link #mRows} held.
+     */
+    private void sortRowsLocked() {
+        final ArrayList<AppRow> rows = new ArrayList<AppRow>(mRows.values());
+        final ArrayList<String> sections = new ArrayList<String>();
+        sortRows(rows, sections);
+        synchronized (mSortedRows) {
+            mSortedRows.clear();
+            mSortedRows.addAll(rows);
+            mSections.clear();
+            mSections.addAll(sections);
+        }
+    }
+
+    /**
+     * Sorts {@code rows} by label and fills {@code sections} with their sections, in order.
+     */
+    private void sortRows(ArrayList<AppRow> rows, ArrayList<String> sections) {
+        // compute each row's sort key once rather than collating labels on every compare
+        final Locale locale = Locale.getDefault();
+        for (AppRow r : rows) {
+            if (r.labelKey == null || !locale.equals(r.labelKeyLocale)) {
+                r.labelKey = ApplicationsState.getCollationKey(r.label, locale);
+                r.labelKeyLocale = locale;
+            }
+        }
+        Collections.sort(rows, mRowComparator);
+        // compute sections
+        String section = null;
+        for (AppRow r : rows) {
+            r.section = getSection(r.label);
+            if (!r.section.equals(section)) {
+                section = r.section;
+                sections.add(section);
+            }
+        }
+    }
+
+    /**
+     * Reloads the row of a single package after it was added, changed or removed.
+     */
+    private final class UpdatePackageRunnable implements Runnable {
+        private final String mPkg;
+
+        UpdatePackageRunnable(String pkg) {
+            mPkg = pkg;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mRows) {
+                synchronized (sRowCache) {
+                    sRowCache.remove(mPkg);
+                }
+                mRows.remove(mPkg);
+
+                ApplicationInfo info = null;
+                final List<LauncherActivityInfo> lais = mLauncherApps.getActivityList(mPkg,
+                        UserHandle.getCallingUserHandle());
+                if (!lais.isEmpty()) {
+                    info = lais.get(0).getApplicationInfo();
+                }
+                final List<ResolveInfo> configActivities = new ArrayList<ResolveInfo>();
+                for (ResolveInfo ri : queryNotificationConfigActivities(mPM)) {
+                    if (mPkg.equals(ri.activityInfo.packageName)) {
+                        configActivities.add(ri);
+                        if (info == null) {
+                            info = ri.activityInfo.applicationInfo;
+                        }
+                    }
+                }
+
+                if (info != null) {
+                    final AppRow row = loadAppRowWithoutIcon(mPM, info);
+                    mBackend.loadNotificationState(row);
+                    mRows.put(mPkg, row);
+                    applyConfigActivities(mPM, mRows, configActivities);
+                }
+                sortRowsLocked();
+                if (info != null) {
+                    synchronized (sRowCache) {
+                        putCachedRowLocked(mRows.get(mPkg));
+                    }
+                }
+                mHandler.post(mRefreshAppsListRunnable);
+            }
+        }
+    }
+
     private final Runnable mCollectAppsRunnable = new Runnable() {
         @Override
         public void run() {
             synchronized (mRows) {
                 final long start = SystemClock.uptimeMillis();
+                final long traceStart = SettingsTrace.begin();
                 if (DEBUG) Log.d(TAG, "Collecting apps...");
                 mRows.clear();
-                mSortedRows.clear();
 
                 // collect all launchable apps, plus any packages that have notification settings
                 final List<ApplicationInfo> appInfos = new ArrayList<ApplicationInfo>();
@@ -460,6 +706,7 @@ public class NotificationAppList extends PinnedHeaderListFragment
                     appInfos.add(ri.activityInfo.applicationInfo);
                 }
 
+                int reused = 0;
                 for (ApplicationInfo info : appInfos) {
                     final String key = info.packageName;
                     if (mRows.containsKey(key)) {
@@ -467,39 +714,55 @@ public class NotificationAppList extends PinnedHeaderListFragment
                         continue;
                     }
 
-                    final AppRow row = loadAppRow(mPM, info, mBackend);
+                    AppRow row;
+                    synchronized (sRowCache) {
+                        row = getCachedRowLocked(key);
+                    }
+                    if (row != null && row.uid == info.uid
+                            && TextUtils.equals(row.sourceDir, info.sourceDir)) {
+                        // unchanged since we last loaded it in this locale; keep the label
+                        row = copyRow(row, false);
+                        reused++;
+                    } else {
+                        row = loadAppRowWithoutIcon(mPM, info);
+                    }
                     mRows.put(key, row);
                 }
 
+                // notification state may have changed from the app details screen, so always
+                // reload it
+                final ArrayList<AppRow> rows = new ArrayList<AppRow>(mRows.values());
+                mBackend.loadNotificationState(rows);
+
                 // add config activities to the list
                 applyConfigActivities(mPM, mRows, resolvedConfigActivities);
 
-                // sort rows
-                mSortedRows.addAll(mRows.values());
-                Collections.sort(mSortedRows, mRowComparator);
-                // compute sections
-                mSections.clear();
-                String section = null;
-                for (AppRow r : mSortedRows) {
-                    r.section = getSection(r.label);
-                    if (!r.section.equals(section)) {
-                        section = r.section;
-                        mSections.add(section);
+                sortRowsLocked();
+
+                // after sorting, so that the cached rows keep their collation keys
+                synchronized (sRowCache) {
+                    sRowCache.clear();
+                    final int N = mRows.size();
+                    for (int i = 0; i < N; i++) {
+                        putCachedRowLocked(mRows.valueAt(i));
                     }
                 }
                 mHandler.post(mRefreshAppsListRunnable);
+                SettingsTrace.end("NotificationAppList.collect", traceStart);
                 final long elapsed = SystemClock.uptimeMillis() - start;
-                if (DEBUG) Log.d(TAG, "Collected " + mRows.size() + " apps in " + elapsed + "ms");
+                if (DEBUG) Log.d(TAG, "Collected " + mRows.size() + " apps (" + reused
+                        + " cached) in " + elapsed + "ms");
             }
         }
     };
 
     private void refreshDisplayedItems() {
         if (DEBUG) Log.d(TAG, "Refreshing apps...");
-        mAdapter.clear();
+        final ArrayList<Row> items;
         synchronized (mSortedRows) {
-            String section = null;
             final int N = mSortedRows.size();
+            items = new ArrayList<Row>(N + mSections.size());
+            String section = null;
             boolean first = true;
             for (int i = 0; i < N; i++) {
                 final AppRow row = mSortedRows.get(i);
@@ -507,14 +770,19 @@ public class NotificationAppList extends PinnedHeaderListFragment
                     section = row.section;
                     Row r = new Row();
                     r.section = section;
-                    mAdapter.add(r);
+                    items.add(r);
                     first = true;
                 }
                 row.first = first;
-                mAdapter.add(row);
+                items.add(row);
                 first = false;
             }
         }
+        // swap the contents in one go so the list is only invalidated once
+        mAdapter.setNotifyOnChange(false);
+        mAdapter.clear();
+        mAdapter.addAll(items);
+        mAdapter.notifyDataSetChanged();
         if (mListViewState != null) {
             if (DEBUG) Log.d(TAG, "Restoring listView state");
             getListView().onRestoreInstanceState(mListViewState);
@@ -534,6 +802,23 @@ public class NotificationAppList extends PinnedHeaderListFragment
         static INotificationManager sINM = INotificationManager.Stub.asInterface(
                 ServiceManager.getService(Context.NOTIFICATION_SERVICE));
 
+        /**
+         * Loads the banned, priority and sensitive state of the given rows. The notification
+         * service has no bulk query, so this is still three calls per row.
+         */
+        public void loadNotificationState(List<AppRow> rows) {
+            final int N = rows.size();
+            for (int i = 0; i < N; i++) {
+                loadNotificationState(rows.get(i));
+            }
+        }
+
+        public void loadNotificationState(AppRow row) {
+            row.banned = getNotificationsBanned(row.pkg, row.uid);
+            row.priority = getHighPriority(row.pkg, row.uid);
+            row.sensitive = getSensitive(row.pkg, row.uid);
+        }
+
         public boolean setNotificationsBanned(String pkg, int uid, boolean banned) {
             try {
                 sINM.setNotificationsEnabledForPackage(pkg, uid, !banned);
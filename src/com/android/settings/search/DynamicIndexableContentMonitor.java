@@ -34,6 +34,8 @@ import android.print.PrintManager;
 import android.printservice.PrintService;
 import android.printservice.PrintServiceInfo;
 import android.provider.UserDictionary;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.view.accessibility.AccessibilityManager;
 import android.view.inputmethod.InputMethodInfo;
 import android.view.inputmethod.InputMethodManager;
@@ -49,9 +51,12 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         InputManager.InputDeviceListener {
 
     private static final long DELAY_PROCESS_PACKAGE_CHANGE = 2000;
+    // Index updates are batched over this delay, e.g. when many packages are restored at once
+    private static final long DELAY_UPDATE_INDEX = 1000;
 
     private static final int MSG_PACKAGE_AVAILABLE = 1;
     private static final int MSG_PACKAGE_UNAVAILABLE = 2;
+    private static final int MSG_UPDATE_INDEX = 3;
 
     private final List<String> mAccessibilityServices = new ArrayList<String>();
     private final List<String> mPrintServices = new ArrayList<String>();
@@ -70,6 +75,10 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                     String packageName = (String) msg.obj;
                     handlePackageUnavailable(packageName);
                 } break;
+
+                case MSG_UPDATE_INDEX: {
+                    updateIndex();
+                } break;
             }
         }
     };
@@ -77,6 +86,11 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
     private final ContentObserver mUserDictionaryContentObserver =
             new UserDictionaryContentObserver(mHandler);
 
+    // Class name -> packages whose rows need to be updated in the next index update
+    private final ArrayMap<String, ArraySet<String>> mPendingPackages =
+            new ArrayMap<String, ArraySet<String>>();
+    private boolean mPendingImeRebuild;
+
     private Context mContext;
     private boolean mHasFeaturePrinting;
     private boolean mHasFeatureIme;
@@ -177,6 +191,10 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                     mUserDictionaryContentObserver);
         }
 
+        mHandler.removeMessages(MSG_UPDATE_INDEX);
+        mPendingPackages.clear();
+        mPendingImeRebuild = false;
+
         mAccessibilityServices.clear();
         mPrintServices.clear();
         mImeServices.clear();
@@ -210,8 +228,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceAdded(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), false, true);
+        scheduleImeRebuild();
     }
 
     @Override
@@ -221,8 +238,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceChanged(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), true, true);
+        scheduleImeRebuild();
     }
 
     private void postMessage(int what, String packageName) {
@@ -230,13 +246,52 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         mHandler.sendMessageDelayed(message, DELAY_PROCESS_PACKAGE_CHANGE);
     }
 
+    private void schedulePackageUpdate(String className, String packageName) {
+        ArraySet<String> packages = mPendingPackages.get(className);
+        if (packages == null) {
+            packages = new ArraySet<String>();
+            mPendingPackages.put(className, packages);
+        }
+        packages.add(packageName);
+        scheduleIndexUpdate();
+    }
+
+    private void scheduleImeRebuild() {
+        mPendingImeRebuild = true;
+        scheduleIndexUpdate();
+    }
+
+    private void scheduleIndexUpdate() {
+        // Don't push an update that is already scheduled further away, so that a stream of
+        // events is still flushed every DELAY_UPDATE_INDEX.
+        if (!mHandler.hasMessages(MSG_UPDATE_INDEX)) {
+            mHandler.sendEmptyMessageDelayed(MSG_UPDATE_INDEX, DELAY_UPDATE_INDEX);
+        }
+    }
+
+    private void updateIndex() {
+        final Index index = Index.getInstance(mContext);
+        final String imeClassName = InputMethodAndLanguageSettings.class.getName();
+        if (mPendingImeRebuild) {
+            // A rebuild of the whole screen covers the pending IME packages too.
+            mPendingPackages.remove(imeClassName);
+            index.updateFromClassNameResource(imeClassName, true, true);
+            mPendingImeRebuild = false;
+        }
+        final int count = mPendingPackages.size();
+        for (int i = 0; i < count; i++) {
+            index.updateFromClassNameResourceForPackages(mPendingPackages.keyAt(i),
+                    mPendingPackages.valueAt(i));
+        }
+        mPendingPackages.clear();
+    }
+
     private void handlePackageAvailable(String packageName) {
         if (!mAccessibilityServices.contains(packageName)) {
             final Intent intent = getAccessibilityServiceIntent(packageName);
             if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                 mAccessibilityServices.add(packageName);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        AccessibilitySettings.class.getName(), false, true);
+                schedulePackageUpdate(AccessibilitySettings.class.getName(), packageName);
             }
         }
 
@@ -245,8 +300,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 final Intent intent = getPrintServiceIntent(packageName);
                 if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                     mPrintServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            PrintSettingsFragment.class.getName(), false, true);
+                    schedulePackageUpdate(PrintSettingsFragment.class.getName(), packageName);
                 }
             }
         }
@@ -256,8 +310,8 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 Intent intent = getIMEServiceIntent(packageName);
                 if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                     mImeServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            InputMethodAndLanguageSettings.class.getName(), false, true);
+                    schedulePackageUpdate(InputMethodAndLanguageSettings.class.getName(),
+                            packageName);
                 }
             }
         }
@@ -267,16 +321,14 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         final int accessibilityIndex = mAccessibilityServices.indexOf(packageName);
         if (accessibilityIndex >= 0) {
             mAccessibilityServices.remove(accessibilityIndex);
-            Index.getInstance(mContext).updateFromClassNameResource(
-                    AccessibilitySettings.class.getName(), true, true);
+            schedulePackageUpdate(AccessibilitySettings.class.getName(), packageName);
         }
 
         if (mHasFeaturePrinting) {
             final int printIndex = mPrintServices.indexOf(packageName);
             if (printIndex >= 0) {
                 mPrintServices.remove(printIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        PrintSettingsFragment.class.getName(), true, true);
+                schedulePackageUpdate(PrintSettingsFragment.class.getName(), packageName);
             }
         }
 
@@ -284,8 +336,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
             final int imeIndex = mImeServices.indexOf(packageName);
             if (imeIndex >= 0) {
                 mImeServices.remove(imeIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                schedulePackageUpdate(InputMethodAndLanguageSettings.class.getName(), packageName);
             }
         }
     }
@@ -299,8 +350,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             if (UserDictionary.Words.CONTENT_URI.equals(uri)) {
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                scheduleImeRebuild();
             }
         };
     }
@@ -16,6 +16,7 @@
 
 package com.android.settings.search;
 
+import android.app.ActivityManager;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -23,15 +24,20 @@ import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
 import android.content.pm.ResolveInfo;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.MergeCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.PowerManager;
+import android.os.Process;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -41,6 +47,7 @@ import android.util.Log;
 import android.util.TypedValue;
 import android.util.Xml;
 import com.android.settings.R;
+import com.android.settings.SettingsTrace;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -48,14 +55,18 @@ import java.io.IOException;
 import java.lang.reflect.Field;
 import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
@@ -147,6 +158,12 @@ public class Index {
 
     private static final String BASE_AUTHORITY = "com.android.settings";
 
+    private static final String SHARED_PREFS_TAG = "index";
+    private static final String PREF_KEY_COMPLETE_PREFIX = "complete_";
+
+    // Number of Settings sources indexed per transaction once search is available
+    private static final int DEFERRED_BATCH_SIZE = 4;
+
     private static final String EMPTY = "";
     private static final String NON_BREAKING_HYPHEN = "\u2011";
     private static final String HYPHEN = "-";
@@ -172,6 +189,8 @@ public class Index {
         public List<SearchIndexableData> dataToUpdate;
         public List<SearchIndexableData> dataToDelete;
         public Map<String, List<String>> nonIndexableKeys;
+        // Class name -> packages whose rows of that class need to be rewritten
+        public Map<String, Set<String>> packagesToUpdate;
 
         public boolean forceUpdate = false;
 
@@ -179,12 +198,14 @@ public class Index {
             dataToUpdate = new ArrayList<SearchIndexableData>();
             dataToDelete = new ArrayList<SearchIndexableData>();
             nonIndexableKeys = new HashMap<String, List<String>>();
+            packagesToUpdate = new HashMap<String, Set<String>>();
         }
 
         public UpdateData(UpdateData other) {
             dataToUpdate = new ArrayList<SearchIndexableData>(other.dataToUpdate);
             dataToDelete = new ArrayList<SearchIndexableData>(other.dataToDelete);
             nonIndexableKeys = new HashMap<String, List<String>>(other.nonIndexableKeys);
+            packagesToUpdate = new HashMap<String, Set<String>>(other.packagesToUpdate);
             forceUpdate = other.forceUpdate;
         }
 
@@ -196,12 +217,110 @@ public class Index {
             dataToUpdate.clear();
             dataToDelete.clear();
             nonIndexableKeys.clear();
+            packagesToUpdate.clear();
             forceUpdate = false;
         }
     }
 
+    /**
+     * State shared by all the rows written in one indexing run: the non-indexable keys as hash
+     * sets, a compiled insert statement and buffers for normalizing strings.
+     */
+    static final class IndexingContext {
+        private static final String INSERT_SQL = "INSERT OR REPLACE INTO "
+                + Tables.TABLE_PREFS_INDEX + "("
+                + IndexColumns.DOCID + ", "
+                + IndexColumns.LOCALE + ", "
+                + IndexColumns.DATA_RANK + ", "
+                + IndexColumns.DATA_TITLE + ", "
+                + IndexColumns.DATA_TITLE_NORMALIZED + ", "
+                + IndexColumns.DATA_SUMMARY_ON + ", "
+                + IndexColumns.DATA_SUMMARY_ON_NORMALIZED + ", "
+                + IndexColumns.DATA_SUMMARY_OFF + ", "
+                + IndexColumns.DATA_SUMMARY_OFF_NORMALIZED + ", "
+                + IndexColumns.DATA_ENTRIES + ", "
+                + IndexColumns.DATA_KEYWORDS + ", "
+                + IndexColumns.CLASS_NAME + ", "
+                + IndexColumns.SCREEN_TITLE + ", "
+                + IndexColumns.INTENT_ACTION + ", "
+                + IndexColumns.INTENT_TARGET_PACKAGE + ", "
+                + IndexColumns.INTENT_TARGET_CLASS + ", "
+                + IndexColumns.ICON + ", "
+                + IndexColumns.ENABLED + ", "
+                + IndexColumns.DATA_KEY_REF + ", "
+                + IndexColumns.USER_ID
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+        final SQLiteDatabase database;
+        final String locale;
+        int rowCount;
+
+        private final Map<String, List<String>> mNonIndexableKeys;
+        private final HashMap<String, Set<String>> mNonIndexableKeySets =
+                new HashMap<String, Set<String>>();
+        private final StringBuilder mBuilder = new StringBuilder();
+        private final Matcher mDiacriticalsMatcher = REMOVE_DIACRITICALS_PATTERN.matcher(EMPTY);
+        private SQLiteStatement mInsert;
+
+        IndexingContext(SQLiteDatabase database, String locale,
+                Map<String, List<String>> nonIndexableKeys) {
+            this.database = database;
+            this.locale = locale;
+            mNonIndexableKeys = nonIndexableKeys;
+        }
+
+        /**
+         * Returns the non-indexable keys of a package as a set, converting them only once.
+         */
+        Set<String> getNonIndexableKeys(String packageName) {
+            Set<String> keys = mNonIndexableKeySets.get(packageName);
+            if (keys == null) {
+                final List<String> list = mNonIndexableKeys.get(packageName);
+                if (list != null && list.size() > 0) {
+                    keys = new HashSet<String>(list);
+                } else {
+                    keys = Collections.<String>emptySet();
+                }
+                mNonIndexableKeySets.put(packageName, keys);
+            }
+            return keys;
+        }
+
+        SQLiteStatement getInsertStatement() {
+            if (mInsert == null) {
+                mInsert = database.compileStatement(INSERT_SQL);
+            }
+            return mInsert;
+        }
+
+        /**
+         * Removes hyphens and diacritical marks and lowercases the input.
+         */
+        String normalizeString(String input) {
+            final StringBuilder sb = mBuilder;
+            sb.setLength(0);
+            final int length = input.length();
+            for (int i = 0; i < length; i++) {
+                final char c = input.charAt(i);
+                if (c != '-') {
+                    sb.append(c);
+                }
+            }
+            final String normalized = Normalizer.normalize(sb, Normalizer.Form.NFD);
+            return mDiacriticalsMatcher.reset(normalized).replaceAll(EMPTY).toLowerCase();
+        }
+
+        void close() {
+            if (mInsert != null) {
+                mInsert.close();
+                mInsert = null;
+            }
+        }
+    }
+
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
     private final UpdateData mDataToProcess = new UpdateData();
+    private StagedUpdateTask mStagedUpdateTask;
     private Context mContext;
     private final String mBaseAuthority;
 
@@ -297,28 +416,42 @@ public class Index {
         }
     }
 
+    /**
+     * Index all the Settings data and the data of every well known remote provider for the
+     * current locale, in stages. See {@link StagedUpdateTask}. A task still indexing the
+     * current locale is left to finish; one indexing another locale is cancelled.
+     */
     public void update() {
+        if (mStagedUpdateTask != null
+                && mStagedUpdateTask.getStatus() != AsyncTask.Status.FINISHED) {
+            if (mStagedUpdateTask.mLocaleStr.equals(Locale.getDefault().toString())
+                    && !mStagedUpdateTask.isCancelled()) {
+                return;
+            }
+            mStagedUpdateTask.cancel(false);
+        }
+        mStagedUpdateTask = new StagedUpdateTask();
+        mStagedUpdateTask.execute();
+    }
+
+    private List<ResolveInfo> getWellKnownProviders() {
         final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
         List<ResolveInfo> list =
                 mContext.getPackageManager().queryIntentContentProviders(intent, 0);
 
+        final List<ResolveInfo> result = new ArrayList<ResolveInfo>(list.size());
         final int size = list.size();
         for (int n = 0; n < size; n++) {
             final ResolveInfo info = list.get(n);
-            if (!isWellKnownProvider(info)) {
-                continue;
+            if (isWellKnownProvider(info)) {
+                result.add(info);
             }
-            final String authority = info.providerInfo.authority;
-            final String packageName = info.providerInfo.packageName;
-
-            addIndexablesFromRemoteProvider(packageName, authority);
-            addNonIndexablesKeysFromRemoteProvider(packageName, authority);
         }
-
-        updateInternal();
+        return result;
     }
 
-    private boolean addIndexablesFromRemoteProvider(String packageName, String authority) {
+    private boolean addIndexablesFromRemoteProvider(String packageName, String authority,
+            List<SearchIndexableData> out) {
         try {
             final int baseRank = Ranking.getBaseRankForAuthority(authority);
 
@@ -327,11 +460,11 @@ public class Index {
 
             final Uri uriForResources = buildUriForXmlResources(authority);
             addIndexablesForXmlResourceUri(context, packageName, uriForResources,
-                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank);
+                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank, out);
 
             final Uri uriForRawData = buildUriForRawData(authority);
             addIndexablesForRawDataUri(context, packageName, uriForRawData,
-                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank);
+                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank, out);
             return true;
         } catch (PackageManager.NameNotFoundException e) {
             Log.w(LOG_TAG, "Could not create context for " + packageName + ": "
@@ -340,13 +473,6 @@ public class Index {
         }
     }
 
-    private void addNonIndexablesKeysFromRemoteProvider(String packageName,
-                                                        String authority) {
-        final List<String> keys =
-                getNonIndexablesKeysFromRemoteProvider(packageName, authority);
-        addNonIndexableKeys(packageName, keys);
-    }
-
     private List<String> getNonIndexablesKeysFromRemoteProvider(String packageName,
                                                                 String authority) {
         try {
@@ -455,7 +581,11 @@ public class Index {
     }
 
     private void updateFromRemoteProvider(String packageName, String authority) {
-        if (addIndexablesFromRemoteProvider(packageName, authority)) {
+        final List<SearchIndexableData> data = new ArrayList<SearchIndexableData>();
+        if (addIndexablesFromRemoteProvider(packageName, authority, data)) {
+            synchronized (mDataToProcess) {
+                mDataToProcess.dataToUpdate.addAll(data);
+            }
             updateInternal();
         }
     }
@@ -489,6 +619,35 @@ public class Index {
         res.enabled = false;
     }
 
+    /**
+     * Update only the rows of a class name resource that belong to the given packages, for
+     * resources whose raw data is keyed by {@link android.content.ComponentName} (accessibility,
+     * print and input method services). The rows of each package are deleted and the ones the
+     * class still provides for it are written back.
+     *
+     * @param className the class name (typically a fragment name).
+     * @param packageNames the packages that were added, changed or removed.
+     */
+    public void updateFromClassNameResourceForPackages(String className,
+            Collection<String> packageNames) {
+        if (className == null) {
+            throw new IllegalArgumentException("class name cannot be null!");
+        }
+        if (SearchIndexableResources.getResourceByName(className) == null) {
+            Log.e(LOG_TAG, "Cannot find SearchIndexableResources for class name: " + className);
+            return;
+        }
+        synchronized (mDataToProcess) {
+            Set<String> packages = mDataToProcess.packagesToUpdate.get(className);
+            if (packages == null) {
+                packages = new HashSet<String>();
+                mDataToProcess.packagesToUpdate.put(className, packages);
+            }
+            packages.addAll(packageNames);
+        }
+        updateInternal();
+    }
+
     public void updateFromSearchIndexableData(SearchIndexableData data) {
         addIndexableData(data);
         mDataToProcess.forceUpdate = true;
@@ -528,7 +687,7 @@ public class Index {
     }
 
     private void addIndexablesForXmlResourceUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+            Uri uri, String[] projection, int baseRank, List<SearchIndexableData> out) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
@@ -566,7 +725,7 @@ public class Index {
                     sir.intentTargetPackage = targetPackage;
                     sir.intentTargetClass = targetClass;
 
-                    addIndexableData(sir);
+                    out.add(sir);
                 }
             }
         } finally {
@@ -575,7 +734,7 @@ public class Index {
     }
 
     private void addIndexablesForRawDataUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+            Uri uri, String[] projection, int baseRank, List<SearchIndexableData> out) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
@@ -629,7 +788,7 @@ public class Index {
                     data.key = key;
                     data.userId = userId;
 
-                    addIndexableData(data);
+                    out.add(data);
                 }
             }
         } finally {
@@ -694,23 +853,21 @@ public class Index {
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
-            SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
+    private void indexOneSearchIndexableData(IndexingContext ctx, SearchIndexableData data) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(ctx, (SearchIndexableResource) data);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(ctx, (SearchIndexableRaw) data);
         }
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
-                             SearchIndexableRaw raw) {
+    private void indexOneRaw(IndexingContext ctx, SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
-        if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
+        if (!raw.locale.toString().equalsIgnoreCase(ctx.locale)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(ctx,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -743,26 +900,18 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
-            SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
+    private void indexOneResource(IndexingContext ctx, SearchIndexableResource sir) {
 
         if (sir == null) {
             Log.e(LOG_TAG, "Cannot index a null resource!");
             return;
         }
 
-        final List<String> nonIndexableKeys = new ArrayList<String>();
-
         if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
-            List<String> resNonIndxableKeys = nonIndexableKeysFromResource.get(sir.packageName);
-            if (resNonIndxableKeys != null && resNonIndxableKeys.size() > 0) {
-                nonIndexableKeys.addAll(resNonIndxableKeys);
-            }
-
-            indexFromResource(sir.context, database, localeStr,
+            indexFromResource(sir.context, ctx,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
-                    nonIndexableKeys);
+                    ctx.getNonIndexableKeys(sir.packageName));
         } else {
             if (TextUtils.isEmpty(sir.className)) {
                 Log.w(LOG_TAG, "Cannot index an empty Search Provider name!");
@@ -781,16 +930,62 @@ public class Index {
             final Indexable.SearchIndexProvider provider = getSearchIndexProvider(clazz);
             if (provider != null) {
                 List<String> providerNonIndexableKeys = provider.getNonIndexableKeys(sir.context);
+                final Set<String> nonIndexableKeys;
                 if (providerNonIndexableKeys != null && providerNonIndexableKeys.size() > 0) {
-                    nonIndexableKeys.addAll(providerNonIndexableKeys);
+                    nonIndexableKeys = new HashSet<String>(providerNonIndexableKeys);
+                } else {
+                    nonIndexableKeys = Collections.<String>emptySet();
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
+                indexFromProvider(mContext, ctx, provider, sir.className,
                         sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
             }
         }
     }
 
+    /**
+     * Returns the raw data that a class name resource provides for the components of the given
+     * packages, ready to be indexed on its own.
+     */
+    private List<SearchIndexableData> getRawDataForPackages(String className,
+            Set<String> packageNames) {
+        final List<SearchIndexableData> result = new ArrayList<SearchIndexableData>();
+        final SearchIndexableResource res = SearchIndexableResources.getResourceByName(className);
+        final Class<?> clazz = getIndexableClass(className);
+        if (res == null || clazz == null) {
+            return result;
+        }
+        final Indexable.SearchIndexProvider provider = getSearchIndexProvider(clazz);
+        if (provider == null) {
+            return result;
+        }
+
+        final List<SearchIndexableRaw> rawList = provider.getRawDataToIndex(mContext, true);
+        if (rawList == null) {
+            return result;
+        }
+        final List<String> nonIndexableKeys = provider.getNonIndexableKeys(mContext);
+        final int rawSize = rawList.size();
+        for (int i = 0; i < rawSize; i++) {
+            final SearchIndexableRaw raw = rawList.get(i);
+            if (raw.key == null) {
+                continue;
+            }
+            final int slash = raw.key.indexOf('/');
+            if (slash <= 0 || !packageNames.contains(raw.key.substring(0, slash))) {
+                continue;
+            }
+            if (nonIndexableKeys != null && nonIndexableKeys.contains(raw.key)) {
+                continue;
+            }
+            raw.className = className;
+            raw.iconResId = res.iconResId;
+            raw.rank = res.rank;
+            result.add(raw);
+        }
+        return result;
+    }
+
     private Indexable.SearchIndexProvider getSearchIndexProvider(final Class<?> clazz) {
         try {
             final Field f = clazz.getField(FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER);
@@ -811,10 +1006,10 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, IndexingContext ctx,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
-           List<String> nonIndexableKeys) {
+           Set<String> nonIndexableKeys) {
 
         XmlResourceParser parser = null;
         try {
@@ -851,7 +1046,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(ctx, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -883,7 +1078,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(ctx, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -895,7 +1090,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(ctx, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -911,9 +1106,9 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, IndexingContext ctx,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
-            boolean enabled, List<String> nonIndexableKeys) {
+            boolean enabled, Set<String> nonIndexableKeys) {
 
         if (provider == null) {
             Log.w(LOG_TAG, "Cannot find provider: " + className);
@@ -928,7 +1123,7 @@ public class Index {
                 SearchIndexableRaw raw = rawList.get(i);
 
                 // Should be the same locale as the one we are processing
-                if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
+                if (!raw.locale.toString().equalsIgnoreCase(ctx.locale)) {
                     continue;
                 }
 
@@ -936,7 +1131,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(ctx,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -963,7 +1158,7 @@ public class Index {
                 SearchIndexableResource item = resList.get(i);
 
                 // Should be the same locale as the one we are processing
-                if (!item.locale.toString().equalsIgnoreCase(localeStr)) {
+                if (!item.locale.toString().equalsIgnoreCase(ctx.locale)) {
                     continue;
                 }
 
@@ -972,7 +1167,7 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, ctx,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
                         item.intentTargetClass, nonIndexableKeys);
@@ -980,7 +1175,7 @@ public class Index {
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(IndexingContext ctx,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
@@ -988,14 +1183,17 @@ public class Index {
             boolean enabled, String key, int userId) {
 
         final String updatedTitle = normalizeHyphen(title);
+        if (TextUtils.isEmpty(updatedTitle)) {
+            return;
+        }
         final String updatedSummaryOn = normalizeHyphen(summaryOn);
         final String updatedSummaryOff = normalizeHyphen(summaryOff);
 
-        final String normalizedTitle = normalizeString(updatedTitle);
-        final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
-        final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
+        final String normalizedTitle = ctx.normalizeString(updatedTitle);
+        final String normalizedSummaryOn = ctx.normalizeString(updatedSummaryOn);
+        final String normalizedSummaryOff = ctx.normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(ctx,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
@@ -1004,17 +1202,24 @@ public class Index {
     }
 
     private static String normalizeHyphen(String input) {
-        return (input != null) ? input.replaceAll(NON_BREAKING_HYPHEN, HYPHEN) : EMPTY;
+        return (input != null) ? input.replace(NON_BREAKING_HYPHEN, HYPHEN) : EMPTY;
     }
 
-    private static String normalizeString(String input) {
-        final String nohyphen = (input != null) ? input.replaceAll(HYPHEN, EMPTY) : EMPTY;
-        final String normalized = Normalizer.normalize(nohyphen, Normalizer.Form.NFD);
-
-        return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
+    /**
+     * Returns the same hash as {@code (first + second).hashCode()}, without building the string.
+     * A null {@code second} hashes as "null", like {@link StringBuilder#append(String)}.
+     */
+    private static int concatHashCode(String first, String second) {
+        int h = first.hashCode();
+        final String s = String.valueOf(second);
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private void updateOneRow(IndexingContext ctx,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
@@ -1028,33 +1233,43 @@ public class Index {
 
         // The DocID should contains more than the title string itself (you may have two settings
         // with the same title). So we need to use a combination of the title and the screenTitle.
-        StringBuilder sb = new StringBuilder(updatedTitle);
-        sb.append(screenTitle);
-        int docId = sb.toString().hashCode();
-
-        ContentValues values = new ContentValues();
-        values.put(IndexColumns.DOCID, docId);
-        values.put(IndexColumns.LOCALE, locale);
-        values.put(IndexColumns.DATA_RANK, rank);
-        values.put(IndexColumns.DATA_TITLE, updatedTitle);
-        values.put(IndexColumns.DATA_TITLE_NORMALIZED, normalizedTitle);
-        values.put(IndexColumns.DATA_SUMMARY_ON, updatedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, normalizedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_OFF, updatedSummaryOff);
-        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, normalizedSummaryOff);
-        values.put(IndexColumns.DATA_ENTRIES, entries);
-        values.put(IndexColumns.DATA_KEYWORDS, keywords);
-        values.put(IndexColumns.CLASS_NAME, className);
-        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
-        values.put(IndexColumns.INTENT_ACTION, intentAction);
-        values.put(IndexColumns.INTENT_TARGET_PACKAGE, intentTargetPackage);
-        values.put(IndexColumns.INTENT_TARGET_CLASS, intentTargetClass);
-        values.put(IndexColumns.ICON, iconResId);
-        values.put(IndexColumns.ENABLED, enabled);
-        values.put(IndexColumns.DATA_KEY_REF, key);
-        values.put(IndexColumns.USER_ID, userId);
-
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        final int docId = concatHashCode(updatedTitle, screenTitle);
+
+        final SQLiteStatement insert = ctx.getInsertStatement();
+        int index = 1;
+        insert.bindLong(index++, docId);
+        bindStringOrNull(insert, index++, ctx.locale);
+        insert.bindLong(index++, rank);
+        bindStringOrNull(insert, index++, updatedTitle);
+        bindStringOrNull(insert, index++, normalizedTitle);
+        bindStringOrNull(insert, index++, updatedSummaryOn);
+        bindStringOrNull(insert, index++, normalizedSummaryOn);
+        bindStringOrNull(insert, index++, updatedSummaryOff);
+        bindStringOrNull(insert, index++, normalizedSummaryOff);
+        bindStringOrNull(insert, index++, entries);
+        bindStringOrNull(insert, index++, keywords);
+        bindStringOrNull(insert, index++, className);
+        bindStringOrNull(insert, index++, screenTitle);
+        bindStringOrNull(insert, index++, intentAction);
+        bindStringOrNull(insert, index++, intentTargetPackage);
+        bindStringOrNull(insert, index++, intentTargetClass);
+        insert.bindLong(index++, iconResId);
+        insert.bindLong(index++, enabled ? 1 : 0);
+        bindStringOrNull(insert, index++, key);
+        insert.bindLong(index++, userId);
+
+        if (insert.executeInsert() == -1) {
+            throw new SQLException("Error inserting row for " + key + " in " + className);
+        }
+        ctx.rowCount++;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1145,6 +1360,205 @@ public class Index {
         }
    }
 
+    private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
+        Cursor cursor = null;
+        boolean result = false;
+        final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
+        sb.append(" = ");
+        DatabaseUtils.appendEscapedSQLString(sb, locale);
+        try {
+            // We care only for 1 row
+            cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
+                    sb.toString(), null, null, null, null, "1");
+            final int count = cursor.getCount();
+            result = (count >= 1);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    private boolean isLocaleComplete(String locale) {
+        return mContext.getSharedPreferences(SHARED_PREFS_TAG, Context.MODE_PRIVATE)
+                .getBoolean(PREF_KEY_COMPLETE_PREFIX + locale, false);
+    }
+
+    private void setLocaleComplete(String locale, boolean complete) {
+        mContext.getSharedPreferences(SHARED_PREFS_TAG, Context.MODE_PRIVATE).edit()
+                .putBoolean(PREF_KEY_COMPLETE_PREFIX + locale, complete).apply();
+    }
+
+    /**
+     * Writes the rows for the given data into the database and returns how many were written.
+     * The caller is responsible for the transaction.
+     */
+    int indexData(SQLiteDatabase database, String localeStr,
+            List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys) {
+        final IndexingContext ctx = new IndexingContext(database, localeStr, nonIndexableKeys);
+        try {
+            final int count = dataToUpdate.size();
+            for (int n = 0; n < count; n++) {
+                final SearchIndexableData data = dataToUpdate.get(n);
+                try {
+                    indexOneSearchIndexableData(ctx, data);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG,
+                            "Cannot index: " + data.className + " for locale: " + localeStr, e);
+                }
+            }
+        } finally {
+            ctx.close();
+        }
+        return ctx.rowCount;
+    }
+
+    private int indexInTransaction(SQLiteDatabase database, String localeStr,
+            List<SearchIndexableData> data, Map<String, List<String>> nonIndexableKeys) {
+        database.beginTransaction();
+        try {
+            final int rows = indexData(database, localeStr, data, nonIndexableKeys);
+            database.setTransactionSuccessful();
+            return rows;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Indexes everything for one locale in stages, so that search can be used before all the
+     * sources are indexed.
+     *
+     * The Settings data ranked by {@link Ranking#isPriorityRank(int)} is indexed first at the
+     * default thread priority, and search is made available as soon as it is committed. The rest
+     * of the Settings data and then the remote providers, which can be slow, are indexed at
+     * background priority with one transaction per batch. The task stops between batches if it
+     * is cancelled or the device is under load; the locale is then left incomplete and indexed
+     * again by the next {@link #update()}.
+     */
+    private class StagedUpdateTask extends AsyncTask<Void, Void, Void> {
+        private final String mLocaleStr = Locale.getDefault().toString();
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            final SQLiteDatabase database = getWritableDatabase();
+
+            if (isLocaleAlreadyIndexed(database, mLocaleStr)) {
+                if (isLocaleComplete(mLocaleStr)) {
+                    Log.d(LOG_TAG, "Locale '" + mLocaleStr + "' is already indexed");
+                    mIsAvailable.set(true);
+                    return null;
+                }
+            } else {
+                mIsAvailable.set(false);
+            }
+            setLocaleComplete(mLocaleStr, false);
+
+            final List<ResolveInfo> providers = getWellKnownProviders();
+            final Map<String, List<String>> nonIndexableKeys =
+                    new HashMap<String, List<String>>();
+            final List<SearchIndexableData> priority = new ArrayList<SearchIndexableData>();
+            final List<SearchIndexableData> deferred = new ArrayList<SearchIndexableData>();
+
+            // Stage 1: the top ranked Settings data, as fast as we can.
+            final long start = System.currentTimeMillis();
+            final long traceStart = SettingsTrace.begin();
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+            try {
+                final int count = providers.size();
+                for (int n = 0; n < count; n++) {
+                    final ProviderInfo info = providers.get(n).providerInfo;
+                    if (!mBaseAuthority.equals(info.authority)) {
+                        continue;
+                    }
+                    final List<SearchIndexableData> data = new ArrayList<SearchIndexableData>();
+                    addIndexablesFromRemoteProvider(info.packageName, info.authority, data);
+                    nonIndexableKeys.put(info.packageName,
+                            getNonIndexablesKeysFromRemoteProvider(info.packageName,
+                                    info.authority));
+                    final int dataCount = data.size();
+                    for (int i = 0; i < dataCount; i++) {
+                        final SearchIndexableData item = data.get(i);
+                        if (Ranking.isPriorityRank(item.rank)) {
+                            priority.add(item);
+                        } else {
+                            deferred.add(item);
+                        }
+                    }
+                }
+                indexInTransaction(database, mLocaleStr, priority, nonIndexableKeys);
+            } finally {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+            mIsAvailable.set(true);
+            SettingsTrace.end("Index.warmUp", mLocaleStr, traceStart);
+            Log.d(LOG_TAG, "Indexing " + priority.size() + " priority sources for locale '"
+                    + mLocaleStr + "' took " + (System.currentTimeMillis() - start) + " millis");
+
+            // Stage 2: the rest of the Settings data, in small batches.
+            final int deferredCount = deferred.size();
+            for (int n = 0; n < deferredCount; n += DEFERRED_BATCH_SIZE) {
+                if (shouldStop()) {
+                    return null;
+                }
+                final int end = Math.min(n + DEFERRED_BATCH_SIZE, deferredCount);
+                indexInTransaction(database, mLocaleStr, deferred.subList(n, end),
+                        nonIndexableKeys);
+            }
+
+            // Stage 3: the remote providers, one at a time.
+            final int count = providers.size();
+            for (int n = 0; n < count; n++) {
+                final ProviderInfo info = providers.get(n).providerInfo;
+                if (mBaseAuthority.equals(info.authority)) {
+                    continue;
+                }
+                if (shouldStop()) {
+                    return null;
+                }
+                final long traceProvider = SettingsTrace.begin();
+                final List<SearchIndexableData> data = new ArrayList<SearchIndexableData>();
+                if (!addIndexablesFromRemoteProvider(info.packageName, info.authority, data)) {
+                    continue;
+                }
+                nonIndexableKeys.put(info.packageName,
+                        getNonIndexablesKeysFromRemoteProvider(info.packageName, info.authority));
+                indexInTransaction(database, mLocaleStr, data, nonIndexableKeys);
+                SettingsTrace.end("Index.provider", info.authority, traceProvider);
+            }
+
+            setLocaleComplete(mLocaleStr, true);
+            Log.d(LOG_TAG, "Indexing locale '" + mLocaleStr + "' took "
+                    + (System.currentTimeMillis() - start) + " millis");
+            return null;
+        }
+
+        private boolean shouldStop() {
+            if (isCancelled()) {
+                Log.d(LOG_TAG, "Indexing locale '" + mLocaleStr + "' cancelled");
+                return true;
+            }
+            if (isDeviceUnderLoad()) {
+                Log.d(LOG_TAG, "Indexing locale '" + mLocaleStr + "' postponed");
+                return true;
+            }
+            return false;
+        }
+
+        private boolean isDeviceUnderLoad() {
+            final PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+            if (pm.isPowerSaveMode()) {
+                return true;
+            }
+            final ActivityManager am =
+                    (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+            final ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
+            am.getMemoryInfo(memInfo);
+            return memInfo.lowMemory;
+        }
+    }
+
     /**
      * A private class for updating the Index database
      */
@@ -1167,6 +1581,7 @@ public class Index {
             final List<SearchIndexableData> dataToUpdate = params[0].dataToUpdate;
             final List<SearchIndexableData> dataToDelete = params[0].dataToDelete;
             final Map<String, List<String>> nonIndexableKeys = params[0].nonIndexableKeys;
+            final Map<String, Set<String>> packagesToUpdate = params[0].packagesToUpdate;
 
             final boolean forceUpdate = params[0].forceUpdate;
 
@@ -1182,6 +1597,9 @@ public class Index {
                     processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
                             forceUpdate);
                 }
+                if (packagesToUpdate.size() > 0) {
+                    processPackagesToUpdate(database, localeStr, packagesToUpdate);
+                }
                 database.setTransactionSuccessful();
             } finally {
                 database.endTransaction();
@@ -1201,24 +1619,48 @@ public class Index {
 
             boolean result = false;
             final long current = System.currentTimeMillis();
+            final long traceStart = SettingsTrace.begin();
 
-            final int count = dataToUpdate.size();
-            for (int n = 0; n < count; n++) {
-                final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG,
-                            "Cannot index: " + data.className + " for locale: " + localeStr, e);
-                }
-            }
+            indexData(database, localeStr, dataToUpdate, nonIndexableKeys);
 
+            SettingsTrace.end("Index.update", localeStr, traceStart);
             final long now = System.currentTimeMillis();
             Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
                     (now - current) + " millis");
             return result;
         }
 
+        private void processPackagesToUpdate(SQLiteDatabase database, String localeStr,
+                Map<String, Set<String>> packagesToUpdate) {
+            final long current = System.currentTimeMillis();
+
+            for (Map.Entry<String, Set<String>> entry : packagesToUpdate.entrySet()) {
+                final String className = entry.getKey();
+                final Set<String> packageNames = entry.getValue();
+                for (String packageName : packageNames) {
+                    deletePackageRows(database, className, packageName);
+                }
+                final List<SearchIndexableData> data =
+                        getRawDataForPackages(className, packageNames);
+                indexData(database, localeStr, data, Collections.<String, List<String>>emptyMap());
+            }
+
+            final long now = System.currentTimeMillis();
+            Log.d(LOG_TAG, "Updating packages for locale '" + localeStr + "' took " +
+                    (now - current) + " millis");
+        }
+
+        private int deletePackageRows(SQLiteDatabase database, String className,
+                String packageName) {
+            // Component keys are "package/class"
+            final String prefix = packageName + "/";
+            final String whereClause = IndexColumns.CLASS_NAME + "=? AND substr("
+                    + IndexColumns.DATA_KEY_REF + ", 1, " + prefix.length() + ")=?";
+            final String[] whereArgs = new String[] { className, prefix };
+
+            return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
+        }
+
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToDelete) {
 
@@ -1255,26 +1697,6 @@ public class Index {
 
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
-
-        private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
-            Cursor cursor = null;
-            boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
-            try {
-                // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
-                final int count = cursor.getCount();
-                result = (count >= 1);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
-            return result;
-        }
     }
 
     /**
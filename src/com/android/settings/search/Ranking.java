@@ -77,6 +77,9 @@ public final class Ranking {
     public static final int RANK_DEVELOPEMENT = 20;
     public static final int RANK_DEVICE_INFO = 21;
 
+    // Settings ranked up to this one are indexed before search is made available
+    public static final int RANK_LAST_PRIORITY = RANK_NOTIFICATIONS;
+
     public static final int RANK_UNDEFINED = -1;
     public static final int RANK_OTHERS = 1024;
     public static final int BASE_RANK_DEFAULT = 2048;
@@ -168,6 +171,10 @@ public final class Ranking {
         return (rank != null) ? (int) rank: RANK_OTHERS;
     }
 
+    public static boolean isPriorityRank(int rank) {
+        return rank >= RANK_WIFI && rank <= RANK_LAST_PRIORITY;
+    }
+
     public static int getBaseRankForAuthority(String authority) {
         synchronized (sBaseRankMap) {
             Integer base = sBaseRankMap.get(authority);
@@ -28,6 +28,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.PackageItemInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
@@ -57,7 +58,10 @@ import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.Switch;
 
+import com.android.settings.AppIconCache;
+import com.android.settings.PackageClassifier;
 import com.android.settings.R;
+import com.android.settings.SettingsExecutor;
 import com.android.settings.SettingsPreferenceFragment;
 import com.android.settings.Utils;
 import com.android.settings.drawable.CircleFramedDrawable;
@@ -71,6 +75,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AppRestrictionsFragment extends SettingsPreferenceFragment implements
         OnPreferenceChangeListener, OnClickListener, OnPreferenceClickListener {
@@ -85,12 +95,17 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
     protected UserManager mUserManager;
     protected IPackageManager mIPm;
     protected UserHandle mUser;
-    private PackageInfo mSysPackageInfo;
+    private PackageClassifier mClassifier;
 
     private PreferenceGroup mAppList;
 
     private static final int MAX_APP_RESTRICTIONS = 100;
 
+    /** Maximum number of threads resolving app labels. */
+    private static final int MAX_LABEL_THREADS = 4;
+    /** Number of labels a thread resolves before taking the next batch. */
+    private static final int LABEL_BATCH_SIZE = 16;
+
     private static final String DELIMITER = ";";
 
     /** Key for extra passed in from calling fragment for the userId of the user being edited */
@@ -114,6 +129,8 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
     private List<SelectableAppInfo> mVisibleApps;
     private List<ApplicationInfo> mUserApps;
     private AsyncTask mAppLoadingTask;
+    /** Discovery started by this fragment, abandoned once it is destroyed. */
+    private final SettingsExecutor.Scope mScope = new SettingsExecutor.Scope();
 
     private BroadcastReceiver mUserBackgrounding = new BroadcastReceiver() {
         @Override
@@ -140,13 +157,22 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         String packageName;
         CharSequence appName;
         CharSequence activityName;
-        Drawable icon;
+        ApplicationInfo appInfo;
+        /** The launcher or widget activity, or null for apps listed by package. */
+        ActivityInfo activityInfo;
         SelectableAppInfo masterEntry;
 
+        /**
+         * Returns where the row's icon is loaded from once the row is shown.
+         */
+        PackageItemInfo getIconInfo() {
+            return activityInfo != null ? activityInfo : appInfo;
+        }
+
         @Override
         public String toString() {
             return packageName + ": appName=" + appName + "; activityName=" + activityName
-                    + "; icon=" + icon + "; masterEntry=" + masterEntry;
+                    + "; masterEntry=" + masterEntry;
         }
     }
 
@@ -157,6 +183,9 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         private boolean panelOpen;
         private boolean immutable;
         private List<Preference> mChildren = new ArrayList<Preference>();
+        private PackageItemInfo iconInfo;
+        private ApplicationInfo iconAppInfo;
+        private boolean iconRequested;
 
         AppRestrictionsPreference(Context context, OnClickListener listener) {
             super(context);
@@ -206,10 +235,44 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
             return mChildren;
         }
 
+        /**
+         * Sets where the icon is loaded from. It is only loaded when the row is first bound,
+         * so apps that are never scrolled into view don't pay for it.
+         */
+        void setIconInfo(PackageItemInfo info, ApplicationInfo appInfo) {
+            iconInfo = info;
+            iconAppInfo = appInfo;
+            iconRequested = false;
+        }
+
+        private void loadIcon() {
+            final PackageItemInfo info = iconInfo;
+            final ApplicationInfo appInfo = iconAppInfo;
+            final AppIconCache cache = AppIconCache.getInstance(getContext());
+            new AsyncTask<Void, Void, Drawable>() {
+                @Override
+                protected Drawable doInBackground(Void... params) {
+                    return cache.getIcon(info, appInfo);
+                }
+
+                @Override
+                protected void onPostExecute(Drawable icon) {
+                    if (info == iconInfo) {
+                        setIcon(icon);
+                    }
+                }
+            }.executeOnExecutor(SettingsExecutor.get(SettingsExecutor.LANE_IO));
+        }
+
         @Override
         protected void onBindView(View view) {
             super.onBindView(view);
 
+            if (iconInfo != null && !iconRequested) {
+                iconRequested = true;
+                loadIcon();
+            }
+
             View appRestrictionsSettings = view.findViewById(R.id.app_restrictions_settings);
             appRestrictionsSettings.setVisibility(hasSettings ? View.VISIBLE : View.GONE);
             view.findViewById(R.id.settings_divider).setVisibility(
@@ -260,12 +323,7 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         mIPm = IPackageManager.Stub.asInterface(ServiceManager.getService("package"));
         mUserManager = (UserManager) getActivity().getSystemService(Context.USER_SERVICE);
         mRestrictedProfile = mUserManager.getUserInfo(mUser.getIdentifier()).isRestricted();
-        try {
-            mSysPackageInfo = mPackageManager.getPackageInfo("android",
-                PackageManager.GET_SIGNATURES);
-        } catch (NameNotFoundException nnfe) {
-            // ?
-        }
+        mClassifier = PackageClassifier.getInstance(getActivity());
         addPreferencesFromResource(R.xml.app_restrictions);
         mAppList = getAppPreferenceGroup();
     }
@@ -301,14 +359,20 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         getActivity().unregisterReceiver(mUserBackgrounding);
         getActivity().unregisterReceiver(mPackageObserver);
         if (mAppListChanged) {
-            new Thread() {
+            SettingsExecutor.execute(SettingsExecutor.LANE_BINDER, new Runnable() {
                 public void run() {
                     applyUserAppsStates();
                 }
-            }.start();
+            });
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mScope.cancel();
+    }
+
     private void onPackageChanged(Intent intent) {
         String action = intent.getAction();
         String packageName = intent.getData().getSchemeSpecificPart();
@@ -410,21 +474,6 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         }
     }
 
-    private boolean isSystemPackage(String packageName) {
-        try {
-            final PackageInfo pi = mPackageManager.getPackageInfo(packageName, 0);
-            if (pi.applicationInfo == null) return false;
-            final int flags = pi.applicationInfo.flags;
-            if ((flags & ApplicationInfo.FLAG_SYSTEM) != 0
-                    || (flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) != 0) {
-                return true;
-            }
-        } catch (NameNotFoundException nnfe) {
-            // Missing package?
-        }
-        return false;
-    }
-
     /**
      * Find all pre-installed input methods that are marked as default
      * and add them to an exclusion list so that they aren't
@@ -441,7 +490,7 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         List<InputMethodInfo> imis = imm.getInputMethodList();
         for (InputMethodInfo imi : imis) {
             try {
-                if (imi.isDefault(context) && isSystemPackage(imi.getPackageName())) {
+                if (imi.isDefault(context) && mClassifier.isSystemApp(imi.getPackageName())) {
                     excludePackages.add(imi.getPackageName());
                 }
             } catch (Resources.NotFoundException rnfe) {
@@ -482,12 +531,11 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
                             continue;
                         }
                     }
+                    // Labels are resolved later for all sources at once.
                     SelectableAppInfo info = new SelectableAppInfo();
                     info.packageName = app.activityInfo.packageName;
-                    info.appName = app.activityInfo.applicationInfo.loadLabel(pm);
-                    info.icon = app.activityInfo.loadIcon(pm);
-                    info.activityName = app.activityInfo.loadLabel(pm);
-                    if (info.activityName == null) info.activityName = info.appName;
+                    info.appInfo = app.activityInfo.applicationInfo;
+                    info.activityInfo = app.activityInfo;
 
                     visibleApps.add(info);
                 }
@@ -529,20 +577,140 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         final Context context = getActivity();
         if (context == null) return;
         final PackageManager pm = mPackageManager;
-        final IPackageManager ipm = mIPm;
+
+        // Classify every package in one call instead of one per app below.
+        mClassifier.preload();
 
         final HashSet<String> excludePackages = new HashSet<String>();
         addSystemImes(excludePackages);
 
-        // Add launchers
-        Intent launcherIntent = new Intent(Intent.ACTION_MAIN);
-        launcherIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-        addSystemApps(mVisibleApps, launcherIntent, excludePackages);
+        // The discovery sources are independent, so query them all at the same time.
+        final FutureTask<List<SelectableAppInfo>> launchers = startDiscovery(
+                new Callable<List<SelectableAppInfo>>() {
+            @Override
+            public List<SelectableAppInfo> call() {
+                // Add launchers
+                final List<SelectableAppInfo> result = new ArrayList<SelectableAppInfo>();
+                Intent launcherIntent = new Intent(Intent.ACTION_MAIN);
+                launcherIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+                addSystemApps(result, launcherIntent, excludePackages);
+                return result;
+            }
+        });
+        final FutureTask<List<SelectableAppInfo>> widgets = startDiscovery(
+                new Callable<List<SelectableAppInfo>>() {
+            @Override
+            public List<SelectableAppInfo> call() {
+                // Add widgets
+                final List<SelectableAppInfo> result = new ArrayList<SelectableAppInfo>();
+                Intent widgetIntent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
+                addSystemApps(result, widgetIntent, excludePackages);
+                return result;
+            }
+        });
+        final HashSet<String> unsupportedPackages = new HashSet<String>();
+        final FutureTask<List<SelectableAppInfo>> installed = startDiscovery(
+                new Callable<List<SelectableAppInfo>>() {
+            @Override
+            public List<SelectableAppInfo> call() {
+                return getInstalledApps(unsupportedPackages);
+            }
+        });
+        final FutureTask<List<SelectableAppInfo>> userApps = startDiscovery(
+                new Callable<List<SelectableAppInfo>>() {
+            @Override
+            public List<SelectableAppInfo> call() {
+                return getUserApps();
+            }
+        });
+
+        mVisibleApps.addAll(getDiscoveryResult(launchers));
+        mVisibleApps.addAll(getDiscoveryResult(widgets));
+
+        // Downloaded apps are listed by package for the owner and again for the user being
+        // edited; merge them so each label is only loaded once.
+        final HashSet<String> packagesAdded = new HashSet<String>();
+        for (SelectableAppInfo info : getDiscoveryResult(installed)) {
+            if (packagesAdded.add(info.packageName)) {
+                mVisibleApps.add(info);
+            }
+        }
+        for (SelectableAppInfo info : getDiscoveryResult(userApps)) {
+            if (packagesAdded.add(info.packageName)) {
+                mVisibleApps.add(info);
+            }
+        }
+
+        // System apps that require an account and don't see restricted accounts are marked
+        // for removal. They might get shown in the UI if they have an icon but will still be
+        // marked as false and immutable.
+        for (String packageName : unsupportedPackages) {
+            mSelectedPackages.put(packageName, false);
+        }
+
+        resolveLabels(mVisibleApps, pm);
+
+        // Sort the list of visible apps
+        Collections.sort(mVisibleApps, new AppLabelComparator());
+
+        // Remove dupes
+        Set<String> dedupPackageSet = new HashSet<String>();
+        for (int i = mVisibleApps.size() - 1; i >= 0; i--) {
+            SelectableAppInfo info = mVisibleApps.get(i);
+            if (DEBUG) Log.i(TAG, info.toString());
+            String both = info.packageName + "+" + info.activityName;
+            if (!TextUtils.isEmpty(info.packageName)
+                    && !TextUtils.isEmpty(info.activityName)
+                    && dedupPackageSet.contains(both)) {
+                mVisibleApps.remove(i);
+            } else {
+                dedupPackageSet.add(both);
+            }
+        }
+
+        // Establish master/slave relationship for entries that share a package name
+        HashMap<String,SelectableAppInfo> packageMap = new HashMap<String,SelectableAppInfo>();
+        for (SelectableAppInfo info : mVisibleApps) {
+            if (packageMap.containsKey(info.packageName)) {
+                info.masterEntry = packageMap.get(info.packageName);
+            } else {
+                packageMap.put(info.packageName, info);
+            }
+        }
+    }
 
-        // Add widgets
-        Intent widgetIntent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
-        addSystemApps(mVisibleApps, widgetIntent, excludePackages);
+    private FutureTask<List<SelectableAppInfo>> startDiscovery(
+            Callable<List<SelectableAppInfo>> source) {
+        return mScope.submit(SettingsExecutor.LANE_BINDER,
+                new FutureTask<List<SelectableAppInfo>>(source));
+    }
+
+    private static List<SelectableAppInfo> getDiscoveryResult(
+            FutureTask<List<SelectableAppInfo>> task) {
+        try {
+            return task.get();
+        } catch (CancellationException e) {
+            // The fragment is gone; nobody will see the list.
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while discovering apps", e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            Log.w(TAG, "Failed to discover apps", cause);
+        }
+        return new ArrayList<SelectableAppInfo>();
+    }
 
+    /**
+     * Returns the downloaded apps installed for the owner and collects the system apps that
+     * can't be used in a restricted profile into {@code unsupportedPackages}.
+     */
+    private List<SelectableAppInfo> getInstalledApps(Set<String> unsupportedPackages) {
+        final PackageManager pm = mPackageManager;
+        final List<SelectableAppInfo> result = new ArrayList<SelectableAppInfo>();
         List<ApplicationInfo> installedApps = pm.getInstalledApplications(
                 PackageManager.GET_UNINSTALLED_PACKAGES);
         for (ApplicationInfo app : installedApps) {
@@ -554,29 +722,31 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
                 // Downloaded app
                 SelectableAppInfo info = new SelectableAppInfo();
                 info.packageName = app.packageName;
-                info.appName = app.loadLabel(pm);
-                info.activityName = info.appName;
-                info.icon = app.loadIcon(pm);
-                mVisibleApps.add(info);
-            } else {
+                info.appInfo = app;
+                result.add(info);
+            } else if (mRestrictedProfile) {
                 try {
                     PackageInfo pi = pm.getPackageInfo(app.packageName, 0);
-                    // If it's a system app that requires an account and doesn't see restricted
-                    // accounts, mark for removal. It might get shown in the UI if it has an icon
-                    // but will still be marked as false and immutable.
-                    if (mRestrictedProfile
-                            && pi.requiredAccountType != null && pi.restrictedAccountType == null) {
-                        mSelectedPackages.put(app.packageName, false);
+                    if (pi.requiredAccountType != null && pi.restrictedAccountType == null) {
+                        unsupportedPackages.add(app.packageName);
                     }
                 } catch (NameNotFoundException re) {
                 }
             }
         }
+        return result;
+    }
+
+    /**
+     * Returns the downloaded apps already installed for the user being edited.
+     */
+    private List<SelectableAppInfo> getUserApps() {
+        final List<SelectableAppInfo> result = new ArrayList<SelectableAppInfo>();
 
         // Get the list of apps already installed for the user
         mUserApps = null;
         try {
-            mUserApps = ipm.getInstalledApplications(
+            mUserApps = mIPm.getInstalledApplications(
                     PackageManager.GET_UNINSTALLED_PACKAGES, mUser.getIdentifier()).getList();
         } catch (RemoteException re) {
         }
@@ -590,46 +760,68 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
                     // Downloaded app
                     SelectableAppInfo info = new SelectableAppInfo();
                     info.packageName = app.packageName;
-                    info.appName = app.loadLabel(pm);
-                    info.activityName = info.appName;
-                    info.icon = app.loadIcon(pm);
-                    mVisibleApps.add(info);
+                    info.appInfo = app;
+                    result.add(info);
                 }
             }
         }
+        return result;
+    }
 
-        // Sort the list of visible apps
-        Collections.sort(mVisibleApps, new AppLabelComparator());
+    /**
+     * Loads the app and activity labels of {@code apps} on up to {@link #MAX_LABEL_THREADS}
+     * threads, each taking {@link #LABEL_BATCH_SIZE} apps at a time.
+     */
+    private static void resolveLabels(final List<SelectableAppInfo> apps,
+            final PackageManager pm) {
+        final int threads = Math.min(MAX_LABEL_THREADS,
+                (apps.size() + LABEL_BATCH_SIZE - 1) / LABEL_BATCH_SIZE);
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            SettingsExecutor.execute(SettingsExecutor.LANE_BINDER, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int start;
+                        while ((start = next.getAndAdd(LABEL_BATCH_SIZE)) < apps.size()) {
+                            final int end = Math.min(start + LABEL_BATCH_SIZE, apps.size());
+                            for (int i = start; i < end; i++) {
+                                resolveLabel(apps.get(i), pm);
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while loading app labels", e);
+            Thread.currentThread().interrupt();
+        }
 
-        // Remove dupes
-        Set<String> dedupPackageSet = new HashSet<String>();
-        for (int i = mVisibleApps.size() - 1; i >= 0; i--) {
-            SelectableAppInfo info = mVisibleApps.get(i);
-            if (DEBUG) Log.i(TAG, info.toString());
-            String both = info.packageName + "+" + info.activityName;
-            if (!TextUtils.isEmpty(info.packageName)
-                    && !TextUtils.isEmpty(info.activityName)
-                    && dedupPackageSet.contains(both)) {
-                mVisibleApps.remove(i);
-            } else {
-                dedupPackageSet.add(both);
+        // Don't leave labels missing if we were interrupted.
+        for (int i = 0, N = apps.size(); i < N; i++) {
+            final SelectableAppInfo info = apps.get(i);
+            if (info.activityName == null) {
+                resolveLabel(info, pm);
             }
         }
+    }
 
-        // Establish master/slave relationship for entries that share a package name
-        HashMap<String,SelectableAppInfo> packageMap = new HashMap<String,SelectableAppInfo>();
-        for (SelectableAppInfo info : mVisibleApps) {
-            if (packageMap.containsKey(info.packageName)) {
-                info.masterEntry = packageMap.get(info.packageName);
-            } else {
-                packageMap.put(info.packageName, info);
-            }
+    private static void resolveLabel(SelectableAppInfo info, PackageManager pm) {
+        info.appName = info.appInfo.loadLabel(pm);
+        if (info.activityInfo != null) {
+            info.activityName = info.activityInfo.loadLabel(pm);
         }
+        if (info.activityName == null) info.activityName = info.appName;
     }
 
     private boolean isPlatformSigned(PackageInfo pi) {
-        return (pi != null && pi.signatures != null &&
-                    mSysPackageInfo.signatures[0].equals(pi.signatures[0]));
+        return pi != null && mClassifier.isPlatformSigned(pi.packageName);
     }
 
     private boolean isAppEnabledForUser(PackageInfo pi) {
@@ -661,7 +853,9 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
             final boolean isSettingsApp = packageName.equals(context.getPackageName());
             AppRestrictionsPreference p = new AppRestrictionsPreference(context, this);
             final boolean hasSettings = resolveInfoListHasPackage(receivers, packageName);
-            p.setIcon(app.icon != null ? app.icon.mutate() : null);
+            // Placeholder until the row is shown and its icon is loaded.
+            p.setIcon(R.drawable.empty_icon);
+            p.setIconInfo(app.getIconInfo(), app.appInfo);
             p.setChecked(false);
             p.setTitle(app.activityName);
             if (app.masterEntry != null) {
@@ -676,8 +870,7 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
             PackageInfo pi = null;
             try {
                 pi = ipm.getPackageInfo(packageName,
-                        PackageManager.GET_UNINSTALLED_PACKAGES
-                        | PackageManager.GET_SIGNATURES, userId);
+                        PackageManager.GET_UNINSTALLED_PACKAGES, userId);
             } catch (RemoteException e) {
             }
             if (pi == null) {
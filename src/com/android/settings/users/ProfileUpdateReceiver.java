@@ -24,6 +24,7 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 
+import com.android.settings.SettingsExecutor;
 import com.android.settings.Utils;
 
 
@@ -37,12 +38,12 @@ public class ProfileUpdateReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(final Context context, Intent intent) {
         // Profile changed, lets get the photo and write to user manager
-        new Thread() {
+        SettingsExecutor.execute(SettingsExecutor.LANE_IO, new Runnable() {
             public void run() {
                 Utils.copyMeProfilePhoto(context, null);
                 copyProfileName(context);
             }
-        }.start();
+        });
     }
 
     static void copyProfileName(Context context) {
@@ -63,6 +63,7 @@ import com.android.settings.OwnerInfoSettings;
 import com.android.settings.R;
 import com.android.settings.SelectableEditTextPreference;
 import com.android.settings.SettingsActivity;
+import com.android.settings.SettingsExecutor;
 import com.android.settings.SettingsPreferenceFragment;
 import com.android.settings.Utils;
 import com.android.settings.drawable.CircleFramedDrawable;
@@ -639,14 +640,15 @@ public class UserSettings extends SettingsPreferenceFragment
         if (mRemovingUserId == UserHandle.myUserId()) {
             removeThisUser();
         } else {
-            new Thread() {
+            // Not tied to the fragment: the removal must finish even if the user leaves.
+            SettingsExecutor.execute(SettingsExecutor.LANE_BINDER, new Runnable() {
                 public void run() {
                     synchronized (mUserLock) {
                         mUserManager.removeUser(mRemovingUserId);
                         mHandler.sendEmptyMessage(MESSAGE_UPDATE_LIST);
                     }
                 }
-            }.start();
+            });
         }
     }
 
@@ -664,7 +666,7 @@ public class UserSettings extends SettingsPreferenceFragment
         synchronized (mUserLock) {
             mAddingUser = true;
             //updateUserList();
-            new Thread() {
+            SettingsExecutor.execute(SettingsExecutor.LANE_BINDER, new Runnable() {
                 public void run() {
                     UserInfo user = null;
                     // Could take a few seconds
@@ -685,7 +687,7 @@ public class UserSettings extends SettingsPreferenceFragment
                         }
                     }
                 }
-            }.start();
+            });
         }
     }
 
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.vpn2;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.IConnectivityManager;
+import android.os.Handler;
+import android.os.RemoteException;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.net.LegacyVpnInfo;
+
+/**
+ * Reports legacy VPN state transitions to {@link VpnSettings}.
+ *
+ * <p>There is no callback for legacy VPN state, but the transitions that settle it all change
+ * connectivity: the VPN network comes up once connected and goes away when disconnected. The
+ * monitor re-reads {@link LegacyVpnInfo} on {@link ConnectivityManager#CONNECTIVITY_ACTION}
+ * and only polls while a connection is being set up, backing off from
+ * {@link #MIN_POLL_INTERVAL_MS} to {@link #MAX_POLL_INTERVAL_MS}. In any settled state it does
+ * no work at all until the next broadcast.
+ */
+class LegacyVpnStateMonitor {
+    private static final String TAG = "LegacyVpnStateMonitor";
+
+    static final long MIN_POLL_INTERVAL_MS = 250;
+    static final long MAX_POLL_INTERVAL_MS = 2000;
+
+    /**
+     * Where the current state is read from. Tests can supply a local stand-in instead of
+     * the connectivity service.
+     */
+    interface Source {
+        LegacyVpnInfo getLegacyVpnInfo() throws RemoteException;
+    }
+
+    interface Callback {
+        /**
+         * Called on the monitor's handler with the first state read after
+         * {@link LegacyVpnStateMonitor#start}, then whenever the connecting VPN or its state
+         * changes. {@code info} is {@code null} when no legacy VPN is active.
+         */
+        void onLegacyVpnInfoChanged(LegacyVpnInfo info);
+    }
+
+    static Source fromService(final IConnectivityManager service) {
+        return new Source() {
+            @Override
+            public LegacyVpnInfo getLegacyVpnInfo() throws RemoteException {
+                return service.getLegacyVpnInfo();
+            }
+        };
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Source mSource;
+    private final Callback mCallback;
+
+    private boolean mStarted;
+    // Set by start(), so the first read is reported even if it matches the last one before
+    // stop(): the callback may have missed changes in between.
+    private boolean mReportNext;
+    private LegacyVpnInfo mInfo;
+    private long mPollInterval;
+
+    private final Runnable mPoll = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // The sticky broadcast delivered on registration carries nothing new, start()
+            // has just read the state.
+            if (isInitialStickyBroadcast()) {
+                return;
+            }
+            refresh();
+        }
+    };
+
+    LegacyVpnStateMonitor(Context context, Handler handler, Source source, Callback callback) {
+        mContext = context;
+        mHandler = handler;
+        mSource = source;
+        mCallback = callback;
+    }
+
+    void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mContext.registerReceiver(mReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION), null, mHandler);
+        mInfo = null;
+        mReportNext = true;
+        mPollInterval = 0;
+        refresh();
+    }
+
+    void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mContext.unregisterReceiver(mReceiver);
+        mHandler.removeCallbacks(mPoll);
+    }
+
+    /**
+     * Re-reads the state now, e.g. right after the user started or stopped a VPN, and starts
+     * polling again if it is in transition.
+     */
+    void refresh() {
+        if (!mStarted) {
+            return;
+        }
+        mHandler.removeCallbacks(mPoll);
+
+        LegacyVpnInfo info = null;
+        try {
+            info = mSource.getLegacyVpnInfo();
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to read legacy VPN state", e);
+        }
+
+        if (mReportNext || !isSameState(mInfo, info)) {
+            mReportNext = false;
+            mInfo = info;
+            mCallback.onLegacyVpnInfoChanged(info);
+        }
+
+        if (isInTransition(info)) {
+            mPollInterval = (mPollInterval == 0) ? MIN_POLL_INTERVAL_MS
+                    : Math.min(mPollInterval * 2, MAX_POLL_INTERVAL_MS);
+            mHandler.postDelayed(mPoll, mPollInterval);
+        } else {
+            mPollInterval = 0;
+        }
+    }
+
+    /**
+     * Returns the state last reported to the callback.
+     */
+    LegacyVpnInfo getInfo() {
+        return mInfo;
+    }
+
+    /**
+     * Returns true while the monitor is polling a connection that is being set up.
+     */
+    boolean isPolling() {
+        return mPollInterval != 0;
+    }
+
+    static boolean isInTransition(LegacyVpnInfo info) {
+        return info != null && (info.state == LegacyVpnInfo.STATE_INITIALIZING
+                || info.state == LegacyVpnInfo.STATE_CONNECTING);
+    }
+
+    private static boolean isSameState(LegacyVpnInfo a, LegacyVpnInfo b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.state == b.state && TextUtils.equals(a.key, b.key);
+    }
+}
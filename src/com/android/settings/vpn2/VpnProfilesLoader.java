@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.vpn2;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.security.Credentials;
+import android.security.KeyStore;
+
+import com.android.internal.net.VpnProfile;
+import com.android.internal.util.ArrayUtils;
+import com.google.android.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the VPN profiles saved in {@link KeyStore}, together with the key of the always-on
+ * profile. Each profile is a separate keystore read and decrypt, so this is kept off the main
+ * thread.
+ */
+public class VpnProfilesLoader extends AsyncTaskLoader<VpnProfilesLoader.Result> {
+
+    public static final class Result {
+        public final List<VpnProfile> profiles;
+        /** Key of the always-on VPN profile, or {@code null} if there is none. */
+        public final String lockdownKey;
+
+        Result(List<VpnProfile> profiles, String lockdownKey) {
+            this.profiles = profiles;
+            this.lockdownKey = lockdownKey;
+        }
+    }
+
+    private final KeyStore mKeyStore;
+    private final int[] mExcludeTypes;
+
+    private Result mResult;
+
+    public VpnProfilesLoader(Context context, KeyStore keyStore, int... excludeTypes) {
+        super(context);
+        mKeyStore = keyStore;
+        mExcludeTypes = excludeTypes;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+        if (takeContentChanged() || mResult == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+        mResult = null;
+    }
+
+    @Override
+    public void deliverResult(Result result) {
+        if (isReset()) {
+            return;
+        }
+        mResult = result;
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
+    }
+
+    @Override
+    public Result loadInBackground() {
+        final byte[] lockdownKey = mKeyStore.get(Credentials.LOCKDOWN_VPN);
+        return new Result(loadVpnProfiles(mKeyStore, mExcludeTypes),
+                lockdownKey == null ? null : new String(lockdownKey));
+    }
+
+    static List<VpnProfile> loadVpnProfiles(KeyStore keyStore, int... excludeTypes) {
+        final ArrayList<VpnProfile> result = Lists.newArrayList();
+        final String[] keys = keyStore.saw(Credentials.VPN);
+        if (keys != null) {
+            for (String key : keys) {
+                final VpnProfile profile = VpnProfile.decode(
+                        key, keyStore.get(Credentials.VPN + key));
+                if (profile != null && !ArrayUtils.contains(excludeTypes, profile.type)) {
+                    result.add(profile);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -19,14 +19,15 @@ package com.android.settings.vpn2;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
+import android.app.LoaderManager.LoaderCallbacks;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Loader;
 import android.content.res.Resources;
 import android.net.ConnectivityManager;
 import android.net.IConnectivityManager;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
 import android.os.UserManager;
@@ -55,17 +56,15 @@ import android.widget.Toast;
 import com.android.internal.net.LegacyVpnInfo;
 import com.android.internal.net.VpnConfig;
 import com.android.internal.net.VpnProfile;
-import com.android.internal.util.ArrayUtils;
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
 import com.google.android.collect.Lists;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
 public class VpnSettings extends SettingsPreferenceFragment implements
-        Handler.Callback, Preference.OnPreferenceClickListener,
+        LegacyVpnStateMonitor.Callback, Preference.OnPreferenceClickListener,
         DialogInterface.OnClickListener, DialogInterface.OnDismissListener {
     private static final String TAG = "VpnSettings";
 
@@ -73,6 +72,8 @@ public class VpnSettings extends SettingsPreferenceFragment implements
 
     private static final String EXTRA_PICK_LOCKDOWN = "android.net.vpn.PICK_LOCKDOWN";
 
+    private static final int LOADER_PROFILES = 1;
+
     // TODO: migrate to using DialogFragment when editing
 
     private final IConnectivityManager mService = IConnectivityManager.Stub
@@ -83,7 +84,8 @@ public class VpnSettings extends SettingsPreferenceFragment implements
     private HashMap<String, VpnPreference> mPreferences = new HashMap<String, VpnPreference>();
     private VpnDialog mDialog;
 
-    private Handler mUpdater;
+    private LegacyVpnStateMonitor mStateMonitor;
+    private boolean mProfilesLoaded;
     private LegacyVpnInfo mInfo;
     private UserManager mUm;
 
@@ -205,18 +207,9 @@ public class VpnSettings extends SettingsPreferenceFragment implements
 
         // Currently we are the only user of profiles in KeyStore.
         // Assuming KeyStore and KeyGuard do the right thing, we can
-        // safely cache profiles in the memory.
-        if (mPreferences.size() == 0) {
-            PreferenceGroup group = getPreferenceScreen();
-
-            final Context context = getActivity();
-            final List<VpnProfile> profiles = loadVpnProfiles(mKeyStore);
-            for (VpnProfile profile : profiles) {
-                final VpnPreference pref = new VpnPreference(context, profile);
-                pref.setOnPreferenceClickListener(this);
-                mPreferences.put(profile.key, pref);
-                group.addPreference(pref);
-            }
+        // safely cache profiles in the memory. They are read once, in the background.
+        if (!mProfilesLoaded) {
+            getLoaderManager().initLoader(LOADER_PROFILES, null, mProfilesCallbacks);
         }
 
         // Show the dialog if there is one.
@@ -226,10 +219,11 @@ public class VpnSettings extends SettingsPreferenceFragment implements
         }
 
         // Start monitoring.
-        if (mUpdater == null) {
-            mUpdater = new Handler(this);
+        if (mStateMonitor == null) {
+            mStateMonitor = new LegacyVpnStateMonitor(getActivity(), new Handler(),
+                    LegacyVpnStateMonitor.fromService(mService), this);
         }
-        mUpdater.sendEmptyMessage(0);
+        mStateMonitor.start();
 
         // Register for context menu. Hmmm, getListView() is hidden?
         registerForContextMenu(getListView());
@@ -243,6 +237,10 @@ public class VpnSettings extends SettingsPreferenceFragment implements
             return;
         }
 
+        if (mStateMonitor != null) {
+            mStateMonitor.stop();
+        }
+
         // Hide the dialog if there is one.
         if (mDialog != null) {
             mDialog.setOnDismissListener(null);
@@ -375,33 +373,61 @@ public class VpnSettings extends SettingsPreferenceFragment implements
     }
 
     @Override
-    public boolean handleMessage(Message message) {
-        mUpdater.removeMessages(0);
+    public void onLegacyVpnInfoChanged(LegacyVpnInfo info) {
+        if (mInfo != null) {
+            VpnPreference preference = mPreferences.get(mInfo.key);
+            if (preference != null) {
+                preference.update(-1);
+            }
+            mInfo = null;
+        }
+        if (info != null) {
+            VpnPreference preference = mPreferences.get(info.key);
+            if (preference != null) {
+                preference.update(info.state);
+                mInfo = info;
+            }
+        }
+    }
 
-        if (isResumed()) {
-            try {
-                LegacyVpnInfo info = mService.getLegacyVpnInfo();
-                if (mInfo != null) {
-                    VpnPreference preference = mPreferences.get(mInfo.key);
-                    if (preference != null) {
-                        preference.update(-1);
-                    }
-                    mInfo = null;
-                }
-                if (info != null) {
-                    VpnPreference preference = mPreferences.get(info.key);
-                    if (preference != null) {
-                        preference.update(info.state);
-                        mInfo = info;
-                    }
+    private final LoaderCallbacks<VpnProfilesLoader.Result> mProfilesCallbacks =
+            new LoaderCallbacks<VpnProfilesLoader.Result>() {
+        @Override
+        public Loader<VpnProfilesLoader.Result> onCreateLoader(int id, Bundle args) {
+            return new VpnProfilesLoader(getActivity(), mKeyStore);
+        }
+
+        @Override
+        public void onLoadFinished(Loader<VpnProfilesLoader.Result> loader,
+                VpnProfilesLoader.Result data) {
+            if (mProfilesLoaded) {
+                return;
+            }
+            mProfilesLoaded = true;
+
+            final PreferenceGroup group = getPreferenceScreen();
+            final Context context = getActivity();
+            for (VpnProfile profile : data.profiles) {
+                // A profile may already have been added from the dialog while loading.
+                if (mPreferences.containsKey(profile.key)) {
+                    continue;
                 }
-            } catch (Exception e) {
-                // ignore
+                final VpnPreference pref = new VpnPreference(context, profile);
+                pref.setOnPreferenceClickListener(VpnSettings.this);
+                mPreferences.put(profile.key, pref);
+                group.addPreference(pref);
+            }
+
+            // The state may have been reported before the profile it belongs to was shown.
+            if (mStateMonitor != null && mInfo == null) {
+                onLegacyVpnInfoChanged(mStateMonitor.getInfo());
             }
-            mUpdater.sendEmptyMessageDelayed(0, 1000);
         }
-        return true;
-    }
+
+        @Override
+        public void onLoaderReset(Loader<VpnProfilesLoader.Result> loader) {
+        }
+    };
 
     private void connect(VpnProfile profile) throws Exception {
         try {
@@ -409,6 +435,8 @@ public class VpnSettings extends SettingsPreferenceFragment implements
         } catch (IllegalStateException e) {
             Toast.makeText(getActivity(), R.string.vpn_no_network, Toast.LENGTH_LONG).show();
         }
+        // Poll while the new connection is being set up.
+        refreshState();
     }
 
     private void disconnect(String key) {
@@ -418,6 +446,13 @@ public class VpnSettings extends SettingsPreferenceFragment implements
             } catch (Exception e) {
                 // ignore
             }
+            refreshState();
+        }
+    }
+
+    private void refreshState() {
+        if (mStateMonitor != null) {
+            mStateMonitor.refresh();
         }
     }
 
@@ -504,16 +539,11 @@ public class VpnSettings extends SettingsPreferenceFragment implements
             dialog.show(parent.getFragmentManager(), TAG_LOCKDOWN);
         }
 
-        private static String getStringOrNull(KeyStore keyStore, String key) {
-            final byte[] value = keyStore.get(Credentials.LOCKDOWN_VPN);
-            return value == null ? null : new String(value);
-        }
-
-        private void initProfiles(KeyStore keyStore, Resources res) {
-            final String lockdownKey = getStringOrNull(keyStore, Credentials.LOCKDOWN_VPN);
+        private void initProfiles(VpnProfilesLoader.Result data, Resources res) {
+            final String lockdownKey = data.lockdownKey;
 
-            mProfiles = loadVpnProfiles(keyStore, VpnProfile.TYPE_PPTP);
-            mTitles = Lists.newArrayList();
+            mProfiles = data.profiles;
+            mTitles.clear();
             mTitles.add(res.getText(R.string.vpn_lockdown_none));
             mCurrentIndex = 0;
 
@@ -530,7 +560,8 @@ public class VpnSettings extends SettingsPreferenceFragment implements
             final Context context = getActivity();
             final KeyStore keyStore = KeyStore.getInstance();
 
-            initProfiles(keyStore, context.getResources());
+            // Filled in once the profiles are loaded.
+            mTitles = Lists.newArrayList();
 
             final AlertDialog.Builder builder = new AlertDialog.Builder(context);
             final LayoutInflater dialogInflater = LayoutInflater.from(builder.getContext());
@@ -540,13 +571,36 @@ public class VpnSettings extends SettingsPreferenceFragment implements
             final View view = dialogInflater.inflate(R.layout.vpn_lockdown_editor, null, false);
             final ListView listView = (ListView) view.findViewById(android.R.id.list);
             listView.setChoiceMode(ListView.CHOICE_MODE_SINGLE);
-            listView.setAdapter(new TitleAdapter(context, mTitles));
-            listView.setItemChecked(mCurrentIndex, true);
+            final TitleAdapter adapter = new TitleAdapter(context, mTitles);
+            listView.setAdapter(adapter);
             builder.setView(view);
 
+            getLoaderManager().initLoader(0, null,
+                    new LoaderCallbacks<VpnProfilesLoader.Result>() {
+                @Override
+                public Loader<VpnProfilesLoader.Result> onCreateLoader(int id, Bundle args) {
+                    return new VpnProfilesLoader(context, keyStore, VpnProfile.TYPE_PPTP);
+                }
+
+                @Override
+                public void onLoadFinished(Loader<VpnProfilesLoader.Result> loader,
+                        VpnProfilesLoader.Result data) {
+                    initProfiles(data, context.getResources());
+                    adapter.notifyDataSetChanged();
+                    listView.setItemChecked(mCurrentIndex, true);
+                }
+
+                @Override
+                public void onLoaderReset(Loader<VpnProfilesLoader.Result> loader) {
+                }
+            });
+
             builder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
                 @Override
                 public void onClick(DialogInterface dialog, int which) {
+                    // Nothing to choose from until the profiles are loaded.
+                    if (mProfiles == null) return;
+
                     final int newIndex = listView.getCheckedItemPosition();
                     if (mCurrentIndex == newIndex) return;
 
@@ -572,19 +626,4 @@ public class VpnSettings extends SettingsPreferenceFragment implements
             return builder.create();
         }
     }
-
-    private static List<VpnProfile> loadVpnProfiles(KeyStore keyStore, int... excludeTypes) {
-        final ArrayList<VpnProfile> result = Lists.newArrayList();
-        final String[] keys = keyStore.saw(Credentials.VPN);
-        if (keys != null) {
-            for (String key : keys) {
-                final VpnProfile profile = VpnProfile.decode(
-                        key, keyStore.get(Credentials.VPN + key));
-                if (profile != null && !ArrayUtils.contains(excludeTypes, profile.type)) {
-                    result.add(profile);
-                }
-            }
-        }
-        return result;
-    }
 }
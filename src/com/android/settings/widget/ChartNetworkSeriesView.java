@@ -36,6 +36,8 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
@@ -75,6 +77,35 @@ public class ChartNetworkSeriesView extends View {
     private long mMax;
     private long mMaxEstimate;
 
+    /** Running total of {@link #mStats}: bytes in all buckets up to and including each index. */
+    private long[] mCumulative;
+    private NetworkStatsHistory.Entry mEntry;
+
+    /**
+     * Decimated outline of the series, as horizontal pixels and cumulative bytes. It only depends
+     * on the horizontal axis, so when only the vertical axis changes (e.g. while a sweep is
+     * dragged) the paths are rebuilt from these points without walking the buckets again.
+     */
+    private float[] mPointX = new float[64];
+    private long[] mPointValue = new long[64];
+    private int mPointCount;
+    private boolean mPointsValid = false;
+    private int mPointsWidth;
+    private long mPointsStart;
+    private long mPointsEnd;
+    private long mPointsEndTime;
+    private float mPointsStartX;
+    private float mPointsEndX;
+    private long mLastTime;
+    private long mTotal;
+
+    // Points of the pixel column being decimated, see addPoint()
+    private int mColumn;
+    private int mColumnSize;
+    private float mFirstX, mMinX, mMaxX, mLastX;
+    private long mFirstValue, mMinValue, mMaxValue, mLastValue;
+    private int mMinSeq, mMaxSeq;
+
     public ChartNetworkSeriesView(Context context) {
         this(context, null, 0);
     }
@@ -143,6 +174,8 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mCumulative = null;
+        mPointsValid = false;
         invalidatePath();
         invalidate();
     }
@@ -183,70 +216,43 @@ public class ChartNetworkSeriesView extends View {
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
-        float lastX = 0;
-        float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
-
-        // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
-
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
-
-        long totalData = 0;
-
-        NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
-            }
-
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
-
-            lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
+        final float startX = mHoriz.convertToPoint(mStart);
+        final float endX = mHoriz.convertToPoint(mEnd);
+        if (!mPointsValid || mPointsWidth != width || mPointsStart != mStart
+                || mPointsEnd != mEnd || mPointsEndTime != mEndTime
+                || mPointsStartX != startX || mPointsEndX != endX) {
+            generatePoints(width);
+            mPointsValid = true;
+            mPointsWidth = width;
+            mPointsStart = mStart;
+            mPointsEnd = mEnd;
+            mPointsEndTime = mEndTime;
+            mPointsStartX = startX;
+            mPointsEndX = endX;
         }
 
-        // when data falls short, extend to requested end time
-        if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
+        // move into starting position
+        mPathStroke.moveTo(0, height);
+        mPathFill.moveTo(0, height);
 
+        float lastX = 0;
+        float lastY = height;
+        for (int i = 0; i < mPointCount; i++) {
+            lastX = mPointX[i];
+            lastY = (mPointValue[i] < 0) ? height : mVert.convertToPoint(mPointValue[i]);
             mPathStroke.lineTo(lastX, lastY);
             mPathFill.lineTo(lastX, lastY);
         }
 
+        long totalData = mTotal;
+        long lastTime = mLastTime;
+        NetworkStatsHistory.Entry entry = mEntry;
+
         if (LOGD) {
             final RectF bounds = new RectF();
             mPathFill.computeBounds(bounds, true);
             Log.d(TAG, "onLayout() rendered with bounds=" + bounds.toString() + " and totalData="
-                    + totalData);
+                    + totalData + " using " + mPointCount + " points");
         }
 
         // drop to bottom of graph from current location
@@ -291,6 +297,166 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Walk the buckets between {@link #mStart} and {@link #mEnd} and collect the outline of the
+     * series, keeping at most a few points per pixel column. Buckets past the right edge are
+     * not walked; their total comes from {@link #mCumulative}.
+     */
+    private void generatePoints(int width) {
+        ensureCumulative();
+        mPointCount = 0;
+        mColumnSize = 0;
+
+        // value < 0 stands for the bottom of the graph
+        long lastValue = -1;
+        long lastTime = mHoriz.convertToValue(0);
+
+        // TODO: count fractional data from first bucket crossing start;
+        // currently it only accepts first full bucket.
+
+        long base = -1;
+        long totalData = 0;
+
+        NetworkStatsHistory.Entry entry = mEntry;
+
+        final int start = mStats.getIndexBefore(mStart);
+        final int end = mStats.getIndexAfter(mEnd);
+        for (int i = start; i <= end; i++) {
+            entry = mStats.getValues(i, entry);
+
+            final long startTime = entry.bucketStart;
+            final long endTime = startTime + entry.bucketDuration;
+
+            final float startX = mHoriz.convertToPoint(startTime);
+            final float endX = mHoriz.convertToPoint(endTime);
+
+            // skip until we find first stats on screen
+            if (endX < 0) continue;
+
+            if (base < 0) {
+                base = (i > 0) ? mCumulative[i - 1] : 0;
+            }
+
+            if (startX > width) {
+                // nothing else is visible; jump to the end of the last bucket
+                if (lastTime != startTime) {
+                    addPoint(startX, lastValue);
+                }
+                entry = mStats.getValues(end, entry);
+                lastTime = entry.bucketStart + entry.bucketDuration;
+                lastValue = totalData = mCumulative[end] - base;
+                addPoint(mHoriz.convertToPoint(lastTime), lastValue);
+                break;
+            }
+
+            // current bucket total
+            totalData = mCumulative[i] - base;
+
+            if (lastTime != startTime) {
+                // gap in buckets; line to start of current bucket
+                addPoint(startX, lastValue);
+            }
+
+            // always draw to end of current bucket
+            addPoint(endX, totalData);
+
+            lastValue = totalData;
+            lastTime = endTime;
+        }
+
+        // when data falls short, extend to requested end time
+        if (lastTime < mEndTime) {
+            addPoint(mHoriz.convertToPoint(mEndTime), lastValue);
+        }
+        flushColumn();
+
+        mEntry = entry;
+        mLastTime = lastTime;
+        mTotal = totalData;
+    }
+
+    private void ensureCumulative() {
+        final int size = mStats.size();
+        if (mCumulative != null && mCumulative.length == size) {
+            return;
+        }
+        mCumulative = new long[size];
+        long total = 0;
+        NetworkStatsHistory.Entry entry = mEntry;
+        for (int i = 0; i < size; i++) {
+            entry = mStats.getValues(i, entry);
+            total += entry.rxBytes + entry.txBytes;
+            mCumulative[i] = total;
+        }
+        mEntry = entry;
+    }
+
+    /**
+     * Add a point to the outline. Points falling in the same pixel column are reduced to the
+     * first, lowest, highest and last ones, in their original order.
+     */
+    private void addPoint(float x, long value) {
+        final int column = (int) x;
+        if (mColumnSize > 0 && column != mColumn) {
+            flushColumn();
+        }
+        if (mColumnSize == 0) {
+            mColumn = column;
+            mFirstX = mMinX = mMaxX = x;
+            mFirstValue = mMinValue = mMaxValue = value;
+            mMinSeq = mMaxSeq = 0;
+        } else {
+            if (value < mMinValue) {
+                mMinX = x;
+                mMinValue = value;
+                mMinSeq = mColumnSize;
+            }
+            if (value > mMaxValue) {
+                mMaxX = x;
+                mMaxValue = value;
+                mMaxSeq = mColumnSize;
+            }
+        }
+        mLastX = x;
+        mLastValue = value;
+        mColumnSize++;
+    }
+
+    private void flushColumn() {
+        if (mColumnSize == 0) {
+            return;
+        }
+        final int lastSeq = mColumnSize - 1;
+        appendPoint(mFirstX, mFirstValue);
+        if (mMinSeq <= mMaxSeq) {
+            appendPointIfInner(mMinSeq, lastSeq, mMinX, mMinValue);
+            appendPointIfInner(mMaxSeq, lastSeq, mMaxX, mMaxValue);
+        } else {
+            appendPointIfInner(mMaxSeq, lastSeq, mMaxX, mMaxValue);
+            appendPointIfInner(mMinSeq, lastSeq, mMinX, mMinValue);
+        }
+        if (lastSeq > 0) {
+            appendPoint(mLastX, mLastValue);
+        }
+        mColumnSize = 0;
+    }
+
+    private void appendPointIfInner(int seq, int lastSeq, float x, long value) {
+        if (seq > 0 && seq < lastSeq) {
+            appendPoint(x, value);
+        }
+    }
+
+    private void appendPoint(float x, long value) {
+        if (mPointCount == mPointX.length) {
+            mPointX = Arrays.copyOf(mPointX, mPointCount * 2);
+            mPointValue = Arrays.copyOf(mPointValue, mPointCount * 2);
+        }
+        mPointX[mPointCount] = x;
+        mPointValue[mPointCount] = value;
+        mPointCount++;
+    }
+
     public void setEndTime(long endTime) {
         mEndTime = endTime;
     }
@@ -29,12 +29,15 @@ import android.location.LocationManager;
 import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.net.wifi.WifiManager;
-import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IPowerManager;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.util.Log;
@@ -44,6 +47,8 @@ import com.android.settings.R;
 import com.android.settings.bluetooth.LocalBluetoothAdapter;
 import com.android.settings.bluetooth.LocalBluetoothManager;
 
+import java.util.Locale;
+
 /**
  * Provides control of power-related settings from a widget.
  */
@@ -100,12 +105,31 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
     /** Minimum brightness at which the indicator is shown at full */
     private static final float FULL_BRIGHTNESS_THRESHOLD = 0.8f;
 
+    // Brightness as shown by the widget
+    private static final int BRIGHTNESS_AUTO = 0;
+    private static final int BRIGHTNESS_FULL = 1;
+    private static final int BRIGHTNESS_HALF = 2;
+    private static final int BRIGHTNESS_OFF = 3;
+
+    /** Minimum time between two widget updates while a setting is changing state */
+    private static final long MIN_TRANSITION_UPDATE_INTERVAL = 250;
+
     private static final StateTracker sWifiState = new WifiStateTracker();
     private static final StateTracker sBluetoothState = new BluetoothStateTracker();
     private static final StateTracker sLocationState = new LocationStateTracker();
     private static final StateTracker sSyncState = new SyncStateTracker();
     private static SettingsObserver sSettingsObserver;
 
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private static Handler sWorker;
+
+    // Rendered state last pushed to the widget host, see getRenderedState(), and the locale of
+    // its content descriptions
+    private static int sPushedState = -1;
+    private static Locale sPushedLocale;
+    private static long sLastPushTime;
+    private static boolean sPushPending;
+
     /**
      * The state machine for a setting's toggling, tracking reality
      * versus the user's intent.
@@ -191,6 +215,32 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
          */
         public int getPosition() { return POS_CENTER; }
 
+        /**
+         * Returns a value that changes whenever {@link #getButtonImageId} would return a
+         * different image for the same on-vs-off state. Must fit in 2 bits.
+         */
+        public int getImageVariant() { return 0; }
+
+        /**
+         * Returns what {@link #setImageViewResources} shows, in 4 bits: the tri-state and
+         * direction of a transition in the low bits, {@link #getImageVariant()} above them.
+         */
+        public final int getRenderedState(Context context) {
+            final int triState;
+            switch (getTriState(context)) {
+                case STATE_DISABLED:
+                    triState = 0;
+                    break;
+                case STATE_ENABLED:
+                    triState = 1;
+                    break;
+                default:
+                    triState = isTurningOn() ? 3 : 2;
+                    break;
+            }
+            return (getImageVariant() << 2) | triState;
+        }
+
         /**
          * Updates the remote views depending on the state (off, on,
          * turning off, turning on) of the setting.
@@ -385,9 +435,9 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
             // settings write off the UI thread, as it can take a
             // user-noticeable amount of time, especially if there's
             // disk contention.
-            new AsyncTask<Void, Void, Void>() {
+            getWorker().post(new Runnable() {
                 @Override
-                protected Void doInBackground(Void... args) {
+                public void run() {
                     /**
                      * Disable tethering if enabling Wifi
                      */
@@ -398,9 +448,8 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
                     }
 
                     wifiManager.setWifiEnabled(desiredState);
-                    return null;
                 }
-            }.execute();
+            });
         }
 
         @Override
@@ -467,13 +516,12 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
             // settings write off the UI thread, as it can take a
             // user-noticeable amount of time, especially if there's
             // disk contention.
-            new AsyncTask<Void, Void, Void>() {
+            getWorker().post(new Runnable() {
                 @Override
-                protected Void doInBackground(Void... args) {
+                public void run() {
                     sLocalBluetoothAdapter.setBluetoothEnabled(desiredState);
-                    return null;
                 }
-            }.execute();
+            });
         }
 
         @Override
@@ -529,6 +577,17 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
             return R.drawable.ic_appwidget_settings_location_off_holo;
         }
 
+        @Override
+        public int getImageVariant() {
+            switch (mCurrentLocationMode) {
+                case Settings.Secure.LOCATION_MODE_HIGH_ACCURACY:
+                case Settings.Secure.LOCATION_MODE_SENSORS_ONLY:
+                    return 0;
+                default:
+                    return 1;
+            }
+        }
+
         @Override
         public int getActualState(Context context) {
             ContentResolver resolver = context.getContentResolver();
@@ -548,9 +607,9 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
         @Override
         public void requestStateChange(final Context context, final boolean desiredState) {
             final ContentResolver resolver = context.getContentResolver();
-            new AsyncTask<Void, Void, Boolean>() {
+            getWorker().post(new StateChangeRunnable(context, this) {
                 @Override
-                protected Boolean doInBackground(Void... args) {
+                protected boolean changeState() {
                     final UserManager um =
                             (UserManager) context.getSystemService(Context.USER_SERVICE);
                     if (!um.hasUserRestriction(UserManager.DISALLOW_SHARE_LOCATION)) {
@@ -577,15 +636,7 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
 
                     return getActualState(context) == STATE_ENABLED;
                 }
-
-                @Override
-                protected void onPostExecute(Boolean result) {
-                    setCurrentState(
-                        context,
-                        result ? STATE_ENABLED : STATE_DISABLED);
-                    updateWidget(context);
-                }
-            }.execute();
+            });
         }
     }
 
@@ -619,9 +670,9 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
                     (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
             final boolean sync = ContentResolver.getMasterSyncAutomatically();
 
-            new AsyncTask<Void, Void, Boolean>() {
+            getWorker().post(new StateChangeRunnable(context, this) {
                 @Override
-                protected Boolean doInBackground(Void... args) {
+                protected boolean changeState() {
                     // Turning sync on.
                     if (desiredState) {
                         if (!sync) {
@@ -636,18 +687,54 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
                     }
                     return false;
                 }
+            });
+        }
+    }
 
+    /**
+     * Changes a setting on the worker thread, then reports the resulting state to its
+     * {@link StateTracker} and updates the widget on the main thread.
+     */
+    private abstract static class StateChangeRunnable implements Runnable {
+        private final Context mContext;
+        private final StateTracker mTracker;
+
+        StateChangeRunnable(Context context, StateTracker tracker) {
+            mContext = context;
+            mTracker = tracker;
+        }
+
+        /**
+         * Makes the change and returns whether the setting is now enabled.
+         */
+        protected abstract boolean changeState();
+
+        @Override
+        public final void run() {
+            final boolean enabled = changeState();
+            sMainHandler.post(new Runnable() {
                 @Override
-                protected void onPostExecute(Boolean result) {
-                    setCurrentState(
-                        context,
-                        result ? STATE_ENABLED : STATE_DISABLED);
-                    updateWidget(context);
+                public void run() {
+                    mTracker.setCurrentState(mContext, enabled ? STATE_ENABLED : STATE_DISABLED);
+                    updateWidget(mContext);
                 }
-            }.execute();
+            });
         }
     }
 
+    /**
+     * Returns the single background thread used to change settings, so that a burst of
+     * toggles doesn't start one task per tracker.
+     */
+    private static synchronized Handler getWorker() {
+        if (sWorker == null) {
+            final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sWorker = new Handler(thread.getLooper());
+        }
+        return sWorker;
+    }
+
     private static void checkObserver(Context context) {
         if (sSettingsObserver == null) {
             sSettingsObserver = new SettingsObserver(new Handler(),
@@ -660,11 +747,15 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
     public void onUpdate(Context context, AppWidgetManager appWidgetManager,
             int[] appWidgetIds) {
         // Update each requested appWidgetId
+        final int state = getRenderedState(context);
         RemoteViews view = buildUpdate(context);
 
         for (int i = 0; i < appWidgetIds.length; i++) {
             appWidgetManager.updateAppWidget(appWidgetIds[i], view);
         }
+        sPushedState = state;
+        sPushedLocale = getLocale(context);
+        sLastPushTime = SystemClock.uptimeMillis();
     }
 
     @Override
@@ -707,14 +798,83 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
     /**
      * Updates the widget when something changes, or when a button is pushed.
      *
+     * Nothing is sent to the widget host when it already shows the current state in the
+     * current locale. While a setting is changing state, updates are sent at most every
+     * {@link #MIN_TRANSITION_UPDATE_INTERVAL}; the settled state is always sent right away.
+     *
      * @param context
      */
     public static void updateWidget(Context context) {
+        checkObserver(context);
+        final int state = getRenderedState(context);
+        if (isPushed(context, state)) {
+            return;
+        }
+        if (sPushPending && isInTransition(state)) {
+            // The pending update will pick up the latest state.
+            return;
+        }
+        final long delay = sLastPushTime + MIN_TRANSITION_UPDATE_INTERVAL
+                - SystemClock.uptimeMillis();
+        if (delay > 0 && isInTransition(state)) {
+            final Context appContext = context.getApplicationContext();
+            sPushPending = true;
+            sMainHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    sPushPending = false;
+                    pushUpdate(appContext, getRenderedState(appContext));
+                }
+            }, delay);
+            return;
+        }
+        pushUpdate(context, state);
+    }
+
+    private static void pushUpdate(Context context, int state) {
+        if (isPushed(context, state)) {
+            return;
+        }
         RemoteViews views = buildUpdate(context);
         // Update specific list of appWidgetIds if given, otherwise default to all
         final AppWidgetManager gm = AppWidgetManager.getInstance(context);
         gm.updateAppWidget(THIS_APPWIDGET, views);
-        checkObserver(context);
+        sPushedState = state;
+        sPushedLocale = getLocale(context);
+        sLastPushTime = SystemClock.uptimeMillis();
+    }
+
+    private static boolean isPushed(Context context, int state) {
+        return state == sPushedState && getLocale(context).equals(sPushedLocale);
+    }
+
+    private static Locale getLocale(Context context) {
+        return context.getResources().getConfiguration().locale;
+    }
+
+    /**
+     * Returns everything the widget shows packed into an int: 4 bits for each
+     * {@link StateTracker} and 2 bits for the brightness.
+     */
+    private static int getRenderedState(Context context) {
+        int state = sWifiState.getRenderedState(context);
+        state = (state << 4) | sBluetoothState.getRenderedState(context);
+        state = (state << 4) | sLocationState.getRenderedState(context);
+        state = (state << 4) | sSyncState.getRenderedState(context);
+        state = (state << 2) | getBrightnessLevel(context);
+        return state;
+    }
+
+    private static boolean isInTransition(int state) {
+        // Transitions have the higher of the two tri-state bits of a tracker set
+        state >>= 2;
+        for (int i = 0; i < 4; i++) {
+            if ((state & 0x2) != 0) {
+                return true;
+            }
+            state >>= 4;
+        }
+        return false;
     }
 
     /**
@@ -729,7 +889,8 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
         sLocationState.setImageViewResources(context, views);
         sSyncState.setImageViewResources(context, views);
 
-        if (getBrightnessMode(context)) {
+        final int level = getBrightnessLevel(context);
+        if (level == BRIGHTNESS_AUTO) {
             views.setContentDescription(R.id.btn_brightness,
                     context.getString(R.string.gadget_brightness_template,
                             context.getString(R.string.gadget_brightness_state_auto)));
@@ -738,20 +899,14 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
             views.setImageViewResource(R.id.ind_brightness,
                     R.drawable.appwidget_settings_ind_on_r_holo);
         } else {
-            final int brightness = getBrightness(context);
-            final PowerManager pm = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
             // Set the icon
-            final int full = (int)(pm.getMaximumScreenBrightnessSetting()
-                    * FULL_BRIGHTNESS_THRESHOLD);
-            final int half = (int)(pm.getMaximumScreenBrightnessSetting()
-                    * HALF_BRIGHTNESS_THRESHOLD);
-            if (brightness > full) {
+            if (level == BRIGHTNESS_FULL) {
                 views.setContentDescription(R.id.btn_brightness,
                         context.getString(R.string.gadget_brightness_template,
                                 context.getString(R.string.gadget_brightness_state_full)));
                 views.setImageViewResource(R.id.img_brightness,
                         R.drawable.ic_appwidget_settings_brightness_full_holo);
-            } else if (brightness > half) {
+            } else if (level == BRIGHTNESS_HALF) {
                 views.setContentDescription(R.id.btn_brightness,
                         context.getString(R.string.gadget_brightness_template,
                                 context.getString(R.string.gadget_brightness_state_half)));
@@ -765,7 +920,7 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
                         R.drawable.ic_appwidget_settings_brightness_off_holo);
             }
             // Set the ON state
-            if (brightness > half) {
+            if (level != BRIGHTNESS_OFF) {
                 views.setImageViewResource(R.id.ind_brightness,
                         R.drawable.appwidget_settings_ind_on_r_holo);
             } else {
@@ -835,6 +990,30 @@ public class SettingsAppWidgetProvider extends AppWidgetProvider {
         updateWidget(context);
     }
 
+    /**
+     * Gets brightness as shown by the widget.
+     *
+     * @param context
+     * @return BRIGHTNESS_AUTO, BRIGHTNESS_FULL, BRIGHTNESS_HALF or BRIGHTNESS_OFF.
+     */
+    private static int getBrightnessLevel(Context context) {
+        if (getBrightnessMode(context)) {
+            return BRIGHTNESS_AUTO;
+        }
+        final int brightness = getBrightness(context);
+        final PowerManager pm = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
+        final int full = (int)(pm.getMaximumScreenBrightnessSetting()
+                * FULL_BRIGHTNESS_THRESHOLD);
+        final int half = (int)(pm.getMaximumScreenBrightnessSetting()
+                * HALF_BRIGHTNESS_THRESHOLD);
+        if (brightness > full) {
+            return BRIGHTNESS_FULL;
+        } else if (brightness > half) {
+            return BRIGHTNESS_HALF;
+        }
+        return BRIGHTNESS_OFF;
+    }
+
     /**
      * Gets brightness level.
      *
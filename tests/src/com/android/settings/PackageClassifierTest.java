@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.pm.PackageInfo;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Checks that {@link PackageClassifier} gives the same answers from a bulk preload, from
+ * single lookups and for a {@link PackageInfo} fetched without signatures.
+ */
+public class PackageClassifierTest extends AndroidTestCase {
+    private static final String PLATFORM = "android";
+    private static final String MISSING = "com.android.settings.tests.no_such_package";
+
+    @SmallTest
+    public void testPlatformPackage() {
+        final PackageClassifier classifier = PackageClassifier.getInstance(getContext());
+        classifier.invalidate(PLATFORM);
+        assertTrue(classifier.isPlatformSigned(PLATFORM));
+        assertTrue(classifier.isSystemApp(PLATFORM));
+
+        classifier.preload();
+        assertTrue(classifier.isPlatformSigned(PLATFORM));
+    }
+
+    @SmallTest
+    public void testPackageInfoWithoutSignatures() throws Exception {
+        final PackageClassifier classifier = PackageClassifier.getInstance(getContext());
+        final String settings = getContext().getPackageName();
+        final PackageInfo pkg = getContext().getPackageManager().getPackageInfo(settings, 0);
+        assertNull(pkg.signatures);
+        classifier.invalidate(settings);
+        assertEquals(classifier.getFlags(settings), classifier.getFlags(pkg));
+    }
+
+    @SmallTest
+    public void testMissingPackage() {
+        final PackageClassifier classifier = PackageClassifier.getInstance(getContext());
+        assertEquals(0, classifier.getFlags(MISSING));
+        assertFalse(classifier.isPlatformSigned(MISSING));
+        assertFalse(classifier.isHomePackage(MISSING));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that lane loopers are shared while held and that cancelling a
+ * {@link SettingsExecutor.Scope} stops its pending work.
+ */
+public class SettingsExecutorTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 1000;
+
+    @SmallTest
+    public void testLooperSharedWhileHeld() throws Exception {
+        final Looper first = SettingsExecutor.acquireLooper(SettingsExecutor.LANE_IO);
+        final Looper second = SettingsExecutor.acquireLooper(SettingsExecutor.LANE_IO);
+        assertSame(first, second);
+        SettingsExecutor.releaseLooper(SettingsExecutor.LANE_IO);
+        SettingsExecutor.releaseLooper(SettingsExecutor.LANE_IO);
+
+        // Other holders in the process may still keep the thread alive; only check that a
+        // later holder gets a working looper.
+        final Looper third = SettingsExecutor.acquireLooper(SettingsExecutor.LANE_IO);
+        assertNotNull(third.getThread());
+        assertTrue(third.getThread().isAlive());
+        SettingsExecutor.releaseLooper(SettingsExecutor.LANE_IO);
+    }
+
+    @SmallTest
+    public void testCancelledScopeDropsPendingWork() throws Exception {
+        final SettingsExecutor.Scope scope = new SettingsExecutor.Scope();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final Future<?> running = scope.execute(SettingsExecutor.LANE_CPU, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(10 * TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        scope.cancel();
+        assertTrue(running.isCancelled());
+        assertTrue(interrupted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        final AtomicBoolean ran = new AtomicBoolean();
+        final Future<?> late = scope.execute(SettingsExecutor.LANE_CPU, new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        });
+        assertTrue(late.isCancelled());
+        assertFalse(ran.get());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Tests that sorting by collation key orders labels with accents, digits and other scripts
+ * exactly like {@link Collator}. The time both sorts take is logged, not asserted on.
+ */
+public class AppEntrySortTest extends AndroidTestCase {
+    private static final String TAG = "AppEntrySortTest";
+
+    private static final int NUM_APPS = 500;
+    private static final int SORTS = 20;
+
+    private static final String[] WORDS = {
+        "Calendar", "camera", "Café", "Éditeur", "editor", "Maps", "Müller", "mail",
+        "Zürich", "zoom", "Ångström", "Android", "Übersetzer", "1Weather", "Σημειώσεις",
+        "Клавиатура",
+    };
+
+    private static final Comparator<ApplicationsState.AppEntry> LABEL_COMPARATOR
+            = new Comparator<ApplicationsState.AppEntry>() {
+        private final Collator sCollator = Collator.getInstance();
+        @Override
+        public int compare(ApplicationsState.AppEntry object1,
+                ApplicationsState.AppEntry object2) {
+            return sCollator.compare(object1.label, object2.label);
+        }
+    };
+
+    private ArrayList<ApplicationsState.AppEntry> mEntries;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEntries = new ArrayList<ApplicationsState.AppEntry>(NUM_APPS);
+        for (int i = 0; i < NUM_APPS; i++) {
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.app" + i;
+            info.sourceDir = "/nonexistent/app" + i + ".apk";
+            info.flags = ApplicationInfo.FLAG_INSTALLED;
+            info.enabled = true;
+            ApplicationsState.AppEntry entry =
+                    new ApplicationsState.AppEntry(getContext(), info, i);
+            entry.label = WORDS[(i * 7) % WORDS.length] + " " + WORDS[(i * 3) % WORDS.length]
+                    + " " + i;
+            mEntries.add(entry);
+        }
+    }
+
+    @SmallTest
+    public void testKeysSortLikeCollator() {
+        Collections.shuffle(mEntries);
+        final ArrayList<ApplicationsState.AppEntry> byLabel = sorted(LABEL_COMPARATOR);
+        final ArrayList<ApplicationsState.AppEntry> byKey =
+                sorted(ApplicationsState.ALPHA_COMPARATOR);
+        for (int i = 0; i < NUM_APPS; i++) {
+            assertEquals(0, LABEL_COMPARATOR.compare(byLabel.get(i), byKey.get(i)));
+        }
+    }
+
+    @LargeTest
+    public void testLogSortTimes() {
+        long collatorNanos = 0;
+        long keyNanos = 0;
+        for (int i = 0; i < SORTS; i++) {
+            Collections.shuffle(mEntries);
+            long start = SystemClock.elapsedRealtimeNanos();
+            sorted(LABEL_COMPARATOR);
+            collatorNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+            // Keys are made on the first sort and reused after that, as in the app list.
+            start = SystemClock.elapsedRealtimeNanos();
+            sorted(ApplicationsState.ALPHA_COMPARATOR);
+            keyNanos += SystemClock.elapsedRealtimeNanos() - start;
+        }
+        Log.i(TAG, SORTS + " sorts of " + NUM_APPS + " apps: Collator "
+                + (collatorNanos / 1000) + "us, CollationKey " + (keyNanos / 1000) + "us");
+    }
+
+    private ArrayList<ApplicationsState.AppEntry> sorted(
+            Comparator<ApplicationsState.AppEntry> comparator) {
+        final ArrayList<ApplicationsState.AppEntry> copy =
+                new ArrayList<ApplicationsState.AppEntry>(mEntries);
+        Collections.sort(copy, comparator);
+        return copy;
+    }
+}
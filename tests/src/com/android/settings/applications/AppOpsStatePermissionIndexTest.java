@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.AppOpsManager;
+import android.content.pm.PackageInfo;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that {@link AppOpsState.PermissionIndex} matches requested permissions the same way as
+ * the linear scan it replaced. The time each takes for a few hundred packages is logged for
+ * comparison but not asserted on, as it depends on the load of the device.
+ */
+public class AppOpsStatePermissionIndexTest extends AndroidTestCase {
+    private static final String TAG = "AppOpsStatePermissionIndexTest";
+
+    private static final int NUM_PACKAGES = 300;
+    private static final int NUM_PERMS_PER_PACKAGE = 40;
+    private static final int ITERATIONS = 20;
+
+    private PackageInfo[] mPackages;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Mix permissions that back ops with ones that don't, as real packages do.
+        final ArrayList<String> allPerms = new ArrayList<String>();
+        for (int op = 0; op < AppOpsManager._NUM_OP; op++) {
+            String perm = AppOpsManager.opToPermission(op);
+            if (perm != null) {
+                allPerms.add(perm);
+            }
+            allPerms.add("com.example.permission.UNRELATED_" + op);
+        }
+        mPackages = new PackageInfo[NUM_PACKAGES];
+        for (int i = 0; i < NUM_PACKAGES; i++) {
+            PackageInfo pi = new PackageInfo();
+            pi.packageName = "com.example.app" + i;
+            pi.requestedPermissions = new String[NUM_PERMS_PER_PACKAGE];
+            for (int j = 0; j < NUM_PERMS_PER_PACKAGE; j++) {
+                pi.requestedPermissions[j] = allPerms.get((i * 7 + j * 13) % allPerms.size());
+            }
+            mPackages[i] = pi;
+        }
+    }
+
+    public void testIndexMatchesLinearScan() {
+        for (AppOpsState.OpsTemplate tpl : AppOpsState.ALL_TEMPLATES) {
+            final AppOpsState.PermissionIndex index = tpl.getPermissionIndex();
+            assertEquals(linearScan(new LinearPerms(tpl)), indexed(index));
+        }
+    }
+
+    @LargeTest
+    public void testLogTimings() {
+        final LinearPerms[] linearPerms = new LinearPerms[AppOpsState.ALL_TEMPLATES.length];
+        for (int t = 0; t < linearPerms.length; t++) {
+            linearPerms[t] = new LinearPerms(AppOpsState.ALL_TEMPLATES[t]);
+        }
+        long linearNanos = 0;
+        long indexedNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (int t = 0; t < linearPerms.length; t++) {
+                final AppOpsState.OpsTemplate tpl = AppOpsState.ALL_TEMPLATES[t];
+                long start = SystemClock.elapsedRealtimeNanos();
+                linearScan(linearPerms[t]);
+                linearNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                indexed(tpl.getPermissionIndex());
+                indexedNanos += SystemClock.elapsedRealtimeNanos() - start;
+            }
+        }
+        Log.i(TAG, NUM_PACKAGES + " packages x " + ITERATIONS + " iterations: linear scan "
+                + (linearNanos / 1000) + "us, index " + (indexedNanos / 1000) + "us");
+    }
+
+    /**
+     * The permissions of a template as {@link AppOpsState#buildState} listed them before the
+     * index existed, built once per template like it did.
+     */
+    private static final class LinearPerms {
+        final ArrayList<String> perms = new ArrayList<String>();
+        final ArrayList<Integer> permOps = new ArrayList<Integer>();
+
+        LinearPerms(AppOpsState.OpsTemplate tpl) {
+            for (int i = 0; i < tpl.ops.length; i++) {
+                if (tpl.showPerms[i]) {
+                    String perm = AppOpsManager.opToPermission(tpl.ops[i]);
+                    if (perm != null && !perms.contains(perm)) {
+                        perms.add(perm);
+                        permOps.add(tpl.ops[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The matching done by {@link AppOpsState#buildState} before the index existed.
+     */
+    private ArrayList<Integer> linearScan(LinearPerms linear) {
+        final ArrayList<Integer> result = new ArrayList<Integer>();
+        for (PackageInfo pi : mPackages) {
+            for (String requested : pi.requestedPermissions) {
+                for (int k = 0; k < linear.perms.size(); k++) {
+                    if (linear.perms.get(k).equals(requested)) {
+                        result.add(linear.permOps.get(k));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private ArrayList<Integer> indexed(AppOpsState.PermissionIndex index) {
+        final ArrayList<Integer> result = new ArrayList<Integer>();
+        for (PackageInfo pi : mPackages) {
+            for (String requested : pi.requestedPermissions) {
+                final int op = index.getOpForPermission(requested);
+                if (op >= 0) {
+                    result.add(op);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+/**
+ * Checks that {@link RunningProcessesView.ElapsedTimeFormatter} formats uptimes exactly like
+ * {@link DateUtils#formatElapsedTime} in the current locale.
+ */
+public class ElapsedTimeFormatterTest extends AndroidTestCase {
+    private static final long[] SECONDS = {
+            0, 9, 59, 60, 61, 599, 3599, 3600, 3661, 35999, 36000, 86399, 360000, 9999999 };
+
+    @SmallTest
+    public void testMatchesDateUtils() {
+        final RunningProcessesView.ElapsedTimeFormatter formatter =
+                new RunningProcessesView.ElapsedTimeFormatter();
+        final char[] out = new char[RunningProcessesView.ElapsedTimeFormatter.MAX_LENGTH];
+        for (long seconds : SECONDS) {
+            final int length = formatter.format(seconds, out);
+            if (length < 0) {
+                // This locale is handed back to DateUtils.
+                return;
+            }
+            assertEquals(DateUtils.formatElapsedTime(seconds), new String(out, 0, length));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.SearchIndexableData;
+import android.provider.SearchIndexableResource;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Indexes all of {@link SearchIndexableResources} into an in-memory database and reports how
+ * many rows per second {@link Index#indexData} writes.
+ */
+public class IndexBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "IndexBenchmarkTest";
+
+    private static final int ITERATIONS = 5;
+
+    private SQLiteDatabase mDatabase;
+    private Index mIndex;
+    private List<SearchIndexableData> mData;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = SQLiteDatabase.create(null);
+        new IndexDatabaseHelper(getContext()).onCreate(mDatabase);
+        mIndex = new Index(getContext(), "com.android.settings");
+
+        mData = new ArrayList<SearchIndexableData>();
+        for (SearchIndexableResource res : SearchIndexableResources.values()) {
+            SearchIndexableResource copy = new SearchIndexableResource(res.rank, res.xmlResId,
+                    res.className, res.iconResId);
+            copy.context = getContext();
+            copy.packageName = getContext().getPackageName();
+            mData.add(copy);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testIndexAllResources() {
+        final String locale = Locale.getDefault().toString();
+        final Map<String, List<String>> nonIndexableKeys = new HashMap<String, List<String>>();
+
+        int rows = 0;
+        long elapsed = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            mDatabase.beginTransaction();
+            try {
+                final long start = SystemClock.elapsedRealtimeNanos();
+                rows = mIndex.indexData(mDatabase, locale, mData, nonIndexableKeys);
+                elapsed += SystemClock.elapsedRealtimeNanos() - start;
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+
+        assertTrue("No rows indexed", rows > 0);
+        final double seconds = elapsed / 1e9;
+        Log.i(TAG, "Indexed " + rows + " rows from " + mData.size() + " resources, "
+                + (int) (rows * ITERATIONS / seconds) + " rows/sec");
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.vpn2;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.net.LegacyVpnInfo;
+
+import java.util.ArrayList;
+
+/**
+ * Drives {@link LegacyVpnStateMonitor} with a local state source and checks that it only
+ * reports transitions and only polls while a VPN is connecting.
+ */
+public class LegacyVpnStateMonitorTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 1000;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private LegacyVpnInfo mCurrent;
+    private int mReads;
+    private final ArrayList<LegacyVpnInfo> mReported = new ArrayList<LegacyVpnInfo>();
+    private LegacyVpnStateMonitor mMonitor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("LegacyVpnStateMonitorTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mMonitor = new LegacyVpnStateMonitor(getContext(), mHandler,
+                new LegacyVpnStateMonitor.Source() {
+                    @Override
+                    public LegacyVpnInfo getLegacyVpnInfo() {
+                        mReads++;
+                        return mCurrent;
+                    }
+                },
+                new LegacyVpnStateMonitor.Callback() {
+                    @Override
+                    public void onLegacyVpnInfoChanged(LegacyVpnInfo info) {
+                        mReported.add(info);
+                    }
+                });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runOnMonitorThread(mStop);
+        mThread.quit();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testReportsTransitionsOnly() {
+        setState("a", LegacyVpnInfo.STATE_CONNECTING);
+        runOnMonitorThread(mStart);
+        assertEquals(1, mReported.size());
+        assertTrue(mMonitor.isPolling());
+
+        runOnMonitorThread(mRefresh);
+        assertEquals(1, mReported.size());
+
+        setState("a", LegacyVpnInfo.STATE_CONNECTED);
+        runOnMonitorThread(mRefresh);
+        assertEquals(2, mReported.size());
+        assertEquals(LegacyVpnInfo.STATE_CONNECTED, mReported.get(1).state);
+        assertFalse(mMonitor.isPolling());
+
+        mCurrent = null;
+        runOnMonitorThread(mRefresh);
+        assertEquals(3, mReported.size());
+        assertNull(mReported.get(2));
+    }
+
+    @SmallTest
+    public void testReportsStateAfterRestart() {
+        setState("a", LegacyVpnInfo.STATE_CONNECTED);
+        runOnMonitorThread(mStart);
+        assertEquals(1, mReported.size());
+        assertEquals(LegacyVpnInfo.STATE_CONNECTED, mReported.get(0).state);
+
+        // The VPN disconnects while the screen is paused.
+        runOnMonitorThread(mStop);
+        mCurrent = null;
+        runOnMonitorThread(mStart);
+        assertEquals(2, mReported.size());
+        assertNull(mReported.get(1));
+    }
+
+    @SmallTest
+    public void testIdleWhenSettled() throws Exception {
+        setState("a", LegacyVpnInfo.STATE_CONNECTED);
+        runOnMonitorThread(mStart);
+        Thread.sleep(LegacyVpnStateMonitor.MAX_POLL_INTERVAL_MS);
+
+        // The initial read and this refresh. Nothing was polled in between, and the sticky
+        // CONNECTIVITY_ACTION delivered on registration did not trigger another read.
+        runOnMonitorThread(mRefresh);
+        assertEquals(2, mReads);
+        assertFalse(mMonitor.isPolling());
+    }
+
+    private final Runnable mStart = new Runnable() {
+        @Override
+        public void run() {
+            mMonitor.start();
+        }
+    };
+
+    private final Runnable mStop = new Runnable() {
+        @Override
+        public void run() {
+            mMonitor.stop();
+        }
+    };
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mMonitor.refresh();
+        }
+    };
+
+    private void setState(String key, int state) {
+        final LegacyVpnInfo info = new LegacyVpnInfo();
+        info.key = key;
+        info.state = state;
+        mCurrent = info;
+    }
+
+    private void runOnMonitorThread(Runnable r) {
+        assertTrue(mHandler.runWithScissors(r, TIMEOUT_MS));
+    }
+}